@@ -0,0 +1,23 @@
+package com.ontometrics.db.graph;
+
+/**
+ * Gets told about the progress of a bulk write, once for every chunk that
+ * has been committed.
+ * 
+ * @see EntityManager#createAll(java.util.Iterator, int, BatchListener)
+ */
+public interface BatchListener {
+
+	/**
+	 * @param chunk
+	 *            the number of the chunk, starting at 1
+	 * @param chunkSize
+	 *            how many entities were written in this chunk
+	 * @param total
+	 *            how many entities have been committed so far
+	 * @param millis
+	 *            how long it took to write and commit the chunk
+	 */
+	public void chunkCommitted(int chunk, int chunkSize, long total, long millis);
+
+}
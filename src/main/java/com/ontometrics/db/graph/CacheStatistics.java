@@ -0,0 +1,69 @@
+package com.ontometrics.db.graph;
+
+/**
+ * The counters of an {@link EntityCache} at one point in time.
+ *
+ * @author Rob
+ *
+ */
+public class CacheStatistics {
+
+	private final long hits;
+
+	private final long misses;
+
+	private final long evictions;
+
+	private final long expirations;
+
+	private final long size;
+
+	public CacheStatistics(long hits, long misses, long evictions, long expirations, long size) {
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.expirations = expirations;
+		this.size = size;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return entries dropped to stay within bounds
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return entries dropped because they outlived the time to live
+	 */
+	public long getExpirations() {
+		return expirations;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return hits over lookups, 0 before the first lookup
+	 */
+	public double getHitRatio() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStatistics [hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+				+ ", expirations=" + expirations + ", size=" + size + "]";
+	}
+
+}
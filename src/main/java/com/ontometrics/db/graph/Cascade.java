@@ -0,0 +1,21 @@
+package com.ontometrics.db.graph;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * The cascade of a relationship field, for entities that are read and written
+ * on their own and should not be written again every time something refers
+ * to them. A write can override it for every field, see
+ * {@link EntityManager#create(Object, CascadeType)}.
+ */
+@Target({ FIELD })
+@Retention(RUNTIME)
+public @interface Cascade {
+
+	CascadeType value() default CascadeType.ALL;
+
+}
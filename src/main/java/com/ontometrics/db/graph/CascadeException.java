@@ -0,0 +1,19 @@
+package com.ontometrics.db.graph;
+
+/**
+ * Thrown when writing an entity would have to go further into the entities
+ * it refers to than its {@link CascadeType} allows, such as linking to an
+ * entity that has not been created. The write it happens in is rolled back.
+ * 
+ * @author Rob
+ * 
+ */
+public class CascadeException extends IllegalArgumentException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CascadeException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,33 @@
+package com.ontometrics.db.graph;
+
+/**
+ * How far writing an entity goes into the entities a relationship field
+ * refers to. Entities without a primary key belong to the entity referring
+ * to them, and are written with it whatever the cascade.
+ * 
+ * @author Rob
+ * 
+ * @see Cascade
+ */
+public enum CascadeType {
+
+	/**
+	 * Only the relationship is written, to the node the referenced entity
+	 * already has. Referring to an entity that has not been created is an
+	 * error.
+	 */
+	LINK,
+
+	/**
+	 * Referenced entities that have not been created are, those that have are
+	 * only linked to.
+	 */
+	CREATE,
+
+	/**
+	 * Referenced entities are created, or updated, along with the entity
+	 * referring to them.
+	 */
+	ALL
+
+}
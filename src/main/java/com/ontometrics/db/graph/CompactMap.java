@@ -0,0 +1,33 @@
+package com.ontometrics.db.graph;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Chooses how a map field is stored. A compact map is kept as two array
+ * properties of the owning node, its keys and its values in the same order,
+ * instead of as a node and a relationship per entry.
+ * <p>
+ * A map is stored compact, whether annotated or not, when all its keys, and
+ * all its values, are properties of one type: strings, boxed primitives, or
+ * values of the declared key or value type converted by the same converter.
+ * Maps of entities, of mixed types, or holding nulls get a node per entry.
+ * 
+ * @see EntityManager#MAP_KEYS
+ */
+@Target({ FIELD })
+@Retention(RUNTIME)
+public @interface CompactMap {
+
+	/**
+	 * True to fail writing the map if it can not be stored compact, false to
+	 * always give it a node per entry.
+	 * 
+	 * @return
+	 */
+	boolean value() default true;
+
+}
@@ -0,0 +1,28 @@
+package com.ontometrics.db.graph;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field holding a value object that is stored in the node of the
+ * entity owning it rather than in a node of its own. Each field of the value
+ * becomes a property named after both fields, e.g. <code>address.city</code>
+ * for the <code>city</code> of an embedded <code>address</code>, so the value
+ * costs no node, no relationship and no extra hop to read.
+ * <p>
+ * The value's class must not have an {@link Id}, and its fields must be
+ * properties, enums, collections of primitives or embedded values
+ * themselves. It is built with its no argument constructor on read. A value
+ * whose fields are all null reads back as null.
+ * 
+ * @author Rob
+ * 
+ */
+@Target({ FIELD })
+@Retention(RUNTIME)
+public @interface Embedded {
+
+}
@@ -0,0 +1,313 @@
+package com.ontometrics.db.graph;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ontometrics.utils.LruCache;
+
+/**
+ * A second level cache of {@link EntitySnapshot}s by primary key, shared by
+ * everyone using an {@link EntityManager} it is set on. Reads through
+ * {@link EntityRepository} that hit it skip the index lookup and the reading
+ * of properties; relationships are still read from the graph.
+ * <p>
+ * There is a region per node index, so per entity hierarchy, each bounded by
+ * a number of entries and optionally by their estimated size in bytes, least
+ * recently used entries going first. Entries can also be given a time to
+ * live. The entity manager drops the entries of every entity it writes once
+ * the write has committed, and the repository those it destroys.
+ * <p>
+ * A region spreads its entries over stripes by the hash of their key, as
+ * {@link NodeIdCache} does, each holding an equal share of the region's
+ * bounds, so threads reading different entities seldom wait on each other.
+ * Every stripe counts the entries dropped from it, so a snapshot taken while
+ * a write committed is not put in the cache after the write dropped the
+ * entry: take the {@link #getStamp(Class, Object)} before reading the node,
+ * and put the snapshot with {@link #put(Class, Object, EntitySnapshot, long)}.
+ * <p>
+ * Bounds apply to regions created after they are set, so set them before the
+ * cache is used.
+ *
+ * @author Rob
+ *
+ * @see EntityManager#setCache(EntityCache)
+ */
+public class EntityCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	private static final int STRIPES = 16;
+
+	private final ConcurrentMap<String, Region> regions = new ConcurrentHashMap<String, Region>();
+
+	private final ConcurrentMap<String, Integer> regionMaxEntries = new ConcurrentHashMap<String, Integer>();
+
+	private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+	private volatile long maxBytes = Long.MAX_VALUE;
+
+	/**
+	 * 0 for entries that do not expire.
+	 */
+	private volatile long timeToLiveMillis = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong expirations = new AtomicLong();
+
+	private static final LruCache.Weigher<EntitySnapshot> SNAPSHOT_SIZE = new LruCache.Weigher<EntitySnapshot>() {
+		public long weigh(EntitySnapshot snapshot) {
+			return snapshot.getEstimatedBytes();
+		}
+	};
+
+	/**
+	 * @param entityClass
+	 * @param primaryKey
+	 * @return the snapshot of the entity with the key, or null
+	 */
+	public EntitySnapshot get(Class<?> entityClass, Object primaryKey) {
+		Region region = regions.get(EntityManager.nodeIndexName(entityClass));
+		EntitySnapshot snapshot = region == null ? null : region.stripe(primaryKey).get(primaryKey);
+		if (snapshot != null && timeToLiveMillis > 0
+				&& System.currentTimeMillis() - snapshot.getCreatedMillis() > timeToLiveMillis) {
+			region.stripe(primaryKey).remove(primaryKey);
+			expirations.incrementAndGet();
+			snapshot = null;
+		}
+		if (snapshot == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Puts the snapshot whatever has been dropped meanwhile, for when nothing
+	 * else can be writing the entity.
+	 * 
+	 * @param entityClass
+	 * @param primaryKey
+	 * @param snapshot
+	 * @see #put(Class, Object, EntitySnapshot, long)
+	 */
+	public void put(Class<?> entityClass, Object primaryKey, EntitySnapshot snapshot) {
+		region(EntityManager.nodeIndexName(entityClass)).stripe(primaryKey).put(primaryKey, snapshot);
+	}
+
+	/**
+	 * @param entityClass
+	 * @param primaryKey
+	 * @return the number of entries dropped so far from the part of the cache
+	 *         the key is in, to be taken before reading the snapshot to put
+	 */
+	public long getStamp(Class<?> entityClass, Object primaryKey) {
+		Region region = region(EntityManager.nodeIndexName(entityClass));
+		return region.stamp(region.index(primaryKey));
+	}
+
+	/**
+	 * Puts the snapshot unless an entry has been dropped, by a write or
+	 * {@link #clear()}, from the part of the cache the key is in since the
+	 * stamp was taken, as the snapshot may then be older than the write.
+	 * 
+	 * @param entityClass
+	 * @param primaryKey
+	 * @param snapshot
+	 * @param stamp
+	 *            from {@link #getStamp(Class, Object)}, taken before the
+	 *            snapshot
+	 * @return true if the snapshot was put
+	 */
+	public boolean put(Class<?> entityClass, Object primaryKey, EntitySnapshot snapshot, long stamp) {
+		Region region = region(EntityManager.nodeIndexName(entityClass));
+		int index = region.index(primaryKey);
+		LruCache<Object, EntitySnapshot> stripe = region.stripes[index];
+		synchronized (stripe) {
+			if (region.stamps[index] != stamp) {
+				return false;
+			}
+			stripe.put(primaryKey, snapshot);
+			return true;
+		}
+	}
+
+	/**
+	 * Drops the entry for the key.
+	 *
+	 * @param entityClass
+	 * @param primaryKey
+	 */
+	public void invalidate(Class<?> entityClass, Object primaryKey) {
+		invalidate(EntityManager.nodeIndexName(entityClass), primaryKey);
+	}
+
+	void invalidate(String indexName, Object primaryKey) {
+		Region region = regions.get(indexName);
+		if (region != null) {
+			region.drop(region.index(primaryKey), primaryKey);
+		}
+	}
+
+	public void clear() {
+		for (Region region : regions.values()) {
+			for (int i = 0; i < STRIPES; i++) {
+				region.drop(i, null);
+			}
+		}
+	}
+
+	public CacheStatistics getStatistics() {
+		long evictions = 0;
+		long size = 0;
+		for (Region region : regions.values()) {
+			for (LruCache<Object, EntitySnapshot> stripe : region.stripes) {
+				evictions += stripe.getEvictions();
+				size += stripe.size();
+			}
+		}
+		return new CacheStatistics(hits.get(), misses.get(), evictions, expirations.get(), size);
+	}
+
+	private Region region(String indexName) {
+		Region region = regions.get(indexName);
+		if (region == null) {
+			Integer max = regionMaxEntries.get(indexName);
+			region = new Region(max == null ? maxEntries : max, maxBytes);
+			Region existing = regions.putIfAbsent(indexName, region);
+			if (existing != null) {
+				region = existing;
+			}
+		}
+		return region;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * @param maxEntries
+	 *            the most entries a region holds, rounded up to a multiple of
+	 *            the number of stripes
+	 */
+	public void setMaxEntries(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("max entries must be positive: " + maxEntries);
+		}
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param entityClass
+	 * @param maxEntries
+	 *            the most entries the region of the entity class holds
+	 */
+	public void setMaxEntries(Class<?> entityClass, int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("max entries must be positive: " + maxEntries);
+		}
+		regionMaxEntries.put(EntityManager.nodeIndexName(entityClass), maxEntries);
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @param maxBytes
+	 *            the most the estimated size of the entries in a region may
+	 *            add up to
+	 */
+	public void setMaxBytes(long maxBytes) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("max bytes must be positive: " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	public long getTimeToLiveMillis() {
+		return timeToLiveMillis;
+	}
+
+	/**
+	 * @param timeToLiveMillis
+	 *            how long an entry is used after it was taken, 0 for ever
+	 */
+	public void setTimeToLiveMillis(long timeToLiveMillis) {
+		if (timeToLiveMillis < 0) {
+			throw new IllegalArgumentException("time to live cannot be negative: " + timeToLiveMillis);
+		}
+		this.timeToLiveMillis = timeToLiveMillis;
+	}
+
+	/**
+	 * The entries of a node index, spread over stripes.
+	 */
+	private static class Region {
+
+		private final LruCache<Object, EntitySnapshot>[] stripes;
+
+		/**
+		 * Entries dropped by stripe, guarded by the stripe.
+		 */
+		private final long[] stamps = new long[STRIPES];
+
+		Region(int maxEntries, long maxBytes) {
+			stripes = newStripes(STRIPES);
+			int stripeEntries = (maxEntries + STRIPES - 1) / STRIPES;
+			long stripeBytes = maxBytes == Long.MAX_VALUE ? maxBytes : (maxBytes + STRIPES - 1) / STRIPES;
+			for (int i = 0; i < STRIPES; i++) {
+				stripes[i] = new LruCache<Object, EntitySnapshot>(stripeEntries, stripeBytes,
+						maxBytes == Long.MAX_VALUE ? null : SNAPSHOT_SIZE);
+			}
+		}
+
+		/**
+		 * An array of a generic type cannot be created as such, but nothing
+		 * but caches of that type are put into this one.
+		 */
+		@SuppressWarnings("unchecked")
+		private static <K, V> LruCache<K, V>[] newStripes(int count) {
+			return (LruCache<K, V>[]) new LruCache<?, ?>[count];
+		}
+
+		int index(Object primaryKey) {
+			int hash = primaryKey.hashCode();
+			return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+		}
+
+		LruCache<Object, EntitySnapshot> stripe(Object primaryKey) {
+			return stripes[index(primaryKey)];
+		}
+
+		long stamp(int index) {
+			synchronized (stripes[index]) {
+				return stamps[index];
+			}
+		}
+
+		/**
+		 * @param index
+		 * @param primaryKey
+		 *            null to drop every entry of the stripe
+		 */
+		void drop(int index, Object primaryKey) {
+			LruCache<Object, EntitySnapshot> stripe = stripes[index];
+			synchronized (stripe) {
+				stamps[index]++;
+				if (primaryKey == null) {
+					stripe.clear();
+				} else {
+					stripe.remove(primaryKey);
+				}
+			}
+		}
+
+	}
+
+}
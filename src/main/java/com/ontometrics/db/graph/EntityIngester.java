@@ -0,0 +1,382 @@
+package com.ontometrics.db.graph;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.index.BatchInserterIndex;
+import org.neo4j.graphdb.index.BatchInserterIndexProvider;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.index.impl.lucene.LuceneBatchInserterIndexProvider;
+import org.neo4j.kernel.impl.batchinsert.BatchInserter;
+import org.neo4j.kernel.impl.batchinsert.BatchInserterImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ontometrics.db.graph.conversion.ConverterRegistry;
+import com.ontometrics.db.graph.conversion.TypeRegistry;
+import com.ontometrics.db.graph.metadata.EntityMetadata;
+import com.ontometrics.db.graph.metadata.FieldMetadata;
+import com.ontometrics.utils.ArrayUtils;
+
+/**
+ * Writes entities straight into the store files through neo4j's
+ * {@link BatchInserter}, without transactions. Meant for initial loads and
+ * rebuilds where going through {@link EntityManager#create(Object)} would
+ * take too long.
+ * <p>
+ * The graph that comes out is the same as the one {@link EntityManager}
+ * writes: the same properties, embedded values, relationships, enum nodes,
+ * compact maps and map entry nodes, and the same primary key and
+ * {@link Index} entries, in the indexes of the default
+ * {@link IndexPartitioning#ROOT_TYPE}. Entities that are already in the
+ * store, or were ingested earlier in this session, are linked to and not
+ * written again.
+ * <p>
+ * Nothing else may have the store open while ingesting, and nothing is
+ * durable until {@link #shutdown()} has been called. An ingester is not safe
+ * for use by more than one thread.
+ *
+ * @see EntityManagerFactory#getIngester()
+ */
+public class EntityIngester {
+
+	private static final Logger log = LoggerFactory.getLogger(EntityIngester.class);
+
+	private static final Map<String, String> EXACT = MapUtil.stringMap("type", "exact");
+
+	private static final RelationshipType KEY_TYPE = DynamicRelationshipType.withName("key");
+
+	private static final RelationshipType VALUE_TYPE = DynamicRelationshipType.withName("value");
+
+	private final BatchInserter inserter;
+
+	private final BatchInserterIndexProvider indexProvider;
+
+	private final Map<String, BatchInserterIndex> indexes = new HashMap<String, BatchInserterIndex>();
+
+	/**
+	 * Node ids of everything written by primary key, by index name. The batch
+	 * indexes only see their own additions after a flush, so we keep these
+	 * ourselves.
+	 */
+	private final Map<String, Map<Object, Long>> primaryKeyNodes = new HashMap<String, Map<Object, Long>>();
+
+	private final Map<Enum<?>, Long> enumNodes = new HashMap<Enum<?>, Long>();
+
+	/**
+	 * The objects written by the current call, so shared references and
+	 * cycles without a primary key are only written once.
+	 */
+	private Map<Object, Long> writtenObjects = new IdentityHashMap<Object, Long>();
+
+	private int batchSize = EntityManager.DEFAULT_BATCH_SIZE;
+
+	private ConverterRegistry converters = TypeRegistry.getDefault();
+
+	/**
+	 * Opens the store in the given directory for batch insertion.
+	 *
+	 * @param storeDir
+	 */
+	public EntityIngester(String storeDir) {
+		this(new BatchInserterImpl(storeDir));
+	}
+
+	private EntityIngester(BatchInserter inserter) {
+		this.inserter = inserter;
+		this.indexProvider = new LuceneBatchInserterIndexProvider(inserter);
+	}
+
+	/**
+	 * Writes the entity and everything it references.
+	 *
+	 * @param entity
+	 * @return the id of the entity's node
+	 */
+	public long ingest(Object entity) {
+		writtenObjects = new IdentityHashMap<Object, Long>();
+		return writeNode(entity);
+	}
+
+	/**
+	 * Writes all the given entities.
+	 *
+	 * @param entities
+	 * @return the number of entities written
+	 */
+	public long ingestAll(Iterable<?> entities) {
+		return ingestAll(entities, null);
+	}
+
+	/**
+	 * Writes all the given entities, telling the listener every
+	 * {@link #getBatchSize()} entities how far we got.
+	 *
+	 * @param entities
+	 * @param listener
+	 *            may be null
+	 * @return the number of entities written
+	 */
+	public long ingestAll(Iterable<?> entities, BatchListener listener) {
+		long total = 0;
+		int chunk = 0;
+		int written = 0;
+		long start = System.nanoTime();
+		for (Object entity : entities) {
+			ingest(entity);
+			total++;
+			if (++written == batchSize) {
+				chunkDone(listener, ++chunk, written, total, start);
+				written = 0;
+				start = System.nanoTime();
+			}
+		}
+		if (written > 0) {
+			chunkDone(listener, ++chunk, written, total, start);
+		}
+		return total;
+	}
+
+	private void chunkDone(BatchListener listener, int chunk, int written, long total, long start) {
+		long millis = (System.nanoTime() - start) / 1000000;
+		log.debug("ingested chunk {} of {} entities in {} ms", new Object[] { chunk, written, millis });
+		if (listener != null) {
+			listener.chunkCommitted(chunk, written, total, millis);
+		}
+	}
+
+	/**
+	 * Flushes the indexes and closes the store. Has to be called before the
+	 * store is opened as a database.
+	 */
+	public void shutdown() {
+		indexProvider.shutdown();
+		inserter.shutdown();
+	}
+
+	private long writeNode(Object entity) {
+		EntityMetadata metadata = EntityMetadata.forClass(entity.getClass());
+		long nodeId = inserter.createNode(Collections.<String, Object> emptyMap());
+		writtenObjects.put(entity, nodeId);
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		Map<String, Object> indexEntries = new HashMap<String, Object>();
+		for (FieldMetadata field : metadata.getPersistentFields()) {
+			Object value = field.getValue(entity);
+			if (value == null) {
+				if (!field.isPrimaryKey()) {
+					continue;
+				}
+				if (!field.isGeneratedId()) {
+					throw new IllegalArgumentException("Primary key cannot be null, field: " + field.getName());
+				}
+				if (nodeId == 0) {
+					throw new IllegalArgumentException("cannot assign id w/ value zero");
+				}
+				value = Long.valueOf(nodeId);
+				field.setValue(entity, value);
+			}
+			if (field.isPrimaryKey()) {
+				indexEntries.put(EntityManager.PRIMARY_KEY, value);
+				properties.put(EntityManager.TYPE_PROPERTY, entity.getClass().getName());
+				primaryKeyNodes(EntityManager.nodeIndexName(entity.getClass())).put(value, nodeId);
+			}
+			if (field.isEmbedded()) {
+				EntityManager.flatten(field.getName() + ".", value, properties, converters);
+				continue;
+			}
+			Object[] compact = value instanceof Map ? EntityManager.compactMap(field, (Map<?, ?>) value, converters)
+					: null;
+			List<Long> relationships;
+			if (compact != null) {
+				properties.put(field.getName() + EntityManager.MAP_KEYS, compact[0]);
+				properties.put(field.getName() + EntityManager.MAP_VALUES, compact[1]);
+				relationships = Collections.emptyList();
+			} else {
+				relationships = writeValue(nodeId, properties, field.getName(), field.getRelationshipType(), value);
+			}
+			if (field.isIndexed()) {
+				if (properties.containsKey(field.getName())) {
+					indexEntries.put(field.getIndexKey(), value);
+				} else {
+					Object indexValue = field.getIndexValue(entity);
+					if (indexValue != null) {
+						BatchInserterIndex index = relationshipIndex(entity.getClass(), field.getName());
+						for (Long relationship : relationships) {
+							index.add(relationship, MapUtil.map(field.getIndexKey(), indexValue));
+						}
+					}
+				}
+			}
+		}
+		inserter.setNodeProperties(nodeId, properties);
+		if (!indexEntries.isEmpty()) {
+			nodeIndex(entity.getClass()).add(nodeId, indexEntries);
+		}
+		return nodeId;
+	}
+
+	/**
+	 * Same rules as EntityManager's setProperty: primitives and converted
+	 * values become properties, everything else relationships.
+	 *
+	 * @return the ids of the relationships that were created
+	 */
+	private List<Long> writeValue(long nodeId, Map<String, Object> properties, String name, RelationshipType type,
+			Object value) {
+		Object property = EntityManager.toPropertyValue(value, converters);
+		if (property != null) {
+			properties.put(name, property);
+			return Collections.emptyList();
+		}
+		List<Long> relationships = new ArrayList<Long>();
+		if (value instanceof Map) {
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				long entryId = inserter.createNode(Collections.<String, Object> emptyMap());
+				Map<String, Object> entryProperties = new HashMap<String, Object>();
+				writeValue(entryId, entryProperties, "key", KEY_TYPE, entry.getKey());
+				writeValue(entryId, entryProperties, "value", VALUE_TYPE, entry.getValue());
+				inserter.setNodeProperties(entryId, entryProperties);
+				relationships.add(inserter.createRelationship(nodeId, entryId, type,
+						MapUtil.map(EntityManager.TYPE_PROPERTY, entry.getValue().getClass().getName())));
+			}
+		} else if (value.getClass().isEnum()) {
+			relationships.add(inserter.createRelationship(nodeId, enumNode((Enum<?>) value), type,
+					MapUtil.map(EntityManager.TYPE_PROPERTY, value.getClass().getName())));
+		} else if (value instanceof Collection) {
+			@SuppressWarnings("unchecked")
+			Collection<Object> collection = (Collection<Object>) value;
+			if (!collection.isEmpty() && EntityManager.isCollectionOfPrimitives(collection)) {
+				properties.put(name, ArrayUtils.toPrimitives(collection));
+			} else {
+				Set<Long> linked = new HashSet<Long>();
+				for (Object element : collection) {
+					long endId = referencedNode(element);
+					if (linked.add(endId)) {
+						relationships.add(inserter.createRelationship(nodeId, endId, type,
+								MapUtil.map(EntityManager.TYPE_PROPERTY, element.getClass().getName())));
+					}
+				}
+			}
+		} else {
+			relationships.add(inserter.createRelationship(nodeId, referencedNode(value), type,
+					MapUtil.map(EntityManager.TYPE_PROPERTY, value.getClass().getName())));
+		}
+		return relationships;
+	}
+
+	/**
+	 * @param value
+	 * @return the node of an object already written or in the store, or the
+	 *         node it has just been written to
+	 */
+	private long referencedNode(Object value) {
+		Long nodeId = writtenObjects.get(value);
+		if (nodeId != null) {
+			return nodeId;
+		}
+		Object primaryKey = EntityMetadata.forClass(value.getClass()).getPrimaryKeyValue(value);
+		if (primaryKey != null) {
+			Map<Object, Long> nodes = primaryKeyNodes(EntityManager.nodeIndexName(value.getClass()));
+			nodeId = nodes.get(primaryKey);
+			if (nodeId == null) {
+				nodeId = nodeIndex(value.getClass()).get(EntityManager.PRIMARY_KEY, primaryKey).getSingle();
+			}
+			if (nodeId != null) {
+				log.debug("linking to existing node {} for {}", nodeId, primaryKey);
+				nodes.put(primaryKey, nodeId);
+				writtenObjects.put(value, nodeId);
+				return nodeId;
+			}
+		}
+		return writeNode(value);
+	}
+
+	private long enumNode(Enum<?> value) {
+		Long nodeId = enumNodes.get(value);
+		if (nodeId == null) {
+			BatchInserterIndex index = nodeIndex(value.getClass());
+			nodeId = index.get(EntityManager.PRIMARY_KEY, value.name()).getSingle();
+			if (nodeId == null) {
+				nodeId = inserter.createNode(MapUtil.map("name", value.name(), "ordinal", value.ordinal(),
+						EntityManager.TYPE_PROPERTY, value.getClass().getName()));
+				index.add(nodeId, MapUtil.map(EntityManager.PRIMARY_KEY, value.name()));
+			}
+			enumNodes.put(value, nodeId);
+		}
+		return nodeId;
+	}
+
+	private Map<Object, Long> primaryKeyNodes(String indexName) {
+		Map<Object, Long> nodes = primaryKeyNodes.get(indexName);
+		if (nodes == null) {
+			nodes = new HashMap<Object, Long>();
+			primaryKeyNodes.put(indexName, nodes);
+		}
+		return nodes;
+	}
+
+	private BatchInserterIndex nodeIndex(Class<?> aClass) {
+		String name = EntityManager.nodeIndexName(aClass);
+		BatchInserterIndex index = indexes.get(name);
+		if (index == null) {
+			index = indexProvider.nodeIndex(name, EXACT);
+			indexes.put(name, index);
+		}
+		return index;
+	}
+
+	private BatchInserterIndex relationshipIndex(Class<?> aClass, String fieldName) {
+		String name = EntityManager.relationshipIndexName(aClass, fieldName);
+		// relationship indexes share the name space with node indexes in the
+		// map, so tell them apart by a prefix that is not a valid class name
+		BatchInserterIndex index = indexes.get("-" + name);
+		if (index == null) {
+			index = indexProvider.relationshipIndex(name, EXACT);
+			indexes.put("-" + name, index);
+		}
+		return index;
+	}
+
+	public ConverterRegistry getConverterRegistry() {
+		return converters;
+	}
+
+	/**
+	 * @param converters
+	 *            the converters to store values with, instead of the default
+	 *            ones, which should be those the entity managers reading the
+	 *            store use
+	 */
+	public void setConverterRegistry(ConverterRegistry converters) {
+		if (converters == null) {
+			throw new IllegalArgumentException("converter registry cannot be null");
+		}
+		this.converters = converters;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            how many entities are ingested between progress reports
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batch size must be positive: " + batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
+}
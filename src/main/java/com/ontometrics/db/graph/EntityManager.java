@@ -1,17 +1,24 @@
 package com.ontometrics.db.graph;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.DynamicRelationshipType;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.Transaction;
@@ -20,34 +27,129 @@ import org.neo4j.kernel.EmbeddedGraphDatabase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ontometrics.db.graph.WriteContext.PendingCollection;
+import com.ontometrics.db.graph.conversion.ConverterRegistry;
+import com.ontometrics.db.graph.conversion.LongConverter;
 import com.ontometrics.db.graph.conversion.TypeConverter;
 import com.ontometrics.db.graph.conversion.TypeRegistry;
+import com.ontometrics.db.graph.lazy.Lazy;
+import com.ontometrics.db.graph.lazy.LazyReferences;
+import com.ontometrics.db.graph.metadata.EntityMetadata;
+import com.ontometrics.db.graph.metadata.FieldMetadata;
+import com.ontometrics.db.graph.metadata.FieldMetadata.Kind;
 import com.ontometrics.utils.ArrayUtils;
+import com.ontometrics.utils.PrimitiveArrayList;
 
 /**
  * Means of getting access to a specific database.
+ * <p>
+ * An entity manager is safe for use by many threads at once, so one instance
+ * can serve a whole application. What a write learns as it goes is kept per
+ * thread, as are sessions, and what is shared between threads, the caches
+ * and index handles, is safe for concurrent use. Threads writing different
+ * entities do not wait on each other here, only on the locks the database
+ * takes on the nodes they write. Settings are best made before the manager
+ * is shared.
  * 
  * @author Rob
  * 
  */
 public class EntityManager {
 
+	/**
+	 * The class name of what a relationship leads to, and of the entity of a
+	 * node in a primary key index.
+	 */
 	public static final String TYPE_PROPERTY = "_class";
 
 	private static final Logger log = LoggerFactory.getLogger(EntityManager.class);
 
 	public static final String PRIMARY_KEY = "PrimarykeyIndex";
 
-	private static Node referenceNode;
+	/**
+	 * Appended to the name of a map field for the property holding the keys
+	 * of a {@link CompactMap compact} map.
+	 */
+	public static final String MAP_KEYS = ".keys";
+
+	/**
+	 * Appended to the name of a map field for the property holding the values
+	 * of a {@link CompactMap compact} map, in the order of the keys.
+	 */
+	public static final String MAP_VALUES = ".values";
+
+	private static final RelationshipType KEY_TYPE = DynamicRelationshipType.withName("key");
 
-	private static Set<String> coreTypes;
+	private static final RelationshipType VALUE_TYPE = DynamicRelationshipType.withName("value");
+
+	/**
+	 * Removing this property from the reference node, which never has it,
+	 * write locks the node till the end of the transaction.
+	 */
+	private static final String ENUM_LOCK = "_enumLock";
+
+	/**
+	 * How many entities {@link #createAll(Iterable)} writes in one transaction
+	 * unless told otherwise.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/**
+	 * Collections with more elements than this are written in chunks.
+	 */
+	public static final int DEFAULT_LARGE_COLLECTION_THRESHOLD = 10000;
 
 	/**
 	 * The database we are using through this manager.
 	 */
-	private GraphDatabaseService database;
+	private volatile GraphDatabaseService database;
+
+	private volatile Node referenceNode;
+
+	/**
+	 * The reference node created last, by any manager.
+	 */
+	private static volatile Node lastReferenceNode;
+
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+	private volatile int largeCollectionThreshold = DEFAULT_LARGE_COLLECTION_THRESHOLD;
+
+	/**
+	 * The write each thread is carrying out, if any.
+	 */
+	private final ThreadLocal<WriteContext> writes = new ThreadLocal<WriteContext>();
+
+	/**
+	 * The session of each thread that has begun one.
+	 */
+	private final ThreadLocal<Session> sessions = new ThreadLocal<Session>();
+
+	/**
+	 * The second level cache, if there is one.
+	 */
+	private volatile EntityCache cache;
 
-	private Set<Long> updatedNodes = new HashSet<Long>();
+	/**
+	 * Node ids by primary key, if we keep them.
+	 */
+	private volatile NodeIdCache nodeIdCache = new NodeIdCache();
+
+	private volatile ConverterRegistry converters = TypeRegistry.getDefault();
+
+	private volatile IndexPartitioning indexPartitioning = IndexPartitioning.ROOT_TYPE;
+
+	/**
+	 * Index handles, so we only ask the database for them once.
+	 */
+	private final ConcurrentMap<Class<?>, Index<Node>> nodeIndexes = new ConcurrentHashMap<Class<?>, Index<Node>>();
+
+	private final ConcurrentMap<String, Index<Relationship>> relationshipIndexes = new ConcurrentHashMap<String, Index<Relationship>>();
+
+	/**
+	 * Node ids of the enum constants by ordinal, -1 where not known yet.
+	 */
+	private volatile ClassValue<AtomicLongArray> enumNodeIds = newEnumNodeIds();
 	
 	/**
 	 * Passed in on creation. This just wraps itself around the database and
@@ -58,11 +160,6 @@ public class EntityManager {
 	 */
 	public EntityManager(GraphDatabaseService database) {
 		this.database = database;
-		coreTypes = new HashSet<String>();
-		coreTypes.add(Object.class.getName());
-		coreTypes.add(Double.class.getName());
-		coreTypes.add(Long.class.getName());
-		coreTypes.add(Integer.class.getName());
 	}
 
 	/**
@@ -85,47 +182,368 @@ public class EntityManager {
 	 * @return the node that was built
 	 */
 	public Node create(Object entity) {
-		Transaction transaction = database.beginTx();
+		return create(entity, null);
+	}
+
+	/**
+	 * Persists the entity, writing the entities it refers to as far as the
+	 * given cascade goes instead of as far as its fields are annotated to.
+	 * 
+	 * @param entity
+	 * @param cascade
+	 *            for every relationship field, at any depth, null to go by
+	 *            the {@link Cascade} annotations
+	 * @return the node that was built
+	 */
+	public Node create(Object entity, CascadeType cascade) {
+		// a proxy's own fields are not the entity's
+		entity = LazyReferences.unwrap(entity);
+		WriteContext write = beginWrite(cascade);
 		try {
-			updatedNodes = new HashSet<Long>();
-			Node node = createNode(entity);
-			transaction.success();
+			Transaction transaction = database.beginTx();
+			Node node;
+			try {
+				node = createNode(entity);
+				transaction.success();
+			} finally {
+				transaction.finish();
+			}
+			endOperation(entity, node);
+			writePendingCollections();
 			return node;
 		} finally {
-			transaction.finish();
+			endWrite(write);
+		}
+	}
+
+	/**
+	 * Persists all the given entities, committing every
+	 * {@link #getBatchSize()} entities.
+	 * 
+	 * @param entities
+	 * @return the number of entities written
+	 * @see #createAll(Iterator, int, BatchListener)
+	 */
+	public long createAll(Iterable<?> entities) {
+		return createAll(entities.iterator(), batchSize, null);
+	}
+
+	/**
+	 * Persists all the given entities, committing every
+	 * {@link #getBatchSize()} entities and reporting each commit to the
+	 * listener.
+	 * 
+	 * @param entities
+	 * @param listener
+	 * @return the number of entities written
+	 */
+	public long createAll(Iterable<?> entities, BatchListener listener) {
+		return createAll(entities.iterator(), batchSize, listener);
+	}
+
+	/**
+	 * Provides a means of loading many entities without paying for a commit
+	 * per entity. Entities are taken from the iterator as they are written, so
+	 * the source does not have to be held in memory, and are grouped in
+	 * transactions of the given size. Nodes looked up by primary key are
+	 * remembered for the rest of the chunk.
+	 * <p>
+	 * If a chunk fails it is rolled back and the exception is thrown, the
+	 * chunks before it stay committed.
+	 * 
+	 * @param entities
+	 *            the entities to create
+	 * @param batchSize
+	 *            how many entities to write per transaction
+	 * @param listener
+	 *            told about every committed chunk, may be null
+	 * @return the number of entities written
+	 */
+	public long createAll(Iterator<?> entities, int batchSize, BatchListener listener) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batch size must be positive: " + batchSize);
+		}
+		WriteContext write = beginWrite();
+		try {
+			long total = 0;
+			int chunk = 0;
+			while (entities.hasNext()) {
+				long start = System.nanoTime();
+				int written = 0;
+				Transaction transaction = database.beginTx();
+				try {
+					write.startTransaction();
+					while (written < batchSize && entities.hasNext()) {
+						createNode(entities.next());
+						written++;
+					}
+					transaction.success();
+				} finally {
+					transaction.finish();
+				}
+				endOperation(null, null);
+				writePendingCollections();
+				total += written;
+				chunk++;
+				long millis = (System.nanoTime() - start) / 1000000;
+				log.debug("committed chunk {} of {} entities in {} ms", new Object[] { chunk, written, millis });
+				if (listener != null) {
+					listener.chunkCommitted(chunk, written, total, millis);
+				}
+			}
+			return total;
+		} finally {
+			endWrite(write);
+		}
+	}
+
+	/**
+	 * Moves the index entries of entities written under another partitioning,
+	 * such as the {@link IndexPartitioning#SHARED} index of older stores,
+	 * into the indexes of the current one. The entities, which need a
+	 * primary key, are typically read through a manager still using the old
+	 * partitioning. Entities whose node cannot be found in the old index are
+	 * skipped, so a migration that was interrupted can be run again.
+	 * 
+	 * @param from
+	 *            the partitioning the entities were indexed under
+	 * @param entities
+	 *            the entities to move
+	 * @param listener
+	 *            told about every committed chunk, may be null
+	 * @return the number of entities moved
+	 */
+	public long migrateIndexes(IndexPartitioning from, Iterator<?> entities, BatchListener listener) {
+		long total = 0;
+		int chunk = 0;
+		while (entities.hasNext()) {
+			long start = System.nanoTime();
+			int moved = 0;
+			int read = 0;
+			Transaction transaction = database.beginTx();
+			try {
+				while (read < batchSize && entities.hasNext()) {
+					read++;
+					if (migrateIndexes(from, entities.next())) {
+						moved++;
+					}
+				}
+				transaction.success();
+			} finally {
+				transaction.finish();
+			}
+			total += moved;
+			chunk++;
+			long millis = (System.nanoTime() - start) / 1000000;
+			log.debug("migrated chunk {} of {} entities in {} ms", new Object[] { chunk, moved, millis });
+			if (listener != null) {
+				listener.chunkCommitted(chunk, moved, total, millis);
+			}
+		}
+		return total;
+	}
+
+	private boolean migrateIndexes(IndexPartitioning from, Object entity) {
+		Class<?> aClass = entity.getClass();
+		EntityMetadata metadata = EntityMetadata.forClass(aClass);
+		Object primaryKey = metadata.getPrimaryKeyValue(entity);
+		if (primaryKey == null) {
+			throw new IllegalArgumentException("cannot migrate an entity without a primary key: " + entity);
+		}
+		String oldName = from.nodeIndexName(aClass);
+		Index<Node> index = getNodeIndex(aClass);
+		if (oldName.equals(index.getName())) {
+			return false;
+		}
+		Index<Node> oldIndex = database.index().forNodes(oldName);
+		Node node = oldIndex.get(PRIMARY_KEY, primaryKey).getSingle();
+		if (node == null) {
+			log.debug("no node for {} in index {}", primaryKey, oldName);
+			return false;
+		}
+		oldIndex.remove(node, PRIMARY_KEY);
+		index.add(node, PRIMARY_KEY, primaryKey);
+		node.setProperty(TYPE_PROPERTY, aClass.getName());
+		for (FieldMetadata field : metadata.getPersistentFields()) {
+			Object value = field.getValue(entity);
+			if (!field.isIndexed() || value == null) {
+				continue;
+			}
+			if (node.hasProperty(field.getName())) {
+				oldIndex.remove(node, field.getIndexKey());
+				index.add(node, field.getIndexKey(), value);
+			} else {
+				Index<Relationship> oldRelationshipIndex = database.index().forRelationships(
+						oldName + "." + field.getName());
+				Object indexValue = field.getIndexValue(entity);
+				for (Relationship relationship : node.getRelationships(field.getRelationshipType(), Direction.OUTGOING)) {
+					oldRelationshipIndex.remove(relationship, field.getIndexKey());
+					getRelationshipIndex(aClass, field.getName()).add(relationship, field.getIndexKey(), indexValue);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Starts a write for the calling thread, within the one it is carrying
+	 * out if it is, say from a {@link BatchListener}.
+	 * 
+	 * @return the new write, to be passed to {@link #endWrite(WriteContext)}
+	 */
+	private WriteContext beginWrite() {
+		return beginWrite(null);
+	}
+
+	/**
+	 * @param cascade
+	 *            the cascade of every relationship field in the write, or
+	 *            null for the one each is annotated with
+	 */
+	private WriteContext beginWrite(CascadeType cascade) {
+		WriteContext write = new WriteContext(writes.get(), cascade);
+		writes.set(write);
+		return write;
+	}
+
+	private void endWrite(WriteContext write) {
+		if (write.enclosing == null) {
+			writes.remove();
+		} else {
+			writes.set(write.enclosing);
+		}
+	}
+
+	/**
+	 * @return the write the calling thread is carrying out
+	 */
+	private WriteContext write() {
+		return writes.get();
+	}
+
+	/**
+	 * @param field
+	 * @return how far the current write goes into what the field refers to
+	 */
+	private CascadeType cascadeOf(FieldMetadata field) {
+		CascadeType cascade = write().cascade;
+		return cascade != null ? cascade : field.getCascadeType();
+	}
+
+	/**
+	 * Hands what the last transaction of the write found out on to the
+	 * session, if there is one, and the node id cache, and drops the cache
+	 * entries of everything it wrote. Only to be called once the transaction
+	 * has committed.
+	 * 
+	 * @param entity
+	 *            the entity that was written, may be null
+	 * @param node
+	 *            its node
+	 */
+	private void endOperation(Object entity, Node node) {
+		WriteContext write = write();
+		Session session = sessions.get();
+		EntityCache cache = this.cache;
+		NodeIdCache nodeIdCache = this.nodeIdCache;
+		for (Map.Entry<String, Map<Object, Node>> index : write.primaryKeyNodes.entrySet()) {
+			for (Map.Entry<Object, Node> key : index.getValue().entrySet()) {
+				// every entity we looked up by key has been written over
+				if (cache != null) {
+					cache.invalidate(index.getKey(), key.getKey());
+				}
+				if (key.getValue() == null) {
+					continue;
+				}
+				if (session != null) {
+					session.putNode(index.getKey(), key.getKey(), key.getValue());
+				}
+				if (nodeIdCache != null) {
+					nodeIdCache.put(index.getKey(), key.getKey(), key.getValue().getId());
+				}
+			}
+		}
+		if (entity != null) {
+			Object primaryKey = EntityMetadata.forClass(entity.getClass()).getPrimaryKeyValue(entity);
+			if (cache != null && primaryKey != null) {
+				cache.invalidate(entity.getClass(), primaryKey);
+			}
+			if (session != null) {
+				session.putEntity(node, entity);
+			}
+		}
+		if (session != null && session.isTrackingChanges()) {
+			for (Object written : write.writtenEntities) {
+				session.takeState(written);
+			}
+		}
+		for (Map.Entry<Enum<?>, Node> enumNode : write.enumNodes.entrySet()) {
+			Enum<?> value = enumNode.getKey();
+			enumNodeIds.get(value.getDeclaringClass()).set(value.ordinal(), enumNode.getValue().getId());
 		}
 	}
 
+	/**
+	 * Starts a session for the calling thread. Until it is ended, reads
+	 * through this manager return the same instance for the same node, nodes
+	 * found by primary key are remembered across operations, and updates of
+	 * entities read or written in the session only write the fields that
+	 * have changed.
+	 * 
+	 * @return the new session, replacing any the thread had
+	 */
+	public Session beginSession() {
+		Session session = new Session(converters);
+		sessions.set(session);
+		return session;
+	}
+
+	/**
+	 * Ends the session of the calling thread, if it has one.
+	 */
+	public void endSession() {
+		sessions.remove();
+	}
+
+	/**
+	 * @return the session of the calling thread, or null
+	 */
+	public Session getSession() {
+		return sessions.get();
+	}
+
 	private Node createNode(Object entity) {
 		Node node = database.createNode();
-		updatedNodes.add(node.getId());
-		Class<?> clazz = entity.getClass();
-		while (clazz != null && !isCoreType(clazz)) {
-			log.debug("processing class: {}", clazz);
-			for (Field field : clazz.getDeclaredFields()) {
-				log.debug("processing field: {}", field.getName());
-				field.setAccessible(true);
-				if (!isTransient(field) && !isLogger(field)) {
-					Object value = getFieldValue(entity, field);
-					if (value == null) {
-						if (isThePrimaryKey(field)) {
-							if(field.isAnnotationPresent(GeneratedId.class)){
-								value = assignId(entity, field, node.getId());
-							}else{
-								throw new IllegalArgumentException("Primary key cannot be null, field: " + field.getName());
-							}
-						} else {
-							continue;
-						}
-					}
-					setProperty(node, field.getName(), value);
-					updateIndex(node, entity, field);
-					if (isThePrimaryKey(field)) {
-						getNodeIndex(entity.getClass()).add(node, PRIMARY_KEY, value);
+		write().updatedNodes.add(node.getId());
+		write().writtenEntities.add(entity);
+		// before the fields, so references back to the entity find it
+		write().writtenNodes.put(entity, node);
+		EntityMetadata metadata = EntityMetadata.forClass(entity.getClass());
+		log.debug("processing class: {}", metadata.getEntityClass());
+		for (FieldMetadata field : metadata.getPersistentFields()) {
+			log.debug("processing field: {}", field.getName());
+			Object value = field.getValue(entity);
+			if (value == null) {
+				if (field.isPrimaryKey()) {
+					if (field.isGeneratedId()) {
+						value = assignId(entity, field, node.getId());
+					} else {
+						throw new IllegalArgumentException("Primary key cannot be null, field: " + field.getName());
 					}
+				} else {
+					continue;
 				}
 			}
-			clazz = clazz.getSuperclass();
+			if (deferLargeCollection(node, entity, field, value)) {
+				continue;
+			}
+			setProperty(node, field, value);
+			updateIndex(node, entity, field);
+			if (field.isPrimaryKey()) {
+				getNodeIndex(entity.getClass()).add(node, PRIMARY_KEY, value);
+				node.setProperty(TYPE_PROPERTY, entity.getClass().getName());
+				write().primaryKeyNodes(nodeIndexName(entity.getClass())).put(value, node);
+			}
 		}
 		return node;
 	}
@@ -136,118 +554,254 @@ public class EntityManager {
 	 * @param entity
 	 * @param field
 	 */
-	private void updateIndex(Node node, Object entity, Field field) {
-		Object value = getFieldValue(entity, field);
+	private void updateIndex(Node node, Object entity, FieldMetadata field) {
 		//index the entity using the key/value in the index annotation
-		if (field.isAnnotationPresent(com.ontometrics.db.graph.Index.class)) {
-			String indexKey = field.getAnnotation(com.ontometrics.db.graph.Index.class).key();
-			String indexValueName = field.getAnnotation(com.ontometrics.db.graph.Index.class).value();
-			Object indexValue = null;
-			if (indexKey.equals("n/a")) {
-				indexKey = field.getName();
-			}
-			if (!indexValueName.equals("n/a")) {
-				Field valuefield = getFieldWithName(entity, indexValueName);
-				if(valuefield != null){
-					indexValue = getFieldValue(entity, valuefield);
-				}else{
-					try {
-						indexValue = entity.getClass().getMethod(indexValueName).invoke(entity);
-					} catch (Exception e) {
-						log.error("indexValueName not a field or method", e);
-					}
-				}
-			}
-			addIndex(entity.getClass(), node, field.getName(), value, indexKey, indexValue);
+		if (field.isIndexed()) {
+			Object value = field.getValue(entity);
+			Object indexValue = field.getIndexValue(entity);
+			addIndex(entity.getClass(), node, field.getName(), value, field.getIndexKey(), indexValue);
 		}
 	}
 
-	private Object assignId(Object entity, Field field, long id) {
+	private Object assignId(Object entity, FieldMetadata field, long id) {
 		if(id == 0){
 			throw new IllegalArgumentException("cannot assign id w/ value zero");
 		}
-		try {
-			field.set(entity, Long.valueOf(id));
-		} catch (IllegalArgumentException e) {
-			throw e;
-		} catch (IllegalAccessException e) {
-			throw new IllegalArgumentException("cannot assign id: "+ e.getMessage());
-		}
-		
+		field.setValue(entity, Long.valueOf(id));
 		return Long.valueOf(id);
 	}
 
-	private boolean isLogger(Field field) {
-		if(field.getType().getName().contains("Logger")) {
-			log.debug("Ignoring Logger field");
-			return true;
+	/**
+	 * @param entity
+	 * @return the database index for the given entity's class
+	 */
+	public Index<Node> getNodeIndex(Class<?> aClass) {
+		Index<Node> index = nodeIndexes.get(aClass);
+		if (index == null) {
+			index = database.index().forNodes(indexPartitioning.nodeIndexName(aClass));
+			nodeIndexes.put(aClass, index);
 		}
-		return false;
+		return index;
+	}
+
+	public Index<Relationship> getRelationshipIndex(Class<?> aClass, String name) {
+		String indexName = indexPartitioning.nodeIndexName(aClass) + "." + name;
+		Index<Relationship> index = relationshipIndexes.get(indexName);
+		if (index == null) {
+			index = database.index().forRelationships(indexName);
+			relationshipIndexes.put(indexName, index);
+		}
+		return index;
 	}
 
 	/**
-	 * Provides access to the index for an entity.
+	 * The name of the node index of the class under the default
+	 * {@link IndexPartitioning#ROOT_TYPE} partitioning: that of the topmost
+	 * superclass short of {@link Object}, or of the enum for enum constants.
+	 * Whatever the partitioning, primary keys are unique within this name,
+	 * so it is also what the session, the cache and the lookups of an
+	 * operation tell keys apart by.
 	 * 
-	 * @param entity
-	 * @param name
-	 * @return field with the given name in the given entity
+	 * @param aClass
+	 * @return the name of the index
 	 */
-	private Field getFieldWithName(Object entity, String name) {
-		Class<?> clazz = entity.getClass();
-		while (clazz != null && !isCoreType(clazz)) {
-			log.debug("processing class: {}", clazz);
-			Field field = null;
-			try {
-				field = clazz.getDeclaredField(name);
-			} catch (SecurityException e) {
-			} catch (NoSuchFieldException e) {
+	static String nodeIndexName(Class<?> aClass) {
+		Class<?> rootClass = aClass;
+		while (rootClass.getSuperclass() != null && rootClass.getSuperclass() != Object.class
+				&& rootClass.getSuperclass() != Enum.class) {
+			rootClass = rootClass.getSuperclass();
+		}
+		return rootClass.getName();
+	}
+
+	static String relationshipIndexName(Class<?> aClass, String name) {
+		return nodeIndexName(aClass) + "." + name;
+	}
+
+	/**
+	 * Converts a value to what is stored in a node property: primitives as
+	 * they are, types with a converter through the converter.
+	 * 
+	 * @param value
+	 * @param converters
+	 * @return the property value, or null if the value has to be stored as a
+	 *         relationship
+	 */
+	static Object toPropertyValue(Object value, ConverterRegistry converters) {
+		if (isPrimitiveType(value) || ArrayUtils.isPropertyArray(value)) {
+			return value;
+		}
+		TypeConverter converter = converters.getConverter(value.getClass());
+		if (converter != null) {
+			return converter.convertToPrimitive(value);
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the value of a field, flattened into the node if it is
+	 * {@link Embedded}, as a compact map if it is a map that can be, otherwise
+	 * as {@link #setProperty(Node, String, RelationshipType, Object)}
+	 * does.
+	 * 
+	 * @param node
+	 * @param field
+	 * @param value
+	 */
+	private void setProperty(Node node, FieldMetadata field, Object value) {
+		if (field.isEmbedded()) {
+			writeEmbedded(node, field, value);
+			return;
+		}
+		if (field.getKind() == Kind.MAP || value instanceof Map) {
+			Object[] compact = value instanceof Map ? compactMap(field, (Map<?, ?>) value, converters) : null;
+			if (compact != null) {
+				deleteRelationships(node, field.getRelationshipType(), Direction.OUTGOING);
+				node.setProperty(field.getName() + MAP_KEYS, compact[0]);
+				node.setProperty(field.getName() + MAP_VALUES, compact[1]);
+				return;
 			}
-			if (field != null) {
-				return field;
+			if (node.hasProperty(field.getName() + MAP_KEYS)) {
+				node.removeProperty(field.getName() + MAP_KEYS);
+				node.removeProperty(field.getName() + MAP_VALUES);
 			}
-			clazz = clazz.getSuperclass();
 		}
-		return null;
+		setProperty(node, field.getName(), field.getRelationshipType(), value, cascadeOf(field));
 	}
 
 	/**
-	 * return the value of the given field in the given entity
+	 * Sets the properties of an embedded value, and removes those it had
+	 * before and does not have now.
 	 * 
-	 * @param entity
+	 * @param node
 	 * @param field
-	 * @return
+	 * @param value
 	 */
-	private Object getFieldValue(Object entity, Field field) {
-		Object value = null;
-		try {
-			field.setAccessible(true);
-			value = field.get(entity);
-		} catch (IllegalArgumentException e) {
-			log.error("Error getting the field value from " + entity, e);
-		} catch (IllegalAccessException e) {
-			log.error("Error getting the field value from " + entity, e);
+	private void writeEmbedded(Node node, FieldMetadata field, Object value) {
+		String prefix = field.getName() + ".";
+		Map<String, Object> properties = new HashMap<String, Object>();
+		if (value != null) {
+			flatten(prefix, value, properties, converters);
+		}
+		List<String> stale = new ArrayList<String>();
+		for (String key : node.getPropertyKeys()) {
+			if (key.startsWith(prefix) && !properties.containsKey(key)) {
+				stale.add(key);
+			}
+		}
+		for (String key : stale) {
+			node.removeProperty(key);
 		}
-		return value;
+		for (Map.Entry<String, Object> property : properties.entrySet()) {
+			node.setProperty(property.getKey(), property.getValue());
+		}
+		// left by storing the value in a node of its own, before it was embedded
+		deleteRelationships(node, field.getRelationshipType(), Direction.OUTGOING);
 	}
 
 	/**
-	 * @param entity
-	 * @return the database index for the given entity's class
+	 * Adds the properties an {@link Embedded} value is stored as.
+	 * 
+	 * @param prefix
+	 *            the name of the field holding the value and a dot
+	 * @param value
+	 * @param properties
+	 *            the properties to add to
+	 * @param converters
+	 * @throws IllegalArgumentException
+	 *             if the value has a primary key, or a field that can not be
+	 *             stored as a property
 	 */
-	public Index<Node> getNodeIndex(Class<?> aClass) {
-		Class<?> superClass = aClass;
-		while (superClass != null && !superClass.getName().equals(Object.class.getName())) {
-			superClass = superClass.getSuperclass();
+	static void flatten(String prefix, Object value, Map<String, Object> properties, ConverterRegistry converters) {
+		EntityMetadata metadata = EntityMetadata.forClass(value.getClass());
+		if (metadata.hasPrimaryKey()) {
+			throw new IllegalArgumentException("an entity with a primary key cannot be embedded: "
+					+ value.getClass().getName());
+		}
+		for (FieldMetadata field : metadata.getPersistentFields()) {
+			Object fieldValue = field.getValue(value);
+			if (fieldValue == null) {
+				continue;
+			}
+			String name = prefix + field.getName();
+			if (field.isEmbedded()) {
+				flatten(name + ".", fieldValue, properties, converters);
+				continue;
+			}
+			Object property;
+			if (fieldValue instanceof Enum) {
+				property = ((Enum<?>) fieldValue).name();
+			} else if (fieldValue instanceof Collection) {
+				@SuppressWarnings("unchecked")
+				Collection<Object> collection = (Collection<Object>) fieldValue;
+				if (collection.isEmpty()) {
+					continue;
+				}
+				property = isCollectionOfPrimitives(collection) ? ArrayUtils.toPrimitives(collection) : null;
+			} else {
+				property = toPropertyValue(fieldValue, converters);
+			}
+			if (property == null) {
+				throw new IllegalArgumentException("field cannot be embedded as a property: " + name);
+			}
+			properties.put(name, property);
 		}
-		return database.index().forNodes(superClass.getName());
 	}
 
-	public Index<Relationship> getRelationshipIndex(Class<?> aClass, String name) {
-		Class<?> superClass = aClass;
-		while (superClass != null && !superClass.getName().equals(Object.class.getName())) {
-			superClass = superClass.getSuperclass();
+	/**
+	 * Converts a map to the two arrays it is stored as when compact, see
+	 * {@link CompactMap}.
+	 * 
+	 * @param field
+	 * @param map
+	 * @param converters
+	 * @return the keys and the values, or null if the map gets a node per
+	 *         entry
+	 * @throws IllegalArgumentException
+	 *             if the field must be compact and the map can not be
+	 */
+	static Object[] compactMap(FieldMetadata field, Map<?, ?> map, ConverterRegistry converters) {
+		if (!field.isCompactMapAllowed() || map.isEmpty()) {
+			return null;
+		}
+		List<Object> keys = new ArrayList<Object>(map.size());
+		List<Object> values = new ArrayList<Object>(map.size());
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			Object key = compactElement(entry.getKey(), field.getTypeArgument(0), converters);
+			Object value = compactElement(entry.getValue(), field.getTypeArgument(1), converters);
+			if (key == null || value == null || (!keys.isEmpty() && (key.getClass() != keys.get(0).getClass()
+					|| value.getClass() != values.get(0).getClass()))) {
+				if (field.isCompactMapRequired()) {
+					throw new IllegalArgumentException("map cannot be stored compact, field: " + field.getName()
+							+ ", entry: " + entry);
+				}
+				return null;
+			}
+			keys.add(key);
+			values.add(value);
+		}
+		return new Object[] { ArrayUtils.toPrimitives(keys), ArrayUtils.toPrimitives(values) };
+	}
+
+	/**
+	 * @param element
+	 *            a key or value of a map
+	 * @param declaredType
+	 *            the declared type of the keys or values, or null
+	 * @param converters
+	 * @return the element as it is stored in a compact map, or null if it
+	 *         can not be
+	 */
+	private static Object compactElement(Object element, Class<?> declaredType, ConverterRegistry converters) {
+		if (element == null || isPrimitiveType(element)) {
+			return element;
+		}
+		TypeConverter converter = converters.getConverter(element.getClass());
+		// the declared type is all there is to find the converter by on read
+		if (converter == null || declaredType == null || converters.getConverter(declaredType) != converter) {
+			return null;
 		}
-		return database.index().forRelationships(superClass.getName() + "." + name);
+		return converter.convertToPrimitive(element);
 	}
 
 	/**
@@ -261,19 +815,22 @@ public class EntityManager {
 	 * @param node
 	 * @param name
 	 * @param value
+	 * @param cascade
+	 *            how far to write the entities referred to
 	 */
-	private void setProperty(Node node, final String name, Object value) {
+	private void setProperty(Node node, final String name, RelationshipType type, Object value, CascadeType cascade) {
 		
 		if (value == null) {
-			removeValueIfExists(node, name);
+			removeValueIfExists(node, name, type);
 			return; // we are not setting null values
 		}
-		if (isPrimitiveType(value)) {
+		if (isPrimitiveType(value) || ArrayUtils.isPropertyArray(value)) {
+			// the database copies arrays, so they can be handed over as they are
 			log.debug("set property with name '{}' and primitive type '{}'", name, value.getClass());
 			node.setProperty(name, value);
 			return;
 		}
-		TypeConverter converter = TypeRegistry.getConverter(value.getClass());
+		TypeConverter converter = converters.getConverter(value.getClass());
 		if (converter != null) {
 			log.debug("set property with name '{}' and type '{}' using converter '{}'",
 					new Object[] { name, value.getClass(), converter.getClass() });
@@ -282,17 +839,17 @@ public class EntityManager {
 			return;
 		}
 		
-		deleteRelationships(node, DynamicRelationshipType.withName(name), Direction.OUTGOING);
-		
 		if(Map.class.isAssignableFrom(value.getClass())){
+			deleteRelationships(node, type, Direction.OUTGOING);
 			@SuppressWarnings("unchecked")
 			Map<Object, Object> map = (Map<Object, Object>) value;
-			handleMapProperty(node, name, map);
+			handleMapProperty(node, type, map, cascade);
 			return;
 		}
 		
 		if(value.getClass().isEnum()){
-			handleEnumProperty(node, name, (Enum<?>) value);
+			deleteRelationships(node, type, Direction.OUTGOING);
+			handleEnumProperty(node, type, (Enum<?>) value);
 			return;
 		}
 		
@@ -300,14 +857,13 @@ public class EntityManager {
 			@SuppressWarnings("unchecked")
 			Collection<Object> collection = (Collection<Object>) value;
 			if(isCollectionOfPrimitives(collection) && !collection.isEmpty()){
+				deleteRelationships(node, type, Direction.OUTGOING);
 				node.setProperty(name, ArrayUtils.toPrimitives(collection));
 			}else{
-				for (Object object : collection) {
-					createRelationship(node, name, object);
-				}
+				linkRelationships(node, type, collection, cascade);
 			}
 		} else {
-			createRelationship(node, name, value);
+			createRelationship(node, type, value, cascade);
 		}
 
 	}
@@ -324,44 +880,203 @@ public class EntityManager {
 		Iterator<Relationship> iterator = node.getRelationships(type, direction).iterator();
 		while(iterator.hasNext()){
 			Relationship relationship = iterator.next();
-			relationship.delete();
+			deleteRelationship(relationship);
 		}
 	}
 
 	/**
-	 * save the Enum property as a relationship with a property to hold the enum class, and the end node has a name property
-	 * @param node
-	 * @param name
-	 * @param value
+	 * Deletes the relationship, and its end node too if that belonged to the
+	 * start node alone.
+	 * 
+	 * @param relationship
+	 * @see #isOwnedNode(Relationship)
 	 */
-	private void handleEnumProperty(Node node, String name, Enum<?> value) {
-		Node enumNode = getNodeIndex(value.getClass()).get(PRIMARY_KEY, value.name()).getSingle();
-		if (enumNode == null) {
-			enumNode = database.createNode();
-			setProperty(enumNode, "name", value.name());
-			setProperty(enumNode, "ordinal", value.ordinal());
-			getNodeIndex(value.getClass()).add(enumNode, PRIMARY_KEY, value.name());
+	private void deleteRelationship(Relationship relationship) {
+		if (!isOwnedNode(relationship)) {
+			relationship.delete();
+			return;
 		}
-		Relationship relationship = node.createRelationshipTo(enumNode, DynamicRelationshipType.withName(name));
-		relationship.setProperty(TYPE_PROPERTY, value.getClass().getName());
+		Node endNode = relationship.getEndNode();
+		Class<?> type = storedType(relationship);
+		relationship.delete();
+		deleteOwnedNode(endNode, isMapEntry(endNode) ? null : type);
 	}
 
 	/**
-	 * Handle saving a map property, it will create a node for each key/value pair, and make a relationship to it.
-	 * key and value will be properties in the new node, should be handled like other properties using setProperty
+	 * Deletes a node that belonged to another, with its index entries and
+	 * whatever belonged to it in turn.
 	 * 
 	 * @param node
-	 * @param name
-	 * @param value
+	 * @param type
+	 *            the class of the entity in the node, or null for a map entry
 	 */
-	private void handleMapProperty(Node node, String name, Map<Object, Object> map) {
-		log.debug("handle a map property {}", name);
-		for(Object key : map.keySet()){
-			Node entryNode = database.createNode();
-			setProperty(entryNode, "key", key);
-			setProperty(entryNode, "value", map.get(key));
-			Relationship relationship = node.createRelationshipTo(entryNode, DynamicRelationshipType.withName(name));
-			relationship.setProperty(TYPE_PROPERTY, map.get(key).getClass().getName());
+	private void deleteOwnedNode(Node node, Class<?> type) {
+		log.debug("deleting owned node {}", node.getId());
+		if (type != null) {
+			EntityMetadata metadata = EntityMetadata.forClass(type);
+			for (FieldMetadata field : metadata.getIndexedFields()) {
+				deleteIndex(type, node, field.getName(), field.getIndexKey());
+			}
+		}
+		for (Relationship relationship : node.getRelationships(Direction.OUTGOING)) {
+			deleteRelationship(relationship);
+		}
+		node.delete();
+	}
+
+	/**
+	 * Tells whether the end node of a relationship from a field belongs to
+	 * its start node: whether it is the node of an entity without a primary
+	 * key, which nothing can find but by that relationship, or an entry of a
+	 * map, and nothing else refers to it, and it has not been written in this
+	 * transaction. Such a node is updated in place, and deleted with the
+	 * relationship.
+	 * 
+	 * @param relationship
+	 * @return true if the end node belongs to the start node alone
+	 */
+	private boolean isOwnedNode(Relationship relationship) {
+		Node endNode = relationship.getEndNode();
+		if (write().updatedNodes.contains(endNode.getId())) {
+			// written for another reference, or reached through a cycle
+			return false;
+		}
+		for (Relationship incoming : endNode.getRelationships(Direction.INCOMING)) {
+			if (!incoming.equals(relationship)) {
+				return false;
+			}
+		}
+		Class<?> type = storedType(relationship);
+		if (type == null || type.isEnum()) {
+			return false;
+		}
+		FieldMetadata primaryKey = EntityMetadata.forClass(type).getPrimaryKey();
+		if (primaryKey == null) {
+			return true;
+		}
+		return !endNode.hasProperty(primaryKey.getName()) && isMapEntry(endNode);
+	}
+
+	/**
+	 * @param node
+	 * @return true if the node holds an entry of a map, as made by
+	 *         {@link #handleMapProperty(Node, RelationshipType, Map)}
+	 */
+	private static boolean isMapEntry(Node node) {
+		for (String key : node.getPropertyKeys()) {
+			if (!"key".equals(key) && !"value".equals(key)) {
+				return false;
+			}
+		}
+		for (Relationship relationship : node.getRelationships(Direction.OUTGOING)) {
+			if (!relationship.isType(KEY_TYPE) && !relationship.isType(VALUE_TYPE)) {
+				return false;
+			}
+		}
+		return node.hasProperty("key") || node.hasRelationship(KEY_TYPE, Direction.OUTGOING);
+	}
+
+	/**
+	 * @param relationship
+	 * @return the class of the value at the end of the relationship, or null
+	 *         if it is not known here
+	 */
+	private static Class<?> storedType(Relationship relationship) {
+		Object name = relationship.getProperty(TYPE_PROPERTY, null);
+		if (!(name instanceof String)) {
+			return null;
+		}
+		try {
+			return Class.forName((String) name);
+		} catch (ClassNotFoundException e) {
+			log.debug("no class {} for relationship {}", name, relationship.getId());
+			return null;
+		}
+	}
+
+	/**
+	 * save the Enum property as a relationship with a property to hold the enum class, and the end node has a name property
+	 * @param node
+	 * @param type
+	 * @param value
+	 */
+	private void handleEnumProperty(Node node, RelationshipType type, Enum<?> value) {
+		Node enumNode = enumNode(value);
+		Relationship relationship = node.createRelationshipTo(enumNode, type);
+		relationship.setProperty(TYPE_PROPERTY, value.getClass().getName());
+	}
+
+	/**
+	 * Returns the node of the enum constant: the one we know of unless it has
+	 * been deleted since, or else the one in the index, created if need be.
+	 * 
+	 * @param value
+	 * @return the node
+	 */
+	private Node enumNode(Enum<?> value) {
+		Map<Enum<?>, Node> enumNodes = write().enumNodes;
+		Node enumNode = enumNodes.get(value);
+		if (enumNode != null) {
+			return enumNode;
+		}
+		AtomicLongArray ids = enumNodeIds.get(value.getDeclaringClass());
+		long id = ids.get(value.ordinal());
+		if (id >= 0) {
+			try {
+				enumNode = database.getNodeById(id);
+				// the id may have been reused by another node
+				if (!value.name().equals(enumNode.getProperty("name", null))) {
+					enumNode = null;
+				}
+			} catch (NotFoundException e) {
+				enumNode = null;
+			} catch (IllegalStateException e) {
+				// deleted, but still in the node cache
+				enumNode = null;
+			}
+			if (enumNode == null) {
+				log.debug("enum node {} of {} is gone", id, value);
+				ids.compareAndSet(value.ordinal(), id, -1);
+			}
+		}
+		if (enumNode == null) {
+			enumNode = getNodeIndex(value.getClass()).get(PRIMARY_KEY, value.name()).getSingle();
+		}
+		if (enumNode == null) {
+			// keep other writers from creating it too until we commit, and
+			// look again in case one has just done so
+			database.getReferenceNode().removeProperty(ENUM_LOCK);
+			enumNode = getNodeIndex(value.getClass()).get(PRIMARY_KEY, value.name()).getSingle();
+		}
+		if (enumNode == null) {
+			enumNode = database.createNode();
+			enumNode.setProperty("name", value.name());
+			enumNode.setProperty("ordinal", value.ordinal());
+			enumNode.setProperty(TYPE_PROPERTY, value.getClass().getName());
+			getNodeIndex(value.getClass()).add(enumNode, PRIMARY_KEY, value.name());
+		}
+		enumNodes.put(value, enumNode);
+		return enumNode;
+	}
+
+	/**
+	 * Handle saving a map property, it will create a node for each key/value pair, and make a relationship to it.
+	 * key and value will be properties in the new node, should be handled like other properties using setProperty
+	 * 
+	 * @param node
+	 * @param type
+	 * @param value
+	 * @param cascade
+	 *            how far to write the entities among the values
+	 */
+	private void handleMapProperty(Node node, RelationshipType type, Map<Object, Object> map, CascadeType cascade) {
+		log.debug("handle a map property {}", type.name());
+		for(Object key : map.keySet()){
+			Node entryNode = database.createNode();
+			setProperty(entryNode, "key", KEY_TYPE, key, cascade);
+			setProperty(entryNode, "value", VALUE_TYPE, map.get(key), cascade);
+			Relationship relationship = node.createRelationshipTo(entryNode, type);
+			relationship.setProperty(TYPE_PROPERTY, map.get(key).getClass().getName());
 		}
 	}
 
@@ -370,7 +1085,10 @@ public class EntityManager {
 	 * @param collection
 	 * @return true if all objects in the collection are of primitive types
 	 */
-	private boolean isCollectionOfPrimitives(Collection<Object> collection) {
+	static boolean isCollectionOfPrimitives(Collection<Object> collection) {
+		if (collection instanceof PrimitiveArrayList) {
+			return true;
+		}
 		for(Object object : collection){
 			if(!isPrimitiveType(object)){
 				return false;
@@ -404,21 +1122,23 @@ public class EntityManager {
 	}
 
 	/**
-	 * update the index value
+	 * remove the index entries of the given property, made by
+	 * {@link #addIndex(Class, Node, String, Object, String, Object)}
 	 * 
 	 * @param aClass
 	 * @param node
 	 * @param name
-	 * @param value
+	 * @param indexKey
+	 *            the key the entries were added under
 	 */
-	private void deleteIndex(Class<?> aClass, Node node, String name) {
+	private void deleteIndex(Class<?> aClass, Node node, String name, String indexKey) {
 		if (node.hasProperty(name)) {
-			getNodeIndex(aClass).remove(node, name);
+			getNodeIndex(aClass).remove(node, indexKey);
 		} else {
 			Iterator<Relationship> iterator = node.getRelationships(DynamicRelationshipType.withName(name))
 					.iterator();
 			while (iterator.hasNext()) {
-				getRelationshipIndex(aClass, name).remove(iterator.next());
+				getRelationshipIndex(aClass, name).remove(iterator.next(), indexKey);
 			}
 		}
 	}
@@ -433,50 +1153,390 @@ public class EntityManager {
 	 * @return the updated node
 	 */
 	public Node update(Object entity, Node existingNode) {
-		Transaction transaction = database.beginTx();
+		return update(entity, existingNode, null);
+	}
+
+	/**
+	 * Updates the entity, writing the entities it refers to as far as the
+	 * given cascade goes instead of as far as its fields are annotated to.
+	 * 
+	 * @param entity
+	 * @param existingNode
+	 * @param cascade
+	 *            for every relationship field, at any depth, null to go by
+	 *            the {@link Cascade} annotations
+	 * @return the updated node
+	 * @throws CascadeException
+	 *             if the update goes further than a cascade allows, in which
+	 *             case nothing is written
+	 */
+	public Node update(Object entity, Node existingNode, CascadeType cascade) {
+		entity = LazyReferences.unwrap(entity);
+		WriteContext write = beginWrite(cascade);
 		try {
-			updatedNodes = new HashSet<Long>();
-			updateNode(entity, existingNode);
-			transaction.success();
-		} catch (Exception e) {
-			log.error("error updating node for entity: " + entity, e);
+			Transaction transaction = database.beginTx();
+			boolean updated = false;
+			try {
+				updateNode(entity, existingNode);
+				transaction.success();
+				updated = true;
+			} catch (CascadeException e) {
+				throw e;
+			} catch (Exception e) {
+				log.error("error updating node for entity: " + entity, e);
+			} finally {
+				transaction.finish();
+			}
+			if (updated) {
+				endOperation(entity, existingNode);
+				writePendingCollections();
+			}
+			return existingNode;
 		} finally {
-			transaction.finish();
+			endWrite(write);
 		}
-		return existingNode;
 	}
 
+	/**
+	 * Writes the fields of the entity that have changed: since it was last
+	 * read or written in the session, if it was, or else those properties
+	 * that differ from the node. Relationship fields that have not changed
+	 * are not rewritten, but the entities they refer to are still checked.
+	 * 
+	 * @param entity
+	 * @param existingNode
+	 */
 	private void updateNode(Object entity, Node existingNode) {
 		log.debug("updating entity {}", entity);
-		updatedNodes.add(existingNode.getId());
-		Class<?> clazz = entity.getClass();
-		while (clazz != null && !isCoreType(clazz)) {
-			for (Field field : clazz.getDeclaredFields()) {
-				try {
-					field.setAccessible(true);
-					Object value = field.get(entity);
-					if (field.isAnnotationPresent(com.ontometrics.db.graph.Index.class)) {
-						deleteIndex(entity.getClass(), existingNode, field.getName());
+		write().updatedNodes.add(existingNode.getId());
+		write().writtenEntities.add(entity);
+		write().writtenNodes.put(entity, existingNode);
+		Session session = sessions.get();
+		EntityState state = session == null ? null : session.getState(entity);
+		EntityMetadata metadata = EntityMetadata.forClass(entity.getClass());
+		for (FieldMetadata field : metadata.getPersistentFields()) {
+			try {
+				if (field.isPrimitiveNumber()
+						&& (state != null ? state.isPrimitiveUnchanged(field, entity) : isPrimitiveStored(existingNode,
+								field, entity))) {
+					log.debug("field {} has not changed", field.getName());
+					continue;
+				}
+				Object value = field.getValue(entity);
+				if (state != null ? state.isUnchanged(field, value) : isStored(existingNode, field, value)) {
+					log.debug("field {} has not changed", field.getName());
+					if (cascadeOf(field) == CascadeType.ALL) {
+						updateReferenced(value);
 					}
+					continue;
+				}
+				if (deferLargeCollection(existingNode, entity, field, value)) {
+					continue;
+				}
+				if (field.isIndexed()) {
+					deleteIndex(entity.getClass(), existingNode, field.getName(), field.getIndexKey());
+				}
+				setProperty(existingNode, field, value);
+				updateIndex(existingNode, entity, field);
+			} catch (CascadeException e) {
+				throw e;
+			} catch (Exception e) {
+				log.error("error updating node for entity: " + entity, e);
+			}
+		}
+	}
 
-					if (!isTransient(field)) {
-						setProperty(existingNode, field.getName(), value);
-						updateIndex(existingNode, entity, field);
+	/**
+	 * @param node
+	 * @param field
+	 * @param value
+	 * @return true if the value is a property, or null, and the node already
+	 *         has it
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean isStored(Node node, FieldMetadata field, Object value) {
+		if (field.isEmbedded()) {
+			String prefix = field.getName() + ".";
+			Map<String, Object> properties = new HashMap<String, Object>();
+			if (value != null) {
+				flatten(prefix, value, properties, converters);
+			}
+			int stored = 0;
+			for (String key : node.getPropertyKeys()) {
+				if (key.startsWith(prefix)) {
+					stored++;
+					if (!sameProperty(properties.get(key), node.getProperty(key))) {
+						return false;
 					}
+				}
+			}
+			return stored == properties.size();
+		}
+		if (value == null) {
+			return !node.hasProperty(field.getName()) && !node.hasProperty(field.getName() + MAP_KEYS)
+					&& !node.hasRelationship(field.getRelationshipType(), Direction.OUTGOING);
+		}
+		if (value instanceof Map) {
+			Object[] compact = compactMap(field, (Map<?, ?>) value, converters);
+			return compact != null
+					&& Arrays.deepEquals(compact, new Object[] { node.getProperty(field.getName() + MAP_KEYS, null),
+							node.getProperty(field.getName() + MAP_VALUES, null) });
+		}
+		Object property;
+		if (value instanceof Collection) {
+			Collection<Object> collection = (Collection<Object>) value;
+			if (collection.isEmpty() || !isCollectionOfPrimitives(collection)) {
+				return false;
+			}
+			property = ArrayUtils.toPrimitives(collection);
+		} else {
+			TypeConverter converter = isPrimitiveType(value) ? null : converters.getConverter(value.getClass());
+			if (converter instanceof LongConverter) {
+				Object stored = node.getProperty(field.getName(), null);
+				return stored instanceof Long
+						&& ((Long) stored).longValue() == ((LongConverter) converter).toLong(value);
+			}
+			property = toPropertyValue(value, converters);
+		}
+		return property != null && sameProperty(property, node.getProperty(field.getName(), null));
+	}
+
+	/**
+	 * @param property
+	 * @param stored
+	 * @return true if the property, which may be an array, equals the one
+	 *         stored
+	 */
+	static boolean sameProperty(Object property, Object stored) {
+		if (property == null || stored == null) {
+			return false;
+		}
+		if (property.getClass().isArray()) {
+			return Arrays.deepEquals(new Object[] { property }, new Object[] { stored });
+		}
+		return property.equals(stored);
+	}
 
-				} catch (Exception e) {
-					log.error("error updating node for entity: " + entity, e);
+	/**
+	 * Compares a numeric primitive field without boxing it.
+	 * 
+	 * @param node
+	 * @param field
+	 *            a field for which {@link FieldMetadata#isPrimitiveNumber()}
+	 * @param entity
+	 * @return true if the node already has the value of the field
+	 */
+	private boolean isPrimitiveStored(Node node, FieldMetadata field, Object entity) {
+		Object stored = node.getProperty(field.getName(), null);
+		if (!field.isStoredAs(stored)) {
+			return false;
+		}
+		if (field.isIntegral()) {
+			return ((Number) stored).longValue() == field.getLong(entity);
+		}
+		return Double.doubleToLongBits(((Number) stored).doubleValue()) == Double.doubleToLongBits(field
+				.getDouble(entity));
+	}
+
+	/**
+	 * Brings the entities an unchanged field refers to up to date.
+	 * 
+	 * @param value
+	 */
+	private void updateReferenced(Object value) {
+		if (value == null || isPrimitiveType(value) || value instanceof Map || value.getClass().isEnum()
+				|| (value instanceof Lazy && !((Lazy) value).isLoaded())) {
+			return;
+		}
+		Iterable<?> referenced = value instanceof Collection ? (Collection<?>) value : Collections.singleton(value);
+		for (Object reference : referenced) {
+			if (reference == null || (reference instanceof Lazy && !((Lazy) reference).isLoaded())) {
+				continue;
+			}
+			reference = LazyReferences.unwrap(reference);
+			if (isPrimitiveType(reference) || reference.getClass().isEnum()
+					|| write().writtenNodes.containsKey(reference) || toPropertyValue(reference, converters) != null) {
+				continue;
+			}
+			Node node = existingNodeFor(reference);
+			if (node != null && !write().updatedNodes.contains(node.getId())) {
+				updateNode(reference, node);
+			}
+		}
+	}
+
+	/**
+	 * Leaves the field to be written in chunks later, if it is a large
+	 * collection of entities.
+	 * 
+	 * @return true if the field has been deferred
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean deferLargeCollection(Node node, Object entity, FieldMetadata field, Object value) {
+		if (!(value instanceof Collection) || (value instanceof Lazy && !((Lazy) value).isLoaded())) {
+			return false;
+		}
+		Collection<Object> collection = (Collection<Object>) value;
+		if (!field.isLargeCollection() && collection.size() <= largeCollectionThreshold) {
+			return false;
+		}
+		if (!collection.isEmpty() && isCollectionOfPrimitives(collection)) {
+			return false;
+		}
+		log.debug("deferring large collection {} of {} elements", field.getName(), collection.size());
+		write().pendingCollections.add(new PendingCollection(node, entity, field, collection));
+		return true;
+	}
+
+	/**
+	 * Writes the large collections left by the last operation, and those left
+	 * by writing them, each in chunks.
+	 */
+	private void writePendingCollections() {
+		List<PendingCollection> pendingCollections = write().pendingCollections;
+		while (!pendingCollections.isEmpty()) {
+			PendingCollection pending = pendingCollections.remove(0);
+			writeRelationships(pending.node, pending.owner, pending.field, pending.collection.iterator(), 0,
+					chunkSize(pending.field), null);
+		}
+	}
+
+	private int chunkSize(FieldMetadata field) {
+		return field.getLargeCollectionChunkSize() > 0 ? field.getLargeCollectionChunkSize() : batchSize;
+	}
+
+	/**
+	 * Writes the relationships of a collection field from a source that does
+	 * not have to be held in memory, in chunks of one transaction each. The
+	 * owner has to have been written already.
+	 * <p>
+	 * Elements already related to the owner are kept, so writing the same
+	 * source again only adds what is missing. After a failure, the write can
+	 * be picked up where it stopped by passing the last total reported to the
+	 * listener as the number of elements to skip. Relationships to elements
+	 * no longer in the source are only deleted by a write that starts from
+	 * the beginning.
+	 * 
+	 * @param owner
+	 *            the entity the collection belongs to, it needs a primary key
+	 * @param fieldName
+	 *            the collection field
+	 * @param elements
+	 *            the elements of the collection, for a stream its iterator
+	 * @param skip
+	 *            how many elements at the start of the source have been
+	 *            written before
+	 * @param listener
+	 *            told about every committed chunk, with the position in the
+	 *            source as total, may be null
+	 * @return the position in the source reached, the number of elements
+	 *         written including those skipped
+	 */
+	public long writeCollection(Object owner, String fieldName, Iterator<?> elements, long skip,
+			BatchListener listener) {
+		FieldMetadata field = EntityMetadata.forClass(owner.getClass()).getField(fieldName);
+		if (field == null || field.getKind() != FieldMetadata.Kind.COLLECTION) {
+			throw new IllegalArgumentException("No collection field " + fieldName + " in " + owner.getClass());
+		}
+		WriteContext write = beginWrite();
+		try {
+			Node node = existingNodeFor(owner);
+			if (node == null) {
+				throw new IllegalArgumentException("No node exists for " + owner + ", it has to be created first");
+			}
+			long position = writeRelationships(node, owner, field, elements, skip, chunkSize(field), listener);
+			writePendingCollections();
+			return position;
+		} finally {
+			endWrite(write);
+		}
+	}
+
+	private long writeRelationships(Node node, Object owner, FieldMetadata field, Iterator<?> elements, long skip,
+			int chunkSize, BatchListener listener) {
+		RelationshipType type = field.getRelationshipType();
+		Object indexValue = field.isIndexed() ? field.getIndexValue(owner) : null;
+		Map<Long, Long> existing = new HashMap<Long, Long>();
+		for (Relationship relationship : node.getRelationships(type, Direction.OUTGOING)) {
+			existing.put(relationship.getEndNode().getId(), relationship.getId());
+		}
+		long position = 0;
+		while (position < skip && elements.hasNext()) {
+			elements.next();
+			position++;
+		}
+		Set<Long> linked = new HashSet<Long>();
+		int chunk = 0;
+		while (elements.hasNext()) {
+			long start = System.nanoTime();
+			int written = 0;
+			Transaction transaction = database.beginTx();
+			try {
+				write().startTransaction();
+				while (written < chunkSize && elements.hasNext()) {
+					Object value = elements.next();
+					position++;
+					written++;
+					if (value == null) {
+						continue;
+					}
+					value = LazyReferences.unwrap(value);
+					Node toNode = nodeFor(value, cascadeOf(field));
+					if (linked.add(toNode.getId()) && existing.remove(toNode.getId()) == null) {
+						Relationship relationship = node.createRelationshipTo(toNode, type);
+						relationship.setProperty(TYPE_PROPERTY, value.getClass().getName());
+						if (indexValue != null) {
+							getRelationshipIndex(owner.getClass(), field.getName()).add(relationship,
+									field.getIndexKey(), indexValue);
+						}
+					}
 				}
+				transaction.success();
+			} finally {
+				transaction.finish();
+			}
+			endOperation(null, null);
+			chunk++;
+			long millis = (System.nanoTime() - start) / 1000000;
+			log.debug("wrote chunk {} of {} up to element {}", new Object[] { chunk, field.getName(), position });
+			if (listener != null) {
+				listener.chunkCommitted(chunk, written, position, millis);
 			}
-			clazz = clazz.getSuperclass();
 		}
+		if (skip == 0) {
+			deleteRelationshipsById(owner.getClass(), field, existing.values(), chunkSize);
+		}
+		return position;
 	}
 
-	private void removeValueIfExists(Node node, final String name) {
+	/**
+	 * Deletes the relationships with the given ids, in chunks.
+	 */
+	private void deleteRelationshipsById(Class<?> ownerClass, FieldMetadata field, Collection<Long> ids, int chunkSize) {
+		Iterator<Long> iterator = ids.iterator();
+		while (iterator.hasNext()) {
+			Transaction transaction = database.beginTx();
+			try {
+				for (int deleted = 0; deleted < chunkSize && iterator.hasNext(); deleted++) {
+					Relationship relationship = database.getRelationshipById(iterator.next());
+					if (field.isIndexed()) {
+						getRelationshipIndex(ownerClass, field.getName()).remove(relationship);
+					}
+					deleteRelationship(relationship);
+				}
+				transaction.success();
+			} finally {
+				transaction.finish();
+			}
+		}
+	}
+
+
+	private void removeValueIfExists(Node node, final String name, RelationshipType type) {
 		if (node.hasProperty(name)) {
 			node.removeProperty(name);
 		} else {
-			deleteRelationships(node, DynamicRelationshipType.withName(name), Direction.OUTGOING);
+			deleteRelationships(node, type, Direction.OUTGOING);
 		}
 
 	}
@@ -487,40 +1547,160 @@ public class EntityManager {
 	 * will use it, if not it will create new node.
 	 * 
 	 * @param node
-	 * @param name
+	 * @param type
 	 * @param value
+	 * @param cascade
 	 */
-	private void createRelationship(Node node, final String name, Object value) {
-		log.debug("Create a relationship and node for {}", name);
-		Node toNode = existingNodeFor(value);
-		if (toNode == null) {
-			toNode = createNode(value);
-		} else {
-			log.debug("found existing node for the relationship '{}'", name);
-			if(!updatedNodes.contains(toNode.getId())){
-				log.debug("update existing node for the relationship '{}'", name);
-				updateNode(value, toNode);
+	private void createRelationship(Node node, RelationshipType type, Object value, CascadeType cascade) {
+		linkRelationships(node, type, Collections.singleton(value), cascade);
+	}
+
+	/**
+	 * Makes the relationships of the given type from the node point at the
+	 * nodes of the given values, and nothing else. Relationships that already
+	 * point at one of them are kept, only the difference is created or
+	 * deleted.
+	 * 
+	 * @param node
+	 * @param type
+	 * @param values
+	 * @param cascade
+	 *            how far to write the entities among the values
+	 */
+	private void linkRelationships(Node node, RelationshipType type, Iterable<?> values, CascadeType cascade) {
+		log.debug("Create relationships and nodes for {}", type.name());
+		Map<Long, Relationship> existing = new HashMap<Long, Relationship>();
+		for (Relationship relationship : node.getRelationships(type, Direction.OUTGOING)) {
+			Relationship duplicate = existing.put(relationship.getEndNode().getId(), relationship);
+			if (duplicate != null) {
+				duplicate.delete();
 			}
-			//check if relationship already exists
-			if(existingRelationship(node, toNode, DynamicRelationshipType.withName(name)) != null) return;
 		}
-		Relationship relationship = node.createRelationshipTo(toNode, DynamicRelationshipType.withName(name));
-		relationship.setProperty(TYPE_PROPERTY, value.getClass().getName());
-
+		Set<Long> linked = new HashSet<Long>();
+		Map<String, List<Node>> ownedNodes = null;
+		for (Object value : values) {
+			if (value == null) {
+				continue;
+			}
+			value = LazyReferences.unwrap(value);
+			Node toNode = write().writtenNodes.get(value);
+			if (toNode == null && !EntityMetadata.forClass(value.getClass()).hasPrimaryKey()
+					&& !value.getClass().isEnum()) {
+				if (ownedNodes == null) {
+					ownedNodes = ownedNodes(existing.values());
+				}
+				toNode = reuseOwnedNode(ownedNodes, value);
+			}
+			if (toNode == null) {
+				toNode = nodeFor(value, cascade);
+			}
+			if (!linked.add(toNode.getId())) {
+				continue;
+			}
+			if (existing.remove(toNode.getId()) == null) {
+				Relationship relationship = node.createRelationshipTo(toNode, type);
+				relationship.setProperty(TYPE_PROPERTY, value.getClass().getName());
+			} else {
+				log.debug("relationship already exists");
+			}
+		}
+		for (Relationship stale : existing.values()) {
+			deleteRelationship(stale);
+		}
 	}
 
-	private Relationship existingRelationship(Node fromNode, Node toNode, RelationshipType type) {
-		if(fromNode.hasRelationship(type, Direction.OUTGOING)){
-			Iterator<Relationship> iterator = fromNode.getRelationships(type, Direction.OUTGOING).iterator();
-			while(iterator.hasNext()){
-				Relationship relationship = iterator.next();
-				if(relationship.getEndNode().getId() == toNode.getId()){
-					log.debug("relationship already exists");
-					return relationship;
-				}
+	/**
+	 * @param relationships
+	 * @return the end nodes of those of the relationships that belong to
+	 *         their start node, by the class of their entity
+	 */
+	private Map<String, List<Node>> ownedNodes(Collection<Relationship> relationships) {
+		Map<String, List<Node>> ownedNodes = new HashMap<String, List<Node>>();
+		for (Relationship relationship : relationships) {
+			if (!isOwnedNode(relationship)) {
+				continue;
+			}
+			String typeName = (String) relationship.getProperty(TYPE_PROPERTY);
+			List<Node> nodes = ownedNodes.get(typeName);
+			if (nodes == null) {
+				nodes = new ArrayList<Node>();
+				ownedNodes.put(typeName, nodes);
 			}
+			nodes.add(relationship.getEndNode());
 		}
-		return null;
+		return ownedNodes;
+	}
+
+	/**
+	 * Writes an entity without a primary key over a node of its class that
+	 * its owner already has, so the node is kept instead of replaced.
+	 * 
+	 * @param ownedNodes
+	 *            the nodes not yet reused, taken from as they are
+	 * @param value
+	 * @return the node, or null if there is none to reuse
+	 */
+	private Node reuseOwnedNode(Map<String, List<Node>> ownedNodes, Object value) {
+		List<Node> nodes = ownedNodes.get(value.getClass().getName());
+		if (nodes == null || nodes.isEmpty()) {
+			return null;
+		}
+		Node ownedNode = nodes.remove(nodes.size() - 1);
+		log.debug("updating owned node {} in place", ownedNode.getId());
+		if (!write().updatedNodes.contains(ownedNode.getId())) {
+			updateNode(value, ownedNode);
+		}
+		return ownedNode;
+	}
+
+	/**
+	 * Finds or writes the node of a referenced value, as far as the cascade
+	 * goes. A value without a primary key is written whatever the cascade.
+	 * 
+	 * @param value
+	 * @param cascade
+	 * @return the node the value has been written to in this transaction, or
+	 *         else its existing node, brought up to date if the cascade is
+	 *         {@link CascadeType#ALL}, or a new one
+	 * @throws CascadeException
+	 *             if the cascade is {@link CascadeType#LINK} and the value has
+	 *             no node
+	 */
+	private Node nodeFor(Object value, CascadeType cascade) {
+		if (cascade == CascadeType.ALL || write().writtenNodes.containsKey(value)
+				|| !EntityMetadata.forClass(value.getClass()).hasPrimaryKey()) {
+			return nodeFor(value);
+		}
+		Node toNode = existingNodeFor(value);
+		if (toNode != null) {
+			log.debug("linking to {} without writing it", value.getClass().getName());
+			return toNode;
+		}
+		if (cascade == CascadeType.CREATE) {
+			return createNode(value);
+		}
+		throw new CascadeException("No node exists for " + value + ", it has to be created first");
+	}
+
+	/**
+	 * @param value
+	 * @return the node the value has been written to in this transaction,
+	 *         or else its existing node, brought up to date, or a new one
+	 */
+	private Node nodeFor(Object value) {
+		Node toNode = write().writtenNodes.get(value);
+		if (toNode != null) {
+			return toNode;
+		}
+		toNode = existingNodeFor(value);
+		if (toNode == null) {
+			return createNode(value);
+		}
+		log.debug("found existing node for {}", value.getClass().getName());
+		if (!write().updatedNodes.contains(toNode.getId())) {
+			updateNode(value, toNode);
+		}
+		return toNode;
 	}
 
 	/**
@@ -534,25 +1714,97 @@ public class EntityManager {
 	 * @return
 	 */
 	private Node existingNodeFor(Object entity) {
-		Object primaryKey = null;
-		Class<?> clazz = entity.getClass();
-		while (clazz != null && !isCoreType(clazz)) {
-			for (Field field : clazz.getDeclaredFields()) {
-				try {
-					if (isThePrimaryKey(field)) {
-						field.setAccessible(true);
-						primaryKey = field.get(entity);
-						if (primaryKey != null) {
-							return getNodeIndex(entity.getClass()).get(PRIMARY_KEY, primaryKey).getSingle();
-						}
-					}
-				} catch (Exception e) {
-					log.error("error creating node for entity: " + entity, e);
+		Object primaryKey = EntityMetadata.forClass(entity.getClass()).getPrimaryKeyValue(entity);
+		if (primaryKey == null) {
+			return null;
+		}
+		String keySpace = nodeIndexName(entity.getClass());
+		Map<Object, Node> nodes = write().primaryKeyNodes(keySpace);
+		if (nodes.containsKey(primaryKey)) {
+			return nodes.get(primaryKey);
+		}
+		Session session = sessions.get();
+		if (session != null && session.getNode(keySpace, primaryKey) != null) {
+			return session.getNode(keySpace, primaryKey);
+		}
+		// remembered in the node id cache once the operation has committed
+		Node node = findNode(entity.getClass(), primaryKey, false);
+		nodes.put(primaryKey, node);
+		return node;
+	}
+
+	/**
+	 * Finds the node of the entity with the key, from the node id cache when
+	 * it has it, or else from the index.
+	 * 
+	 * @param aClass
+	 * @param primaryKey
+	 * @param remember
+	 *            whether to keep the id of a node found in the index, only
+	 *            to be asked for outside of a write, when the node is known
+	 *            to be committed
+	 * @return the node, or null
+	 */
+	Node findNode(Class<?> aClass, Object primaryKey, boolean remember) {
+		NodeIdCache nodeIdCache = this.nodeIdCache;
+		String keySpace = nodeIndexName(aClass);
+		if (nodeIdCache != null) {
+			long id = nodeIdCache.get(keySpace, primaryKey);
+			if (id >= 0) {
+				Node node = cachedNode(aClass, primaryKey, id);
+				if (node != null) {
+					return node;
 				}
+				log.debug("node {} of {} is gone", id, primaryKey);
+				nodeIdCache.invalidate(keySpace, primaryKey);
 			}
-			clazz = clazz.getSuperclass();
 		}
-		return null;
+		Node node = getNodeIndex(aClass).get(PRIMARY_KEY, primaryKey).getSingle();
+		if (node != null && remember && nodeIdCache != null) {
+			nodeIdCache.put(keySpace, primaryKey, node.getId());
+		}
+		return node;
+	}
+
+	/**
+	 * @return the node with the id if it is still that of the entity with
+	 *         the key, or null if it has been deleted or the id reused
+	 */
+	private Node cachedNode(Class<?> aClass, Object primaryKey, long id) {
+		FieldMetadata field = EntityMetadata.forClass(aClass).getPrimaryKey();
+		try {
+			Node node = database.getNodeById(id);
+			Object property = node.getProperty(field.getName(), null);
+			return property != null && property.equals(toPropertyValue(primaryKey, converters)) ? node : null;
+		} catch (NotFoundException e) {
+			return null;
+		} catch (IllegalStateException e) {
+			// deleted, but still in the node cache
+			return null;
+		}
+	}
+
+	/**
+	 * Forgets everything kept about the node of the entity with the key, once
+	 * it has been deleted.
+	 * 
+	 * @param aClass
+	 * @param primaryKey
+	 * @param node
+	 */
+	void nodeDeleted(Class<?> aClass, Object primaryKey, Node node) {
+		Session session = sessions.get();
+		EntityCache cache = this.cache;
+		NodeIdCache nodeIdCache = this.nodeIdCache;
+		if (session != null) {
+			session.evict(node);
+		}
+		if (cache != null) {
+			cache.invalidate(aClass, primaryKey);
+		}
+		if (nodeIdCache != null) {
+			nodeIdCache.invalidate(aClass, primaryKey);
+		}
 	}
 
 	/**
@@ -560,24 +1812,147 @@ public class EntityManager {
 	 * @param value
 	 * @return true for types supported by the new4j Property
 	 */
-	private static boolean isPrimitiveType(Object value) {
+	static boolean isPrimitiveType(Object value) {
 		return (value instanceof String || value instanceof Integer || value instanceof Boolean
 				|| value instanceof Float || value instanceof Long || value instanceof Double || value instanceof Byte
 				|| value instanceof Character || value instanceof Short);
 	}
 
-	private static boolean isThePrimaryKey(Field field) {
-		return field.isAnnotationPresent(Id.class);
-	}
-
 	public void setDatabase(EmbeddedGraphDatabase database) {
 		this.database = database;
+		nodeIndexes.clear();
+		relationshipIndexes.clear();
+		enumNodeIds = newEnumNodeIds();
+		NodeIdCache nodeIdCache = this.nodeIdCache;
+		if (nodeIdCache != null) {
+			nodeIdCache.clear();
+		}
 	}
 
-	public static Node getReferenceNode() {
+	private static ClassValue<AtomicLongArray> newEnumNodeIds() {
+		return new ClassValue<AtomicLongArray>() {
+			@Override
+			protected AtomicLongArray computeValue(Class<?> type) {
+				AtomicLongArray ids = new AtomicLongArray(type.getEnumConstants().length);
+				for (int i = 0; i < ids.length(); i++) {
+					ids.set(i, -1);
+				}
+				return ids;
+			}
+		};
+	}
+
+	public EntityCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @param cache
+	 *            the second level cache to use, or null for none
+	 */
+	public void setCache(EntityCache cache) {
+		this.cache = cache;
+	}
+
+	public ConverterRegistry getConverterRegistry() {
+		return converters;
+	}
+
+	/**
+	 * @param converters
+	 *            the converters of this manager and the repositories using
+	 *            it, instead of the default ones
+	 */
+	public void setConverterRegistry(ConverterRegistry converters) {
+		if (converters == null) {
+			throw new IllegalArgumentException("converter registry cannot be null");
+		}
+		this.converters = converters;
+	}
+
+	public NodeIdCache getNodeIdCache() {
+		return nodeIdCache;
+	}
+
+	/**
+	 * @param nodeIdCache
+	 *            where to keep the ids of nodes by primary key, null to
+	 *            always go to the index
+	 */
+	public void setNodeIdCache(NodeIdCache nodeIdCache) {
+		this.nodeIdCache = nodeIdCache;
+	}
+
+	public IndexPartitioning getIndexPartitioning() {
+		return indexPartitioning;
+	}
+
+	/**
+	 * @param indexPartitioning
+	 *            which indexes entities are kept in, to be set before the
+	 *            manager is used
+	 */
+	public void setIndexPartitioning(IndexPartitioning indexPartitioning) {
+		if (indexPartitioning == null) {
+			throw new IllegalArgumentException("index partitioning cannot be null");
+		}
+		this.indexPartitioning = indexPartitioning;
+		nodeIndexes.clear();
+		relationshipIndexes.clear();
+	}
+
+	public int getLargeCollectionThreshold() {
+		return largeCollectionThreshold;
+	}
+
+	/**
+	 * @param largeCollectionThreshold
+	 *            the number of elements above which collections are written
+	 *            in chunks
+	 */
+	public void setLargeCollectionThreshold(int largeCollectionThreshold) {
+		if (largeCollectionThreshold < 0) {
+			throw new IllegalArgumentException("threshold cannot be negative: " + largeCollectionThreshold);
+		}
+		this.largeCollectionThreshold = largeCollectionThreshold;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            how many entities {@link #createAll(Iterable)} writes per
+	 *            transaction
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batch size must be positive: " + batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the reference node last created by
+	 *         {@link #createReferenceNodeOfType(RelationshipType)} on this
+	 *         manager
+	 */
+	public Node getReferenceNodeOfType() {
 		return referenceNode;
 	}
 
+	/**
+	 * @return the reference node last created by any manager, which is only
+	 *         the one wanted when a single thread uses a single manager
+	 * @deprecated shared by all managers, use
+	 *             {@link #getReferenceNodeOfType()}
+	 */
+	@Deprecated
+	public static Node getReferenceNode() {
+		return lastReferenceNode;
+	}
+
 	/**
 	 * Provides means of making reference nodes, which are starting points into
 	 * areas of the graph.
@@ -590,6 +1965,7 @@ public class EntityManager {
 	 */
 	public void createReferenceNodeOfType(RelationshipType type) {
 		referenceNode = database.createNode();
+		lastReferenceNode = referenceNode;
 		database.getReferenceNode().createRelationshipTo(referenceNode, type);
 	}
 
@@ -608,13 +1984,4 @@ public class EntityManager {
 		fromNode.createRelationshipTo(toNode, type);
 	}
 
-	private boolean isCoreType(Class<?> clazz) {
-		return coreTypes.contains(clazz.getName());
-	}
-
-	private boolean isTransient(Field field) {
-		boolean isTransient = Modifier.isTransient(field.getModifiers()) || field.isAnnotationPresent(Transient.class);
-		return isTransient;
-	}
-
 }
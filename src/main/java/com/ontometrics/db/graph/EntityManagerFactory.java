@@ -44,6 +44,20 @@ public class EntityManagerFactory {
 		return new EntityManager(graphdb);
 	}
 
+	/**
+	 * Provides an {@link EntityIngester} that writes straight into the store
+	 * under the root folder. The database cannot be open while ingesting.
+	 *
+	 * @return an ingester, which has to be shut down before the database can
+	 *         be used
+	 */
+	public EntityIngester getIngester() {
+		if (database != null) {
+			throw new IllegalStateException("cannot ingest while the database is open: " + root);
+		}
+		return new EntityIngester(root.getAbsolutePath());
+	}
+
 	/**
 	 * Attempts to get database from cache, then opens a new one if we don't
 	 * have an open one.
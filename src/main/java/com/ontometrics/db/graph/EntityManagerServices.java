@@ -10,14 +10,23 @@ public class EntityManagerServices {
 
 	private static final Logger log = LoggerFactory.getLogger(EntityManagerServices.class);
 
-	private static EntityManager entityManager;
+	private static volatile EntityManager entityManager;
 
+	/**
+	 * @return the entity manager shared by the whole application, which is
+	 *         safe for use by many threads
+	 */
 	public static EntityManager getEntityManager() {
-		
-		if (entityManager == null) {
-			init();
+		EntityManager current = entityManager;
+		if (current == null) {
+			synchronized (EntityManagerServices.class) {
+				if (entityManager == null) {
+					init();
+				}
+				current = entityManager;
+			}
 		}
-		return entityManager;
+		return current;
 	}
 
 
@@ -34,7 +43,7 @@ public class EntityManagerServices {
 		entityManager = emf.getEntityManager();
 	}
 
-	public static void initForTests(GraphDatabaseService graphDatabase) {
+	public static synchronized void initForTests(GraphDatabaseService graphDatabase) {
 		EntityManagerFactory emf = new EntityManagerFactory();
 		entityManager = emf.getEntityManager(graphDatabase);
 		
@@ -1,14 +1,16 @@
 package com.ontometrics.db.graph;
 
-import java.lang.reflect.Field;
 import java.text.MessageFormat;
 
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.index.Index;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ontometrics.db.graph.lazy.LazyReferences;
+import com.ontometrics.db.graph.metadata.EntityMetadata;
+
 public class EntityRepository<T> {
 
 	private Logger log = LoggerFactory.getLogger(EntityRepository.class);
@@ -19,70 +21,149 @@ public class EntityRepository<T> {
 		return entityManager.create(entity);
 	}
 
+	/**
+	 * @see EntityManager#create(Object, CascadeType)
+	 */
+	public Node create(T entity, CascadeType cascade) {
+		return entityManager.create(entity, cascade);
+	}
+
+	/**
+	 * Creates all the given entities in chunks.
+	 * 
+	 * @param entities
+	 * @return the number of entities created
+	 * @see EntityManager#createAll(Iterable)
+	 */
+	public long createAll(Iterable<? extends T> entities) {
+		return entityManager.createAll(entities);
+	}
+
+	public long createAll(Iterable<? extends T> entities, BatchListener listener) {
+		return entityManager.createAll(entities, listener);
+	}
+
 	public T read(Class<T> entityClass, Object primaryKey) throws IllegalArgumentException {
-		Index<Node> index = entityManager.getNodeIndex(entityClass);
-		Node node = index.get(EntityManager.PRIMARY_KEY, primaryKey).getSingle();
+		return read(entityClass, primaryKey, FetchPlan.ALL);
+	}
+
+	/**
+	 * Reads the entity, materializing only as much of the graph around it as
+	 * the plan allows. Within a session, an entity that has already been read
+	 * or written is returned as it is, or the lazy reference to it that has
+	 * already been handed out.
+	 * 
+	 * @param entityClass
+	 * @param primaryKey
+	 * @param plan
+	 * @return the entity
+	 * @throws IllegalArgumentException
+	 *             if there is no entity with the key
+	 */
+	public T read(Class<T> entityClass, Object primaryKey, FetchPlan plan) throws IllegalArgumentException {
+		Session session = entityManager.getSession();
+		EntityCache cache = entityManager.getCache();
+		String keySpace = EntityManager.nodeIndexName(entityClass);
+		Node node = session == null ? null : session.getNode(keySpace, primaryKey);
+		EntitySnapshot snapshot = null;
+		// taken before the node is read, so a write committed meanwhile keeps
+		// what we read out of the cache
+		long stamp = cache == null ? 0 : cache.getStamp(entityClass, primaryKey);
+		if (node == null && cache != null) {
+			snapshot = cache.get(entityClass, primaryKey);
+			if (snapshot != null) {
+				try {
+					node = entityManager.getDatabase().getNodeById(snapshot.getNodeId());
+				} catch (NotFoundException e) {
+					cache.invalidate(entityClass, primaryKey);
+					snapshot = null;
+				}
+			}
+		}
 		if (node == null) {
-			throw new IllegalArgumentException("No node found with key " + primaryKey);
+			node = entityManager.findNode(entityClass, primaryKey, true);
+			if (node == null) {
+				throw new IllegalArgumentException("No node found with key " + primaryKey);
+			}
+		}
+		if (session != null) {
+			session.putNode(keySpace, primaryKey, node);
+			if (entityClass.isInstance(session.getReference(node))) {
+				return entityClass.cast(session.getReference(node));
+			}
+			if (entityClass.isInstance(session.getEntity(node))) {
+				return entityClass.cast(session.getEntity(node));
+			}
+		}
+		if (snapshot == null && cache != null) {
+			snapshot = EntitySnapshot.of(node);
+			cache.put(entityClass, primaryKey, snapshot, stamp);
 		}
 		T entity = null;
 		try {
-			entity = entityClass.newInstance();
+			entity = entityClass.cast(EntityMetadata.forClass(entityClass).newInstance());
 		} catch (Exception e) {
 			log.error(MessageFormat.format("error creating entity: {0}", entityClass.getName()), e);
 		}
-		GraphDBEntityBuilder.buildEntity(node, entity);
+		if (session == null) {
+			session = new Session();
+		}
+		GraphDBEntityBuilder.buildEntity(snapshot, node, entity, plan, session, entityManager.getConverterRegistry());
 		return entity;
 	}
 
+	/**
+	 * @see #read(Class, Object, FetchPlan)
+	 * @see FetchPlan#register(FetchPlan)
+	 */
+	public T read(Class<T> entityClass, Object primaryKey, String planName) throws IllegalArgumentException {
+		return read(entityClass, primaryKey, FetchPlan.forName(planName));
+	}
+
 	public void update(T entity) {
-		// TODO: this should be: entityManager.update(), then we'd have one tx.
-		Object primaryKey = getPrimaryKey(entity);
+		update(entity, null);
+	}
+
+	/**
+	 * Updates the entity, writing the entities it refers to as far as the
+	 * cascade goes.
+	 * 
+	 * @param entity
+	 * @param cascade
+	 *            null to go by the {@link Cascade} annotations
+	 * @throws CascadeException
+	 *             if the update goes further than a cascade allows
+	 * @see EntityManager#update(Object, Node, CascadeType)
+	 */
+	public void update(T entity, CascadeType cascade) {
+		// a lazy reference read earlier stands in for the entity
+		Object target = LazyReferences.unwrap(entity);
+		Object primaryKey = EntityMetadata.forClass(target.getClass()).getPrimaryKeyValue(target);
 		if(primaryKey == null){
 			throw new IllegalArgumentException(MessageFormat.format(
-					"No primary key for class {0}", entity.getClass()));
+					"No primary key for class {0}", target.getClass()));
 		}
-		Transaction transaction = entityManager.getDatabase().beginTx();
-		Index<Node> index = entityManager.getNodeIndex(entity.getClass());
-		Node node = index.get(EntityManager.PRIMARY_KEY, primaryKey).getSingle();
+		// the lookup needs no transaction, and the update has its own, so
+		// large collections can be written in chunks of their own
+		Node node = entityManager.findNode(target.getClass(), primaryKey, true);
 		if(node == null){
 			throw new IllegalArgumentException(MessageFormat.format(
-					"No node exists for class {0} with primary key {1}", entity.getClass(), primaryKey));
+					"No node exists for class {0} with primary key {1}", target.getClass(), primaryKey));
 		}
-		entityManager.update(entity, node);
-		transaction.success();
-		transaction.finish();
-	}
-
-	private Object getPrimaryKey(T entity) {
-		Class<?> clazz = entity.getClass();
-		while (clazz != null && !clazz.isPrimitive() && !clazz.equals(Object.class)) {
-			for (Field field : clazz.getDeclaredFields()) {
-				try {
-					if (isThePrimaryKey(field)) {
-						field.setAccessible(true);
-						return field.get(entity);
-					}
-				} catch (Exception e) {
-					log.error("error creating node for entity: " + entity, e);
-				}
-			}
-			clazz = clazz.getSuperclass();
-		}
-		return null;
-	}
-
-	private static boolean isThePrimaryKey(Field field) {
-		return field.isAnnotationPresent(Id.class);
+		entityManager.update(target, node, cascade);
 	}
 
 	public void destroy(T entity, Object primaryKey) {
+		Object target = LazyReferences.unwrap(entity);
+		Node node = entityManager.findNode(target.getClass(), primaryKey, false);
 		Transaction transaction = entityManager.getDatabase().beginTx();
-		Index<Node> index = entityManager.getNodeIndex(entity.getClass());
-		Node node = index.get(EntityManager.PRIMARY_KEY, primaryKey).getSingle();
-		node.delete();
-		transaction.success();
-		transaction.finish();
+		try {
+			node.delete();
+			transaction.success();
+		} finally {
+			transaction.finish();
+		}
+		entityManager.nodeDeleted(target.getClass(), primaryKey, node);
 	}
 
 	public void setEntityManager(EntityManager entityManager) {
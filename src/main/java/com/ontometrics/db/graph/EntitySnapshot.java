@@ -0,0 +1,90 @@
+package com.ontometrics.db.graph;
+
+import java.lang.reflect.Array;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * The properties of a node as they were at one point, which is what the
+ * {@link EntityCache} keeps. Relationships are not part of it, they are read
+ * from the node.
+ *
+ * @author Rob
+ *
+ */
+public class EntitySnapshot {
+
+	private final long nodeId;
+
+	private final Map<String, Object> properties;
+
+	private final long createdMillis;
+
+	private final long estimatedBytes;
+
+	public EntitySnapshot(long nodeId, Map<String, Object> properties) {
+		this.nodeId = nodeId;
+		this.properties = Collections.unmodifiableMap(new HashMap<String, Object>(properties));
+		this.createdMillis = System.currentTimeMillis();
+		this.estimatedBytes = estimate(this.properties);
+	}
+
+	/**
+	 * @param node
+	 * @return a snapshot of the node's properties
+	 */
+	public static EntitySnapshot of(Node node) {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		for (String key : node.getPropertyKeys()) {
+			properties.put(key, node.getProperty(key));
+		}
+		return new EntitySnapshot(node.getId(), properties);
+	}
+
+	public long getNodeId() {
+		return nodeId;
+	}
+
+	public Map<String, Object> getProperties() {
+		return properties;
+	}
+
+	public long getCreatedMillis() {
+		return createdMillis;
+	}
+
+	/**
+	 * @return a rough guess of the heap the snapshot takes up
+	 */
+	public long getEstimatedBytes() {
+		return estimatedBytes;
+	}
+
+	private static long estimate(Map<String, Object> properties) {
+		long bytes = 64;
+		for (Map.Entry<String, Object> property : properties.entrySet()) {
+			bytes += 48 + estimate(property.getKey()) + estimate(property.getValue());
+		}
+		return bytes;
+	}
+
+	private static long estimate(Object value) {
+		if (value instanceof String) {
+			return 40 + 2 * ((String) value).length();
+		}
+		if (value != null && value.getClass().isArray()) {
+			int length = Array.getLength(value);
+			long bytes = 16;
+			for (int i = 0; i < length; i++) {
+				Object element = Array.get(value, i);
+				bytes += element instanceof String ? estimate(element) : 8;
+			}
+			return bytes;
+		}
+		return 16;
+	}
+
+}
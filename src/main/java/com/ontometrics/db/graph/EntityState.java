@@ -0,0 +1,307 @@
+package com.ontometrics.db.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ontometrics.db.graph.conversion.LongConverter;
+import com.ontometrics.db.graph.conversion.ConverterRegistry;
+import com.ontometrics.db.graph.conversion.TypeConverter;
+import com.ontometrics.db.graph.lazy.Lazy;
+import com.ontometrics.db.graph.lazy.LazyCollection;
+import com.ontometrics.db.graph.lazy.LazyReference;
+import com.ontometrics.db.graph.metadata.EntityMetadata;
+import com.ontometrics.db.graph.metadata.FieldMetadata;
+import com.ontometrics.utils.ArrayUtils;
+
+/**
+ * The persistent fields of an entity as they were when it was last read or
+ * written, so an update can tell which fields have changed.
+ * <p>
+ * Properties are kept in the form they are stored in, so a field compares
+ * unchanged when it would write the same property. Relationship fields keep
+ * the instances they referred to, and compare unchanged when they refer to
+ * the same instances, whatever has happened to those since: the referenced
+ * entities are checked on their own. Fields referring to an entity without a
+ * primary key, or a map of entities, never compare unchanged, since we could
+ * not find their nodes to check them. A lazy collection compares unchanged
+ * only while it has not been loaded.
+ * <p>
+ * Numeric primitive fields, and values with a {@link LongConverter}, are
+ * kept as a <code>long</code>, so they are neither boxed to be remembered nor
+ * to be compared. Embedded values are kept as the properties they are
+ * stored as. Values are converted by the converters of the entity manager
+ * that read or wrote the entity.
+ *
+ * @author Rob
+ *
+ * @see Session
+ */
+class EntityState {
+
+	/**
+	 * Stands in for values we cannot compare, different from everything.
+	 */
+	private static final Object UNKNOWN = new Object();
+
+	/**
+	 * Stands in for values kept in {@link #primitives}.
+	 */
+	private static final Object PRIMITIVE = new Object();
+
+	/**
+	 * By {@link FieldMetadata#getPosition()}.
+	 */
+	private final Object[] values;
+
+	/**
+	 * By {@link FieldMetadata#getPosition()}, doubles as their bits.
+	 */
+	private final long[] primitives;
+
+	private final ConverterRegistry converters;
+
+	private EntityState(int fields, ConverterRegistry converters) {
+		values = new Object[fields];
+		primitives = new long[fields];
+		this.converters = converters;
+	}
+
+	/**
+	 * @param entity
+	 * @param converters
+	 *            those the entity is written with
+	 * @return the state of the entity's persistent fields now
+	 */
+	static EntityState of(Object entity, ConverterRegistry converters) {
+		List<FieldMetadata> fields = EntityMetadata.forClass(entity.getClass()).getPersistentFields();
+		EntityState state = new EntityState(fields.size(), converters);
+		for (int i = 0; i < fields.size(); i++) {
+			FieldMetadata field = fields.get(i);
+			if (field.isPrimitiveNumber()) {
+				state.values[i] = PRIMITIVE;
+				state.primitives[i] = bits(field, entity);
+				continue;
+			}
+			Object value = field.getValue(entity);
+			if (field.isEmbedded()) {
+				state.values[i] = state.embeddedForm(field, value);
+				continue;
+			}
+			LongConverter converter = state.longConverter(value);
+			if (converter != null) {
+				state.values[i] = PRIMITIVE;
+				state.primitives[i] = converter.toLong(value);
+			} else {
+				state.values[i] = state.persistedForm(value);
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * @param field
+	 * @param value
+	 *            the value of the field now
+	 * @return true if writing the value would not change what was written for
+	 *         the field
+	 */
+	boolean isUnchanged(FieldMetadata field, Object value) {
+		int position = field.getPosition();
+		if (position < 0 || position >= values.length) {
+			return false;
+		}
+		if (field.isEmbedded()) {
+			return sameProperties(values[position], embeddedForm(field, value));
+		}
+		if (values[position] == PRIMITIVE) {
+			if (field.isPrimitiveNumber()) {
+				return value instanceof Number && primitives[position] == bits(field, (Number) value);
+			}
+			LongConverter converter = longConverter(value);
+			return converter != null && primitives[position] == converter.toLong(value);
+		}
+		return same(values[position], persistedForm(value));
+	}
+
+	/**
+	 * Compares a numeric primitive field without boxing it.
+	 * 
+	 * @param field
+	 *            a field for which {@link FieldMetadata#isPrimitiveNumber()}
+	 * @param entity
+	 * @return true if the field of the entity has the value it had
+	 */
+	boolean isPrimitiveUnchanged(FieldMetadata field, Object entity) {
+		int position = field.getPosition();
+		return position >= 0 && position < values.length && values[position] == PRIMITIVE
+				&& primitives[position] == bits(field, entity);
+	}
+
+	/**
+	 * @return the properties an embedded value is stored as, its arrays
+	 *         copied, or {@link #UNKNOWN} if it cannot be stored
+	 */
+	private Object embeddedForm(FieldMetadata field, Object value) {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		if (value == null) {
+			return properties;
+		}
+		try {
+			EntityManager.flatten(field.getName() + ".", value, properties, converters);
+		} catch (IllegalArgumentException e) {
+			// the write will tell
+			return UNKNOWN;
+		}
+		for (Map.Entry<String, Object> property : properties.entrySet()) {
+			if (property.getValue().getClass().isArray()) {
+				property.setValue(ArrayUtils.copyOf(property.getValue()));
+			}
+		}
+		return properties;
+	}
+
+	private static boolean sameProperties(Object before, Object now) {
+		if (!(before instanceof Map) || !(now instanceof Map)) {
+			return false;
+		}
+		Map<?, ?> beforeProperties = (Map<?, ?>) before;
+		Map<?, ?> nowProperties = (Map<?, ?>) now;
+		if (beforeProperties.size() != nowProperties.size()) {
+			return false;
+		}
+		for (Map.Entry<?, ?> property : nowProperties.entrySet()) {
+			if (!EntityManager.sameProperty(property.getValue(), beforeProperties.get(property.getKey()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long bits(FieldMetadata field, Object entity) {
+		return field.isIntegral() ? field.getLong(entity) : Double.doubleToLongBits(field.getDouble(entity));
+	}
+
+	private static long bits(FieldMetadata field, Number value) {
+		return field.isIntegral() ? value.longValue() : Double.doubleToLongBits(value.doubleValue());
+	}
+
+	/**
+	 * @param value
+	 * @return the converter that stores the value as a long, if it is stored
+	 *         through one
+	 */
+	private LongConverter longConverter(Object value) {
+		if (value == null || value instanceof Collection || value instanceof Map || value.getClass().isEnum()
+				|| EntityManager.isPrimitiveType(value)) {
+			return null;
+		}
+		TypeConverter converter = converters.getConverter(value.getClass());
+		return converter instanceof LongConverter ? (LongConverter) converter : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object persistedForm(Object value) {
+		if (value == null) {
+			return null;
+		}
+		if (value instanceof LazyCollection && !((Lazy) value).isLoaded()) {
+			// nothing can have been changed without loading it
+			return new Unloaded(value);
+		}
+		if (value instanceof Collection) {
+			Collection<Object> collection = (Collection<Object>) value;
+			if (!collection.isEmpty() && EntityManager.isCollectionOfPrimitives(collection)) {
+				return ArrayUtils.toPrimitives(collection);
+			}
+			List<Object> references = new ArrayList<Object>(collection.size());
+			for (Object element : collection) {
+				references.add(reference(element));
+			}
+			return references;
+		}
+		if (value instanceof Map) {
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if (EntityManager.toPropertyValue(entry.getKey(), converters) == null || entry.getValue() == null
+						|| EntityManager.toPropertyValue(entry.getValue(), converters) == null) {
+					return UNKNOWN;
+				}
+			}
+			return new HashMap<Object, Object>((Map<Object, Object>) value);
+		}
+		if (value.getClass().isEnum()) {
+			return value;
+		}
+		if (ArrayUtils.isPropertyArray(value)) {
+			// the entity may change the array in place
+			return ArrayUtils.copyOf(value);
+		}
+		Object property = EntityManager.toPropertyValue(value, converters);
+		return property != null ? property : reference(value);
+	}
+
+	private static Object reference(Object entity) {
+		if (entity instanceof LazyReference) {
+			// a proxy that is never loaded refers to what it did at first
+			return entity instanceof Lazy && !((Lazy) entity).isLoaded() ? entity : UNKNOWN;
+		}
+		if (entity.getClass().isEnum()) {
+			return entity;
+		}
+		return EntityMetadata.forClass(entity.getClass()).getPrimaryKeyValue(entity) == null ? UNKNOWN : entity;
+	}
+
+	private static boolean same(Object before, Object now) {
+		if (before == UNKNOWN || now == UNKNOWN) {
+			return false;
+		}
+		if (before == now) {
+			return true;
+		}
+		if (before == null || now == null) {
+			return false;
+		}
+		if (before instanceof Unloaded) {
+			// once loaded it may have been changed, and we never saw what it
+			// loaded
+			return now instanceof Unloaded && ((Unloaded) before).collection == ((Unloaded) now).collection;
+		}
+		if (before instanceof List && now instanceof List) {
+			List<?> beforeList = (List<?>) before;
+			List<?> nowList = (List<?>) now;
+			if (beforeList.size() != nowList.size()) {
+				return false;
+			}
+			for (int i = 0; i < beforeList.size(); i++) {
+				if (beforeList.get(i) == UNKNOWN || beforeList.get(i) != nowList.get(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (before.getClass().isArray() && now.getClass().isArray()) {
+			return Arrays.deepEquals(new Object[] { before }, new Object[] { now });
+		}
+		if (before instanceof Map || EntityManager.isPrimitiveType(before)) {
+			return before.equals(now);
+		}
+		return false;
+	}
+
+	/**
+	 * A lazy collection that had not been loaded.
+	 */
+	private static class Unloaded {
+
+		private final Object collection;
+
+		Unloaded(Object collection) {
+			this.collection = collection;
+		}
+
+	}
+
+}
@@ -0,0 +1,20 @@
+package com.ontometrics.db.graph;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * The default fetch behaviour of a relationship field. A {@link FetchPlan}
+ * can only narrow it: past the edge of the plan every relationship is read as
+ * a {@link FetchType#STUB}.
+ */
+@Target({ FIELD })
+@Retention(RUNTIME)
+public @interface Fetch {
+
+	FetchType value() default FetchType.LAZY;
+
+}
@@ -0,0 +1,135 @@
+package com.ontometrics.db.graph;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Says how much of the graph a read materializes: how many relationships deep
+ * to go from the entity that is read, and optionally which relationship
+ * fields to follow. Relationships past the edge of the plan are read as
+ * stubs, instances with only their primary key set, or left unset when the
+ * referenced entity has no primary key.
+ * <p>
+ * Plans are immutable, and can be registered under their name to be shared
+ * between callers.
+ *
+ * @author Rob
+ *
+ * @see EntityRepository#read(Class, Object, FetchPlan)
+ * @see Fetch
+ */
+public final class FetchPlan {
+
+	public static final int UNLIMITED = Integer.MAX_VALUE;
+
+	/**
+	 * Follows every relationship, the default.
+	 */
+	public static final FetchPlan ALL = new FetchPlan("all", UNLIMITED, null);
+
+	private static final ConcurrentMap<String, FetchPlan> plans = new ConcurrentHashMap<String, FetchPlan>();
+	static {
+		register(ALL);
+	}
+
+	private final String name;
+
+	private final int maxDepth;
+
+	/**
+	 * The fields to follow, null for all of them.
+	 */
+	private final Set<String> fields;
+
+	private FetchPlan(String name, int maxDepth, Set<String> fields) {
+		if (name == null) {
+			throw new IllegalArgumentException("a fetch plan needs a name");
+		}
+		if (maxDepth < 0) {
+			throw new IllegalArgumentException("depth cannot be negative: " + maxDepth);
+		}
+		this.name = name;
+		this.maxDepth = maxDepth;
+		this.fields = fields;
+	}
+
+	/**
+	 * @param maxDepth
+	 *            0 to read only the entity itself
+	 * @return a plan that follows every relationship up to the given depth
+	 */
+	public static FetchPlan depth(int maxDepth) {
+		return new FetchPlan("depth" + maxDepth, maxDepth, null);
+	}
+
+	/**
+	 * @param name
+	 * @param fields
+	 *            the relationship fields to follow, at any depth
+	 * @return a plan that only follows the given fields
+	 */
+	public static FetchPlan fields(String name, String... fields) {
+		return new FetchPlan(name, UNLIMITED, Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(fields))));
+	}
+
+	/**
+	 * @param maxDepth
+	 * @return a copy of this plan that stops at the given depth
+	 */
+	public FetchPlan withDepth(int maxDepth) {
+		return new FetchPlan(name, maxDepth, fields);
+	}
+
+	/**
+	 * Makes the plan available through {@link #forName(String)}, replacing
+	 * any plan registered under the same name.
+	 *
+	 * @param plan
+	 * @return the plan
+	 */
+	public static FetchPlan register(FetchPlan plan) {
+		plans.put(plan.getName(), plan);
+		return plan;
+	}
+
+	/**
+	 * @param name
+	 * @return the registered plan
+	 */
+	public static FetchPlan forName(String name) {
+		FetchPlan plan = plans.get(name);
+		if (plan == null) {
+			throw new IllegalArgumentException("No fetch plan registered with name " + name);
+		}
+		return plan;
+	}
+
+	/**
+	 * @param fieldName
+	 * @param depth
+	 *            the depth of the entity that would be read by following the
+	 *            field, 1 for the relationships of the root entity
+	 * @return true if the relationship is within the plan
+	 */
+	public boolean follows(String fieldName, int depth) {
+		return depth <= maxDepth && (fields == null || fields.contains(fieldName));
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	@Override
+	public String toString() {
+		return "FetchPlan [name=" + name + ", maxDepth=" + maxDepth + ", fields=" + fields + "]";
+	}
+
+}
@@ -0,0 +1,40 @@
+package com.ontometrics.db.graph;
+
+/**
+ * How a relationship field is read when its owner is read.
+ * 
+ * @author Rob
+ * 
+ * @see Fetch
+ */
+public enum FetchType {
+
+	/**
+	 * Set and List fields, and single references that can be proxied, are
+	 * loaded on first access, everything else right away. References declared
+	 * as an interface can always be proxied. References to an entity class
+	 * are only proxied when the field is annotated
+	 * <code>@Fetch(FetchType.LAZY)</code> and the class has a generated
+	 * proxy, see {@link com.ontometrics.db.graph.lazy.LazyReferences}, as the
+	 * proxy is a subclass that an entity's <code>equals</code> may not accept.
+	 * Maps, enums and all other references stay eager.
+	 */
+	LAZY,
+
+	/**
+	 * Read right away.
+	 */
+	EAGER,
+
+	/**
+	 * Only the primary key of the referenced entities is read, into otherwise
+	 * empty instances.
+	 */
+	STUB,
+
+	/**
+	 * Not read at all, the field keeps the value the constructor gave it.
+	 */
+	NONE
+
+}
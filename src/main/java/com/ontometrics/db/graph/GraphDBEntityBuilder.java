@@ -1,14 +1,13 @@
 package com.ontometrics.db.graph;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
-
-import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -20,99 +19,444 @@ import org.neo4j.graphdb.Relationship;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ontometrics.db.graph.conversion.ConverterRegistry;
 import com.ontometrics.db.graph.conversion.TypeConverter;
 import com.ontometrics.db.graph.conversion.TypeRegistry;
+import com.ontometrics.db.graph.lazy.LazyList;
+import com.ontometrics.db.graph.lazy.LazyReferences;
+import com.ontometrics.db.graph.lazy.LazySet;
+import com.ontometrics.db.graph.lazy.Loader;
+import com.ontometrics.db.graph.metadata.EntityMetadata;
+import com.ontometrics.db.graph.metadata.FieldMetadata;
 import com.ontometrics.utils.ArrayUtils;
+import com.ontometrics.utils.PrimitiveArrayList;
 
 public class GraphDBEntityBuilder {
 
 	private static final Logger log = LoggerFactory.getLogger(GraphDBEntityBuilder.class);
 
-	// the map is to hold created entities to use it to avoid circular
-	// references
-	private Map<Node, Object> entitiesMap = new HashMap<Node, Object>();
-	private static Set<String> ignoredClasses = new HashSet<String>();
+	// the session holds created entities to use it to avoid circular
+	// references, and to share them between reads
+	private final Session session;
+	private static final Set<String> ignoredClasses;
 	static {
-		ignoredClasses.add("ch.qos.logback.classic.Logger");
-		ignoredClasses.add("org.slf4j.Logger");
+		Set<String> classes = new HashSet<String>();
+		classes.add("ch.qos.logback.classic.Logger");
+		classes.add("org.slf4j.Logger");
+		ignoredClasses = Collections.unmodifiableSet(classes);
+	}
+	/**
+	 * Whether relationships that can be deferred are left to load on first
+	 * access.
+	 */
+	private final boolean lazy;
+
+	private final FetchPlan plan;
+
+	private final ConverterRegistry converters;
+
+	GraphDBEntityBuilder(boolean lazy, FetchPlan plan, Session session, ConverterRegistry converters) {
+		this.lazy = lazy;
+		this.plan = plan;
+		this.session = session;
+		this.converters = converters;
 	}
+
+	/**
+	 * Populates the entity from the node. Set and List fields, and single
+	 * references that can be proxied, are loaded when first used.
+	 * 
+	 * @param node
+	 * @param entity
+	 * @see #buildEntity(Node, Object, boolean)
+	 */
 	public static void buildEntity(Node node, Object entity) {
-		GraphDBEntityBuilder builder = new GraphDBEntityBuilder();
-		builder.build(node, entity);
-		// clean after build is done
-		builder.entitiesMap = new HashMap<Node, Object>();
+		buildEntity(node, entity, FetchPlan.ALL);
+	}
+
+	/**
+	 * Populates the entity from the node.
+	 * <p>
+	 * When lazy, Set and List fields get a {@link LazySet} or {@link LazyList}
+	 * and single references get a proxy, which read their targets through this
+	 * builder the first time they are used. So the builder, with the entities
+	 * it has already built, lives as long as any of them, and the database has
+	 * to stay open until then. References declared as an interface are always
+	 * proxied, references to a class only if the field is annotated
+	 * <code>@Fetch(FetchType.LAZY)</code> and the referenced entity's class has
+	 * a generated proxy, see {@link LazyReferences}. Other references,
+	 * collections other than Set and List, maps and enums are read right
+	 * away.
+	 * 
+	 * @param node
+	 * @param entity
+	 * @param lazy
+	 *            false to read everything that can be reached from the node
+	 */
+	public static void buildEntity(Node node, Object entity, boolean lazy) {
+		new GraphDBEntityBuilder(lazy, FetchPlan.ALL, new Session(), TypeRegistry.getDefault()).build(node, entity, 0);
+	}
+
+	/**
+	 * Populates the entity from the node, following relationships only as far
+	 * as the plan allows. Relationships past the edge of the plan are set to
+	 * stubs holding only the primary key of the referenced entity.
+	 * 
+	 * @param node
+	 * @param entity
+	 * @param plan
+	 */
+	public static void buildEntity(Node node, Object entity, FetchPlan plan) {
+		buildEntity(node, entity, plan, new Session());
 	}
 
-	private void build(Node node, Object entity) {
+	/**
+	 * Populates the entity from the node as far as the plan allows. Entities
+	 * already in the session are used as they are, and those built are added
+	 * to it.
+	 * 
+	 * @param node
+	 * @param entity
+	 * @param plan
+	 * @param session
+	 */
+	public static void buildEntity(Node node, Object entity, FetchPlan plan, Session session) {
+		buildEntity(null, node, entity, plan, session, TypeRegistry.getDefault());
+	}
+
+	/**
+	 * Populates the entity from a snapshot of the node's properties, and from
+	 * the node's relationships as far as the plan allows.
+	 * 
+	 * @param snapshot
+	 *            the properties of the node, taken earlier
+	 * @param node
+	 * @param entity
+	 * @param plan
+	 * @param session
+	 */
+	public static void buildEntity(EntitySnapshot snapshot, Node node, Object entity, FetchPlan plan, Session session) {
+		buildEntity(snapshot, node, entity, plan, session, TypeRegistry.getDefault());
+	}
+
+	/**
+	 * Populates the entity from the snapshot, if there is one, or else the
+	 * node, converting properties with the given converters.
+	 */
+	static void buildEntity(EntitySnapshot snapshot, Node node, Object entity, FetchPlan plan, Session session,
+			ConverterRegistry converters) {
+		new GraphDBEntityBuilder(true, plan, session, converters).build(node,
+				snapshot == null ? null : snapshot.getProperties(), entity, 0);
+	}
+
+	private void build(Node node, Object entity, int depth) {
+		build(node, null, entity, depth);
+	}
+
+	/**
+	 * @param node
+	 * @param properties
+	 *            the properties to use instead of reading them from the node,
+	 *            or null
+	 * @param entity
+	 * @param depth
+	 *            how many relationships away from the entity that is read the
+	 *            node is
+	 */
+	private void build(final Node node, Map<String, Object> properties, Object entity, final int depth) {
 		log.debug("building entity: {}", entity.getClass().getName());
-		entitiesMap.put(node, entity);
+		session.putEntity(node, entity);
+		EntityMetadata metadata = EntityMetadata.forClass(entity.getClass());
 
 		log.debug("looking for keys from node: {}", node.toString());
-		for (String key : node.getPropertyKeys()) {
+		Iterable<String> keys = properties == null ? node.getPropertyKeys() : properties.keySet();
+		Set<FieldMetadata> embedded = new HashSet<FieldMetadata>();
+		for (String key : keys) {
 			log.info("evaluating key: {}", key);
+			if (EntityManager.TYPE_PROPERTY.equals(key)) {
+				continue;
+			}
 			try {
-				Field field = getField(entity.getClass(), key);
-				if(isSettable(field)) {
-					field.setAccessible(true);
-					Object value = getFieldValue(node.getProperty(key), entity, field.getType());
-					log.debug("setting field: {}, of type: {}, to value: {}", new Object[]{field, field.getType(), value});
-					field.set(entity, value);
+				int dot = key.indexOf('.');
+				FieldMetadata owner = dot < 0 ? null : metadata.getField(key.substring(0, dot));
+				if (owner != null && owner.isEmbedded()) {
+					if (embedded.add(owner)) {
+						owner.setValue(entity, buildEmbedded(owner.getType(), owner.getName() + ".", node, properties));
+					}
+					continue;
 				}
+				if (key.endsWith(EntityManager.MAP_VALUES)) {
+					// read along with the keys
+					continue;
+				}
+				if (key.endsWith(EntityManager.MAP_KEYS)) {
+					String name = key.substring(0, key.length() - EntityManager.MAP_KEYS.length());
+					FieldMetadata field = metadata.getField(name);
+					if (field == null) {
+						throw new NoSuchFieldException(name);
+					}
+					String valuesKey = name + EntityManager.MAP_VALUES;
+					field.setValue(entity, buildCompactMap(field, properties == null ? node.getProperty(key)
+							: properties.get(key), properties == null ? node.getProperty(valuesKey) : properties
+							.get(valuesKey)));
+					continue;
+				}
+				FieldMetadata field = metadata.getField(key);
+				if (field == null) {
+					throw new NoSuchFieldException(key);
+				}
+				Object property = properties == null ? node.getProperty(key) : properties.get(key);
+				if (field.isStoredAs(property)) {
+					if (field.isIntegral()) {
+						field.setLong(entity, ((Number) property).longValue());
+					} else {
+						field.setDouble(entity, ((Number) property).doubleValue());
+					}
+					continue;
+				}
+				Object value = getFieldValue(property, entity, field.getType());
+				log.debug("setting field: {}, of type: {}, to value: {}", new Object[]{field, field.getType(), value});
+				field.setValue(entity, value);
 			} catch (Exception e) {
 				log.error("error building entity: " + entity, e);
 			}
 		}
+		Set<FieldMetadata> deferred = new HashSet<FieldMetadata>();
 		Iterator<Relationship> iterator = node.getRelationships(Direction.OUTGOING).iterator();
 		while (iterator.hasNext()) {
 			Relationship relationship = iterator.next();
 			log.info("evaluating relationship: {}", relationship.getType().name());
 
-			// need to see if the field is in a super class
-			Class<?> entityClass = entity.getClass();
-			while (entityClass != null && !Object.class.getName().equals(entityClass.getName())) {
+			// the field may be declared, or shadowed, in a super class
+			for (FieldMetadata field : metadata.getFields(relationship.getType().name())) {
 				try {
-					log.debug("EntityClass is {}", entityClass);
-					log.debug("processing field: {}, for class: {}", relationship.getType().name(), entityClass.getName());
-					Field field = entityClass.getDeclaredField(relationship.getType().name());
-					field.setAccessible(true);
 					log.debug("setting field: {} of type {}", field, field.getType());
 					if(ignoredClasses(field.getType())) {
 						continue;
 					}
 						
 					Class<?> fieldType = field.getType();
+					FetchType fetchType = field.getFetchType();
+					if (fetchType == FetchType.NONE) {
+						continue;
+					}
+					if (fieldType.isEnum() || (fieldType.isInterface() && isEnum(relationship))) {
+						// enums are values, there is nothing to traverse
+						buildEnumProperty(entity, relationship, field);
+						continue;
+					} else if (fetchType == FetchType.STUB || !plan.follows(field.getName(), depth + 1)) {
+						buildStubEntry(entity, relationship, field);
+						continue;
+					}
+					boolean deferrable = lazy && fetchType == FetchType.LAZY;
 					if (Collection.class.isAssignableFrom(fieldType)) {
-						buildCollectionEntry(entity, relationship, field, fieldType);
+						if (deferred.contains(field)) {
+							continue;
+						}
+						Collection<Object> lazyCollection = deferrable ? newLazyCollection(node, field, depth + 1) : null;
+						if (lazyCollection != null) {
+							field.setValue(entity, lazyCollection);
+							deferred.add(field);
+						} else {
+							buildCollectionEntry(entity, relationship, field, fieldType, depth + 1);
+						}
 					} else if (Map.class.isAssignableFrom(fieldType)) {
-						buildMapEntry(entity, relationship, field, fieldType);
-					} else if (fieldType.isEnum() || (fieldType.isInterface() && isEnum(relationship))) {
-						buildEnumProperty(entity, relationship, field);
+						buildMapEntry(entity, relationship, field, fieldType, depth + 1);
 					} else {
-						
-						Object value = null;
-						if (entitiesMap.containsKey(relationship.getEndNode())) {
-							value = entitiesMap.get(relationship.getEndNode());
+						Node endNode = relationship.getEndNode();
+						// a subclass proxy can break equals and direct field access
+						// of the entity, so entity classes are only deferred when
+						// the field asks for it
+						Class<?> proxyType = deferrable && (fieldType.isInterface() || field.isFetchDeclared())
+								&& session.getReference(endNode) == null && !session.containsEntity(endNode)
+								? proxyType(relationship, fieldType) : null;
+						if (proxyType != null) {
+							Object proxy = LazyReferences.newProxy(proxyType,
+									referenceLoader(relationship, fieldType, depth + 1));
+							session.putReference(endNode, proxy);
+							field.setValue(entity, proxy);
 						} else {
-							if (relationship.hasProperty(EntityManager.TYPE_PROPERTY)) {
-								value = newInstanceOfClass(Class.forName((String) relationship
-										.getProperty(EntityManager.TYPE_PROPERTY)));
-							} else {
-								value = newInstanceOfClass(fieldType);
-							}
-							build(relationship.getEndNode(), value);
+							field.setValue(entity, buildReference(relationship, fieldType, depth + 1));
 						}
-						field.set(entity, value);
 					}
-				} catch (NoSuchFieldException e) {
-					log.info("error building relationship for entity: {}, try {}, {} ", new Object[]{entityClass, entityClass.getSuperclass(), e.getMessage()});
 				} catch(Exception ex) {
-					log.error("error building relationship for entity: " + entityClass + ", try  " + entityClass.getSuperclass(), ex);
-				} finally {
-					entityClass = entityClass.getSuperclass();
+					log.error("error building relationship " + field + " for entity: " + entity.getClass(), ex);
+				}
+			}
+
+		}
+		session.takeState(entity);
+	}
+
+	/**
+	 * Returns the entity at the end of the relationship, or the proxy the
+	 * session already has for it, building it unless it has already been
+	 * built by this builder.
+	 * 
+	 * @param relationship
+	 * @param defaultType
+	 *            the type to build when the relationship does not name one
+	 * @param depth
+	 *            the depth of the end node
+	 * @return
+	 * @throws ClassNotFoundException
+	 * @throws InstantiationException
+	 * @throws IllegalAccessException
+	 */
+	private Object buildReference(Relationship relationship, Class<?> defaultType, int depth)
+			throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+		Object reference = session.getReference(relationship.getEndNode());
+		return fits(reference, defaultType) ? reference : buildTarget(relationship, defaultType, depth);
+	}
+
+	/**
+	 * @return true if the proxy can be used where the type is declared, which
+	 *         one made for an interface may not
+	 */
+	private static boolean fits(Object reference, Class<?> declaredType) {
+		return reference != null && (declaredType == null || declaredType.isInstance(reference));
+	}
+
+	/**
+	 * @return the entity at the end of the relationship, never a proxy
+	 * @see #buildReference(Relationship, Class, int)
+	 */
+	private Object buildTarget(Relationship relationship, Class<?> defaultType, int depth)
+			throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+		Node endNode = relationship.getEndNode();
+		if (session.containsEntity(endNode)) {
+			return session.getEntity(endNode);
+		}
+		Object value = newInstanceOfClass(referencedType(relationship, defaultType));
+		build(endNode, value, depth);
+		return value;
+	}
+
+	private static Class<?> referencedType(Relationship relationship, Class<?> defaultType)
+			throws ClassNotFoundException {
+		if (relationship.hasProperty(EntityManager.TYPE_PROPERTY)) {
+			return Class.forName((String) relationship.getProperty(EntityManager.TYPE_PROPERTY));
+		}
+		return defaultType;
+	}
+
+	/**
+	 * Returns an instance of the entity at the end of the relationship with
+	 * only its primary key set. An entity this builder has already built is
+	 * returned as it is.
+	 * 
+	 * @param relationship
+	 * @param defaultType
+	 * @return the stub, or null if the entity has no primary key
+	 * @throws ClassNotFoundException
+	 * @throws InstantiationException
+	 * @throws IllegalAccessException
+	 */
+	private Object buildStub(Relationship relationship, Class<?> defaultType) throws ClassNotFoundException,
+			InstantiationException, IllegalAccessException {
+		Node endNode = relationship.getEndNode();
+		if (fits(session.getReference(endNode), defaultType)) {
+			return session.getReference(endNode);
+		}
+		if (session.containsEntity(endNode)) {
+			return session.getEntity(endNode);
+		}
+		Class<?> type = referencedType(relationship, defaultType);
+		EntityMetadata metadata = EntityMetadata.forClass(type);
+		if (!metadata.hasPrimaryKey() || !endNode.hasProperty(metadata.getPrimaryKey().getName())) {
+			return null;
+		}
+		FieldMetadata primaryKey = metadata.getPrimaryKey();
+		Object stub = newInstanceOfClass(type);
+		primaryKey.setValue(stub,
+				getFieldValue(endNode.getProperty(primaryKey.getName()), stub, primaryKey.getType()));
+		return stub;
+	}
+
+	/**
+	 * Sets the field, or adds to it for collections, a stub for the entity at
+	 * the end of the relationship. Maps are left alone.
+	 */
+	@SuppressWarnings("unchecked")
+	private void buildStubEntry(Object entity, Relationship relationship, FieldMetadata field)
+			throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+		Class<?> fieldType = field.getType();
+		if (Map.class.isAssignableFrom(fieldType)) {
+			return;
+		}
+		if (Collection.class.isAssignableFrom(fieldType)) {
+			Object stub = buildStub(relationship, field.getTypeArgument(0));
+			if (stub != null) {
+				Collection<Object> collection = (Collection<Object>) field.getValue(entity);
+				if (collection == null) {
+					collection = (Collection<Object>) newInstanceOfCollection(fieldType);
+					field.setValue(entity, collection);
 				}
+				collection.add(stub);
+			}
+		} else {
+			Object stub = buildStub(relationship, fieldType);
+			if (stub != null) {
+				field.setValue(entity, stub);
 			}
+		}
+	}
 
+	/**
+	 * @param relationship
+	 * @param fieldType
+	 * @return the type of proxy that can stand in for the entity at the end of
+	 *         the relationship, the field type if that is an interface or else
+	 *         the class of the entity, or null if there is none
+	 * @throws ClassNotFoundException
+	 */
+	private static Class<?> proxyType(Relationship relationship, Class<?> fieldType) throws ClassNotFoundException {
+		Class<?> type = fieldType.isInterface() ? fieldType : referencedType(relationship, fieldType);
+		return LazyReferences.canDefer(type) ? type : null;
+	}
+
+	private Loader<Object> referenceLoader(final Relationship relationship, final Class<?> defaultType, final int depth) {
+		return new Loader<Object>() {
+			public Object load() {
+				try {
+					return buildTarget(relationship, defaultType, depth);
+				} catch (Exception e) {
+					throw new IllegalStateException("cannot load " + relationship.getType().name() + " of node "
+							+ relationship.getStartNode().getId(), e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param node
+	 * @param field
+	 * @return a collection that loads the field's relationships on first use,
+	 *         or null if the field cannot hold one
+	 */
+	private Collection<Object> newLazyCollection(final Node node, final FieldMetadata field, final int depth) {
+		Class<?> fieldType = field.getType();
+		Loader<List<Object>> loader = new Loader<List<Object>>() {
+			public List<Object> load() {
+				log.debug("loading {} of node {}", field.getName(), node.getId());
+				List<Object> elements = new ArrayList<Object>();
+				for (Relationship relationship : node.getRelationships(field.getRelationshipType(), Direction.OUTGOING)) {
+					try {
+						elements.add(buildReference(relationship, field.getTypeArgument(0), depth));
+					} catch (Exception e) {
+						log.error("error loading " + field + " of node " + node.getId(), e);
+					}
+				}
+				return elements;
+			}
+		};
+		if (Set.class.isAssignableFrom(fieldType) && fieldType.isAssignableFrom(LazySet.class)) {
+			return new LazySet<Object>(loader);
 		}
+		if (List.class.isAssignableFrom(fieldType) && fieldType.isAssignableFrom(LazyList.class)) {
+			return new LazyList<Object>(loader);
+		}
+		return null;
 	}
 	
 	/**
@@ -144,21 +488,12 @@ public class GraphDBEntityBuilder {
 	 * @throws IllegalArgumentException 
 	 */
 	@SuppressWarnings({ "unchecked", "rawtypes" })
-	private void buildEnumProperty(Object entity, Relationship relationship, Field field) throws ClassNotFoundException, IllegalArgumentException, IllegalAccessException {
+	private void buildEnumProperty(Object entity, Relationship relationship, FieldMetadata field) throws ClassNotFoundException, IllegalArgumentException, IllegalAccessException {
 		String enumClass = (String) relationship.getProperty(EntityManager.TYPE_PROPERTY);
 		
 		Class<? extends Enum> _class = (Class<? extends Enum>) Class.forName(enumClass);
 		Object value = Enum.valueOf(_class, (String) relationship.getEndNode().getProperty("name"));
-		field.set(entity, value);
-	}
-
-	private boolean isSettable(Field field) {
-		int modifiers = field.getModifiers();
-		if (Modifier.isStatic(modifiers)) {
-			log.debug("field {} is stati, so not settting this field", field.getName());
-			return false;
-		}
-		return true;
+		field.setValue(entity, value);
 	}
 
 	private boolean ignoredClasses(Class<?> entityClass) {
@@ -169,6 +504,86 @@ public class GraphDBEntityBuilder {
 		return isIgnored;
 	}
 
+	/**
+	 * Builds an {@link Embedded} value from the properties of its owner's
+	 * node.
+	 * 
+	 * @param type
+	 *            the declared type of the value
+	 * @param prefix
+	 *            the name of the field holding the value and a dot
+	 * @param node
+	 * @param properties
+	 *            the properties to use instead of reading them from the node,
+	 *            or null
+	 * @return the value, or null if none of its properties are stored
+	 * @throws InstantiationException
+	 * @throws IllegalAccessException
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Object buildEmbedded(Class<?> type, String prefix, Node node, Map<String, Object> properties)
+			throws InstantiationException, IllegalAccessException {
+		Object value = null;
+		for (FieldMetadata field : EntityMetadata.forClass(type).getPersistentFields()) {
+			String name = prefix + field.getName();
+			Object fieldValue;
+			if (field.isEmbedded()) {
+				fieldValue = buildEmbedded(field.getType(), name + ".", node, properties);
+			} else {
+				Object property = properties == null ? node.getProperty(name, null) : properties.get(name);
+				if (property == null) {
+					continue;
+				}
+				if (field.getType().isEnum()) {
+					fieldValue = Enum.valueOf((Class<Enum>) field.getType(), (String) property);
+				} else {
+					fieldValue = getFieldValue(property, null, field.getType());
+				}
+			}
+			if (fieldValue == null) {
+				continue;
+			}
+			if (value == null) {
+				value = EntityMetadata.forClass(type).newInstance();
+			}
+			field.setValue(value, fieldValue);
+		}
+		return value;
+	}
+
+	/**
+	 * Builds a map stored {@link CompactMap compact}, in a map of the declared
+	 * type if that can be made, otherwise one that keeps the stored order.
+	 * 
+	 * @param field
+	 * @param keys
+	 *            the stored array of keys
+	 * @param values
+	 *            the stored array of values, in the same order
+	 * @return the map
+	 * @throws InstantiationException
+	 * @throws IllegalAccessException
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<Object, Object> buildCompactMap(FieldMetadata field, Object keys, Object values)
+			throws InstantiationException, IllegalAccessException {
+		Class<?> type = field.getType();
+		Map<Object, Object> map = type.isAssignableFrom(LinkedHashMap.class) ? new LinkedHashMap<Object, Object>()
+				: (Map<Object, Object>) type.newInstance();
+		TypeConverter keyConverter = field.getTypeArgument(0) == null ? null : converters.getConverter(field
+				.getTypeArgument(0));
+		TypeConverter valueConverter = field.getTypeArgument(1) == null ? null : converters.getConverter(field
+				.getTypeArgument(1));
+		int length = Array.getLength(keys);
+		for (int i = 0; i < length; i++) {
+			Object key = Array.get(keys, i);
+			Object value = Array.get(values, i);
+			map.put(keyConverter == null ? key : keyConverter.convertFromPrimitive(key),
+					valueConverter == null ? value : valueConverter.convertFromPrimitive(value));
+		}
+		return map;
+	}
+
 	/**
 	 * Build the key/value pair and add it to the map
 	 * 
@@ -176,18 +591,21 @@ public class GraphDBEntityBuilder {
 	 * @param relationship
 	 * @param field
 	 * @param fieldType
+	 * @param depth
+	 *            the depth of the referenced entities
 	 * @throws IllegalArgumentException
 	 * @throws IllegalAccessException
 	 * @throws InstantiationException
 	 * @throws ClassNotFoundException
 	 */
 	@SuppressWarnings("unchecked")
-	private void buildMapEntry(Object entity, Relationship relationship, Field field, Class<?> fieldType)
+	private void buildMapEntry(Object entity, Relationship relationship, FieldMetadata field, Class<?> fieldType,
+			int depth)
 			throws IllegalArgumentException, IllegalAccessException, InstantiationException, ClassNotFoundException {
-		Map<Object, Object> map = (Map<Object, Object>) field.get(entity);
+		Map<Object, Object> map = (Map<Object, Object>) field.getValue(entity);
 		if (map == null) {
 			map = HashMap.class.newInstance();
-			field.set(entity, map);
+			field.setValue(entity, map);
 		}
 		Node entryNode = relationship.getEndNode();
 		String[] keys = new String[] { "key", "value" };// same order like
@@ -204,23 +622,7 @@ public class GraphDBEntityBuilder {
 			if (entryNode.hasRelationship(Direction.OUTGOING, DynamicRelationshipType.withName(key))) {
 				Relationship keyRelationship = entryNode.getSingleRelationship(DynamicRelationshipType.withName(key),
 						Direction.OUTGOING);
-				Node otherNode = keyRelationship.getEndNode();
-				Object value = null;
-				if (entitiesMap.containsKey(otherNode)) {
-					value = entitiesMap.get(otherNode);
-				} else {
-					if (keyRelationship.hasProperty(EntityManager.TYPE_PROPERTY)) {
-						value = newInstanceOfClass(Class.forName((String) keyRelationship
-								.getProperty(EntityManager.TYPE_PROPERTY)));
-					} else {
-						Class<?> type = (Class<?>) ((ParameterizedType) field.getGenericType())
-								.getActualTypeArguments()[i];
-						value = newInstanceOfClass(type);
-					}
-
-					build(otherNode, value);
-				}
-				values.put(key, value);
+				values.put(key, buildReference(keyRelationship, field.getTypeArgument(i), depth));
 			}
 		}
 		map.put(values.get("key"), values.get("value"));
@@ -233,47 +635,23 @@ public class GraphDBEntityBuilder {
 	 * @param relationship
 	 * @param field
 	 * @param fieldType
+	 * @param depth
+	 *            the depth of the referenced entities
 	 * @throws IllegalAccessException
 	 * @throws InstantiationException
 	 * @throws ClassNotFoundException
 	 */
 	@SuppressWarnings("unchecked")
-	private void buildCollectionEntry(Object entity, Relationship relationship, Field field, Class<?> fieldType)
+	private void buildCollectionEntry(Object entity, Relationship relationship, FieldMetadata field,
+			Class<?> fieldType, int depth)
 			throws IllegalAccessException, InstantiationException, ClassNotFoundException {
 
-		Collection<Object> collection = (Collection<Object>) field.get(entity);
+		Collection<Object> collection = (Collection<Object>) field.getValue(entity);
 		if (collection == null) {
 			collection = (Collection<Object>) newInstanceOfCollection(fieldType);
-			field.set(entity, collection);
-		}
-		if (relationship.hasProperty(EntityManager.TYPE_PROPERTY)) {
-			fieldType = Class.forName((String) relationship.getProperty(EntityManager.TYPE_PROPERTY));
-		} else {
-			fieldType = (Class<?>) ((ParameterizedType) field.getGenericType()).getActualTypeArguments()[0];
-		}
-
-		Object value = null;
-		if (entitiesMap.containsKey(relationship.getEndNode())) {
-			value = entitiesMap.get(relationship.getEndNode());
-		} else {
-			value = newInstanceOfClass(fieldType);
-			build(relationship.getEndNode(), value);
-		}
-		collection.add(value);
-	}
-
-	@SuppressWarnings("rawtypes")
-	private static Field getField(Class clazz, String fieldName) throws NoSuchFieldException {
-		try {
-			return clazz.getDeclaredField(fieldName);
-		} catch (NoSuchFieldException e) {
-			Class superClass = clazz.getSuperclass();
-			if (superClass == null) {
-				throw e;
-			} else {
-				return getField(superClass, fieldName);
-			}
+			field.setValue(entity, collection);
 		}
+		collection.add(buildReference(relationship, field.getTypeArgument(0), depth));
 	}
 
 	/**
@@ -304,10 +682,7 @@ public class GraphDBEntityBuilder {
 	 * @throws IllegalAccessException
 	 */
 	private static Object newInstanceOfClass(Class<?> type) throws InstantiationException, IllegalAccessException {
-		if (type.isInterface()) {
-			throw new InstantiationException("Type " + type + " is interface");
-		}
-		return type.newInstance();
+		return EntityMetadata.forClass(type).newInstance();
 	}
 
 	/**
@@ -325,15 +700,25 @@ public class GraphDBEntityBuilder {
 	 * @throws InstantiationException
 	 */
 	@SuppressWarnings("unchecked")
-	private static Object getFieldValue(Object property, Object entity, Class<?> type) throws IllegalArgumentException,
+	private Object getFieldValue(Object property, Object entity, Class<?> type) throws IllegalArgumentException,
 			IllegalAccessException, InstantiationException {
-		TypeConverter converter = TypeRegistry.getConverter(type);
+		TypeConverter converter = converters.getConverter(type);
 		if (converter != null) {
 			log.debug("get property of type {} using converter {}", new Object[] { type, converter.getClass() });
 			return converter.convertFromPrimitive(property);
 		}
 
 		if (property.getClass().isArray()) {
+			// the database hands out the array it caches, so it must not be
+			// changed through the entity
+			if (type.isArray()) {
+				return ArrayUtils.copyOf(property);
+			}
+			PrimitiveArrayList<?> list = PrimitiveArrayList.wrap(property);
+			if (list != null && type.isInstance(list)) {
+				log.debug("get property of type array as a list over it");
+				return list;
+			}
 			log.debug("get property of type array");
 			Collection<Object> collection = (Collection<Object>) newInstanceOfCollection(type);
 			collection.addAll(ArrayUtils.toCollection(property));
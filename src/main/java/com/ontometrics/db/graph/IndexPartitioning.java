@@ -0,0 +1,44 @@
+package com.ontometrics.db.graph;
+
+/**
+ * Decides which node index the entities of a class are kept in. Relationship
+ * indexes are named after the node index of the class owning the field.
+ * <p>
+ * Changing the partitioning of an existing store leaves its entries where
+ * they were, so they have to be moved over with
+ * {@link EntityManager#migrateIndexes(IndexPartitioning, java.util.Iterator, BatchListener)}.
+ *
+ * @author Rob
+ *
+ * @see EntityManager#setIndexPartitioning(IndexPartitioning)
+ */
+public interface IndexPartitioning {
+
+	/**
+	 * An index per class hierarchy, named after the topmost superclass short
+	 * of {@link Object}, or the enum class for enum constants. The default.
+	 */
+	public static final IndexPartitioning ROOT_TYPE = new IndexPartitioning() {
+		public String nodeIndexName(Class<?> entityClass) {
+			return EntityManager.nodeIndexName(entityClass);
+		}
+	};
+
+	/**
+	 * A single index for everything, named after {@link Object}, which is how
+	 * stores were laid out before indexes were partitioned. Primary keys have
+	 * to be unique across all types.
+	 */
+	public static final IndexPartitioning SHARED = new IndexPartitioning() {
+		public String nodeIndexName(Class<?> entityClass) {
+			return Object.class.getName();
+		}
+	};
+
+	/**
+	 * @param entityClass
+	 * @return the name of the node index the entities of the class go in
+	 */
+	public String nodeIndexName(Class<?> entityClass);
+
+}
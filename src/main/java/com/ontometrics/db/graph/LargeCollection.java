@@ -0,0 +1,30 @@
+package com.ontometrics.db.graph;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a collection field whose relationships are written in chunks, each in
+ * its own transaction, after the owning entity has been committed. Collections
+ * larger than {@link EntityManager#getLargeCollectionThreshold()} are written
+ * that way whether annotated or not.
+ * 
+ * @see EntityManager#writeCollection(Object, String, java.util.Iterator, long,
+ *      BatchListener)
+ */
+@Target({ FIELD })
+@Retention(RUNTIME)
+public @interface LargeCollection {
+
+	/**
+	 * How many elements to write per transaction, 0 for the batch size of the
+	 * entity manager.
+	 * 
+	 * @return
+	 */
+	int chunkSize() default 0;
+
+}
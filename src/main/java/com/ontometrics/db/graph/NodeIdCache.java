@@ -0,0 +1,149 @@
+package com.ontometrics.db.graph;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ontometrics.utils.LruCache;
+
+/**
+ * The ids of the nodes of entities by root type and primary key, so finding
+ * the node of a key that has been seen recently does not have to go to the
+ * index.
+ * <p>
+ * The entity manager only adds the ids of nodes it has written or found once
+ * its transaction has committed, and drops those of nodes deleted through a
+ * repository. Nodes deleted some other way, or rolled back with a
+ * transaction the write was part of, leave their ids behind, so an id is
+ * checked against the primary key of its node before use.
+ * <p>
+ * Entries are spread over stripes by the hash of their key, each holding an
+ * equal share of the entries and dropping the least recently used of them
+ * to make room, so threads looking up different keys seldom wait on each
+ * other.
+ *
+ * @author Rob
+ *
+ * @see EntityManager#setNodeIdCache(NodeIdCache)
+ */
+public class NodeIdCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	private static final int STRIPES = 16;
+
+	private final LruCache<Key, Long>[] stripes;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	public NodeIdCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            the most ids kept, rounded up to a multiple of the number of
+	 *            stripes
+	 */
+	public NodeIdCache(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("max entries must be positive: " + maxEntries);
+		}
+		stripes = newStripes(STRIPES);
+		int stripeEntries = (maxEntries + STRIPES - 1) / STRIPES;
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new LruCache<Key, Long>(stripeEntries);
+		}
+	}
+
+	/**
+	 * @param entityClass
+	 * @param primaryKey
+	 * @return the id of the node of the entity with the key, or -1
+	 */
+	public long get(Class<?> entityClass, Object primaryKey) {
+		return get(EntityManager.nodeIndexName(entityClass), primaryKey);
+	}
+
+	long get(String keySpace, Object primaryKey) {
+		Key key = new Key(keySpace, primaryKey);
+		Long id = stripe(key).get(key);
+		if (id == null) {
+			misses.incrementAndGet();
+			return -1;
+		}
+		hits.incrementAndGet();
+		return id;
+	}
+
+	void put(String keySpace, Object primaryKey, long id) {
+		Key key = new Key(keySpace, primaryKey);
+		stripe(key).put(key, id);
+	}
+
+	public void invalidate(Class<?> entityClass, Object primaryKey) {
+		invalidate(EntityManager.nodeIndexName(entityClass), primaryKey);
+	}
+
+	void invalidate(String keySpace, Object primaryKey) {
+		Key key = new Key(keySpace, primaryKey);
+		stripe(key).remove(key);
+	}
+
+	public void clear() {
+		for (LruCache<Key, Long> stripe : stripes) {
+			stripe.clear();
+		}
+	}
+
+	public CacheStatistics getStatistics() {
+		long evictions = 0;
+		long size = 0;
+		for (LruCache<Key, Long> stripe : stripes) {
+			evictions += stripe.getEvictions();
+			size += stripe.size();
+		}
+		return new CacheStatistics(hits.get(), misses.get(), evictions, 0, size);
+	}
+
+	/**
+	 * @return room for the stripes, the one unchecked cast of the class
+	 */
+	@SuppressWarnings("unchecked")
+	private static <K, V> LruCache<K, V>[] newStripes(int count) {
+		return (LruCache<K, V>[]) new LruCache<?, ?>[count];
+	}
+
+	private LruCache<Key, Long> stripe(Key key) {
+		int hash = key.hashCode();
+		return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+	}
+
+	private static class Key {
+
+		private final String keySpace;
+
+		private final Object primaryKey;
+
+		Key(String keySpace, Object primaryKey) {
+			this.keySpace = keySpace;
+			this.primaryKey = primaryKey;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * keySpace.hashCode() + primaryKey.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return keySpace.equals(other.keySpace) && primaryKey.equals(other.primaryKey);
+		}
+
+	}
+
+}
@@ -0,0 +1,181 @@
+package com.ontometrics.db.graph;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.neo4j.graphdb.Node;
+
+import com.ontometrics.db.graph.conversion.ConverterRegistry;
+
+/**
+ * A unit of work: remembers the entities read and written, by node, and the
+ * nodes found by primary key, so repeated reads return the same instance and
+ * do not go back to the index.
+ * <p>
+ * Entities are kept as they were first built, so a read with a wider
+ * {@link FetchPlan} than an earlier one in the same session does not see
+ * more. Once a lazy reference to a node has been handed out, that proxy is
+ * what the session gives for the node, and the entity is what the proxy
+ * loads. A session begun through the entity manager also remembers the state
+ * of every entity read or written, so an update writes only what has changed
+ * since. A session is meant to be short lived, one per request, and is not
+ * safe for use by more than one thread. After a failed write it should be
+ * ended, as it may remember nodes that were rolled back.
+ *
+ * @author Rob
+ *
+ * @see EntityManager#beginSession()
+ */
+public class Session {
+
+	private final Map<Long, Object> entities = new HashMap<Long, Object>();
+
+	/**
+	 * The proxies handed out for nodes, which stand in for their entities
+	 * from then on, loaded or not.
+	 */
+	private final Map<Long, Object> references = new HashMap<Long, Object>();
+
+	/**
+	 * Nodes by primary key, by index name.
+	 */
+	private final Map<String, Map<Object, Node>> nodes = new HashMap<String, Map<Object, Node>>();
+
+	/**
+	 * Only kept when tracking changes.
+	 */
+	private final Map<Object, EntityState> states = new IdentityHashMap<Object, EntityState>();
+
+	/**
+	 * Those changes are compared with, null when not tracking changes.
+	 */
+	private final ConverterRegistry converters;
+
+	/**
+	 * A session that does not track changes, for a single read.
+	 */
+	public Session() {
+		this(null);
+	}
+
+	/**
+	 * @param converters
+	 *            those of the entity manager, to track changes with, or null
+	 *            not to track them
+	 */
+	Session(ConverterRegistry converters) {
+		this.converters = converters;
+	}
+
+	/**
+	 * @param node
+	 * @return the entity read from or written to the node, or null
+	 */
+	public Object getEntity(Node node) {
+		return entities.get(node.getId());
+	}
+
+	public boolean containsEntity(Node node) {
+		return entities.containsKey(node.getId());
+	}
+
+	public void putEntity(Node node, Object entity) {
+		entities.put(node.getId(), entity);
+	}
+
+	/**
+	 * @param node
+	 * @return the proxy standing in for the entity of the node, or null if
+	 *         none has been handed out
+	 * @see com.ontometrics.db.graph.lazy.LazyReference
+	 */
+	public Object getReference(Node node) {
+		return references.get(node.getId());
+	}
+
+	public void putReference(Node node, Object reference) {
+		references.put(node.getId(), reference);
+	}
+
+	/**
+	 * @param indexName
+	 * @param primaryKey
+	 * @return the node with the primary key, or null if it has not been seen
+	 *         in this session
+	 */
+	public Node getNode(String indexName, Object primaryKey) {
+		Map<Object, Node> keys = nodes.get(indexName);
+		return keys == null ? null : keys.get(primaryKey);
+	}
+
+	public void putNode(String indexName, Object primaryKey, Node node) {
+		Map<Object, Node> keys = nodes.get(indexName);
+		if (keys == null) {
+			keys = new HashMap<Object, Node>();
+			nodes.put(indexName, keys);
+		}
+		keys.put(primaryKey, node);
+	}
+
+	public boolean isTrackingChanges() {
+		return converters != null;
+	}
+
+	/**
+	 * @param entity
+	 * @return the state of the entity when it was last read or written, or
+	 *         null
+	 */
+	EntityState getState(Object entity) {
+		return states.get(entity);
+	}
+
+	/**
+	 * Remembers the state the entity is in now, if tracking changes.
+	 * 
+	 * @param entity
+	 */
+	void takeState(Object entity) {
+		if (converters != null) {
+			states.put(entity, EntityState.of(entity, converters));
+		}
+	}
+
+	/**
+	 * Forgets everything about the node, for when it has been deleted.
+	 *
+	 * @param node
+	 */
+	public void evict(Node node) {
+		references.remove(node.getId());
+		Object entity = entities.remove(node.getId());
+		if (entity != null) {
+			states.remove(entity);
+		}
+		for (Map<Object, Node> keys : nodes.values()) {
+			Iterator<Node> iterator = keys.values().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().getId() == node.getId()) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		entities.clear();
+		references.clear();
+		nodes.clear();
+		states.clear();
+	}
+
+	/**
+	 * @return the number of entities in the session
+	 */
+	public int size() {
+		return entities.size();
+	}
+
+}
@@ -0,0 +1,485 @@
+package com.ontometrics.db.graph;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.tooling.GlobalGraphOperations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ontometrics.db.graph.metadata.EntityMetadata;
+import com.ontometrics.db.graph.metadata.FieldMetadata;
+import com.ontometrics.utils.LongBitSet;
+
+/**
+ * Deletes the nodes nothing can reach any more, such as those of map entries
+ * and of entities without a primary key that were written before the
+ * {@link EntityManager} deleted them itself, or that were left behind by
+ * writes that failed halfway.
+ * <p>
+ * A run first marks every node reachable, following relationships outwards,
+ * from a node in a primary key index, which is the node of an entity with a
+ * primary key or of an enum constant, or from the reference node. It then
+ * sweeps the store, in transactions of at most {@link #getBatchSize()}
+ * unmarked nodes, pausing {@link #getPauseMillis()} between them so it does
+ * not crowd out other writes. Every unmarked node is checked again under a
+ * lock before it is deleted, together with its relationships and index
+ * entries, so what was written while the run went on is left alone: a node
+ * is only deleted if neither it nor anything referring to it, however
+ * indirectly, is in a primary key index, or is referred to by a marked
+ * node.
+ * <p>
+ * A node of an entity with a primary key that has been created but not yet
+ * marked is recognised by its {@link EntityManager#TYPE_PROPERTY}, and by
+ * looking up its primary key property in the index of that class. That does
+ * not find keys stored through a
+ * {@link com.ontometrics.db.graph.conversion.TypeConverter} as something
+ * other than the key itself, so entities keyed that way should not be
+ * created while a run is going on. Entities without a primary key that were
+ * created on their own, not referred to by anything, count as unreachable.
+ * <p>
+ * A vacuum can be run when wanted with {@link #run(BatchListener)}, or in
+ * the background with {@link #start(long, TimeUnit)}. Only one run goes on
+ * at a time.
+ *
+ * @author Rob
+ *
+ */
+public class Vacuum {
+
+	private static final Logger log = LoggerFactory.getLogger(Vacuum.class);
+
+	/**
+	 * Removed from a node to lock it, it is never set.
+	 */
+	private static final String LOCK = "_vacuumLock";
+
+	private final EntityManager entityManager;
+
+	private final Object runLock = new Object();
+
+	private volatile int batchSize = EntityManager.DEFAULT_BATCH_SIZE;
+
+	private volatile long pauseMillis;
+
+	private volatile VacuumReport lastReport;
+
+	private ScheduledExecutorService executor;
+
+	public Vacuum(EntityManager entityManager) {
+		this.entityManager = entityManager;
+	}
+
+	/**
+	 * Runs the vacuum every period, on a thread of its own, until
+	 * {@link #stop()} is called. Runs that fail are logged, and the next one
+	 * goes ahead.
+	 *
+	 * @param period
+	 *            the time between the end of a run and the start of the next
+	 * @param unit
+	 */
+	public synchronized void start(long period, TimeUnit unit) {
+		if (executor != null) {
+			throw new IllegalArgumentException("vacuum is already running");
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "graph-vacuum");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					Vacuum.this.run(null);
+				} catch (RuntimeException e) {
+					log.error("vacuum failed", e);
+				}
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Stops running in the background, letting a run that has started finish.
+	 */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Runs the vacuum once, in the calling thread.
+	 *
+	 * @param listener
+	 *            told about every committed transaction, with the nodes it
+	 *            deleted and the nodes deleted so far as total, may be null
+	 * @return what was reclaimed
+	 */
+	public VacuumReport run(BatchListener listener) {
+		synchronized (runLock) {
+			long start = System.nanoTime();
+			GraphDatabaseService database = entityManager.getDatabase();
+			IndexManager indexManager = database.index();
+			List<Index<Node>> nodeIndexes = new ArrayList<Index<Node>>();
+			for (String name : indexManager.nodeIndexNames()) {
+				nodeIndexes.add(indexManager.forNodes(name));
+			}
+			List<Index<Relationship>> relationshipIndexes = new ArrayList<Index<Relationship>>();
+			for (String name : indexManager.relationshipIndexNames()) {
+				relationshipIndexes.add(indexManager.forRelationships(name));
+			}
+			LongBitSet marked = mark(database, nodeIndexes);
+			Sweep sweep = new Sweep(database, marked, nodeIndexes, relationshipIndexes, listener);
+			for (Node node : GlobalGraphOperations.at(database).getAllNodes()) {
+				sweep.scan(node);
+			}
+			sweep.flush();
+			VacuumReport report = new VacuumReport(marked.cardinality(), sweep.scanned, sweep.nodesDeleted,
+					sweep.relationshipsDeleted, sweep.deferred, (System.nanoTime() - start) / 1000000);
+			log.info("vacuum done: {}", report);
+			lastReport = report;
+			return report;
+		}
+	}
+
+	/**
+	 * @return the ids of the nodes reachable from a node in a primary key
+	 *         index or the reference node
+	 */
+	private LongBitSet mark(GraphDatabaseService database, List<Index<Node>> nodeIndexes) {
+		LongBitSet marked = new LongBitSet();
+		markFrom(database.getReferenceNode(), marked);
+		for (Index<Node> index : nodeIndexes) {
+			IndexHits<Node> roots = index.query(EntityManager.PRIMARY_KEY, "*");
+			try {
+				for (Node root : roots) {
+					markFrom(root, marked);
+				}
+			} finally {
+				roots.close();
+			}
+		}
+		log.debug("marked {} nodes", marked.cardinality());
+		return marked;
+	}
+
+	private void markFrom(Node root, LongBitSet marked) {
+		Deque<Node> pending = new ArrayDeque<Node>();
+		pending.push(root);
+		while (!pending.isEmpty()) {
+			Node node = pending.pop();
+			if (marked.get(node.getId())) {
+				continue;
+			}
+			marked.set(node.getId());
+			for (Relationship relationship : node.getRelationships(Direction.OUTGOING)) {
+				Node endNode = relationship.getEndNode();
+				if (!marked.get(endNode.getId())) {
+					pending.push(endNode);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The deleting half of a run, which gathers unmarked nodes and deletes
+	 * them a transaction at a time.
+	 */
+	private class Sweep {
+
+		private final GraphDatabaseService database;
+
+		private final LongBitSet marked;
+
+		private final List<Index<Node>> nodeIndexes;
+
+		private final List<Index<Relationship>> relationshipIndexes;
+
+		private final BatchListener listener;
+
+		private final LongBitSet deleted = new LongBitSet();
+
+		/**
+		 * Those deleted in the transaction going on.
+		 */
+		private final List<Long> deletedInChunk = new ArrayList<Long>();
+
+		private final List<Long> candidates = new ArrayList<Long>();
+
+		long scanned;
+
+		long nodesDeleted;
+
+		long relationshipsDeleted;
+
+		long deferred;
+
+		private int chunk;
+
+		Sweep(GraphDatabaseService database, LongBitSet marked, List<Index<Node>> nodeIndexes,
+				List<Index<Relationship>> relationshipIndexes, BatchListener listener) {
+			this.database = database;
+			this.marked = marked;
+			this.nodeIndexes = nodeIndexes;
+			this.relationshipIndexes = relationshipIndexes;
+			this.listener = listener;
+		}
+
+		void scan(Node node) {
+			scanned++;
+			if (!marked.get(node.getId())) {
+				candidates.add(node.getId());
+				if (candidates.size() >= batchSize) {
+					flush();
+				}
+			}
+		}
+
+		/**
+		 * Deletes what is unreachable of the candidates gathered, in one
+		 * transaction.
+		 */
+		void flush() {
+			if (candidates.isEmpty()) {
+				return;
+			}
+			long start = System.nanoTime();
+			long before = nodesDeleted;
+			long relationshipsBefore = relationshipsDeleted;
+			boolean committed = false;
+			Transaction transaction = database.beginTx();
+			try {
+				for (Long id : candidates) {
+					if (deleted.get(id)) {
+						continue;
+					}
+					Node node;
+					try {
+						node = database.getNodeById(id);
+					} catch (NotFoundException e) {
+						continue;
+					}
+					Map<Long, Node> garbage = unreachableFrom(node);
+					if (garbage == null) {
+						continue;
+					}
+					for (Node unreachable : garbage.values()) {
+						delete(unreachable);
+					}
+				}
+				transaction.success();
+				committed = true;
+			} catch (RuntimeException e) {
+				// most likely a deadlock with a writer
+				log.warn("vacuum of " + candidates.size() + " nodes failed", e);
+				transaction.failure();
+			} finally {
+				try {
+					transaction.finish();
+				} catch (RuntimeException e) {
+					log.warn("vacuum of " + candidates.size() + " nodes failed to commit", e);
+					committed = false;
+				}
+			}
+			if (!committed) {
+				// the nodes will still be there on the next run
+				nodesDeleted = before;
+				relationshipsDeleted = relationshipsBefore;
+				for (Long id : deletedInChunk) {
+					deleted.clear(id);
+				}
+				deferred += candidates.size();
+			}
+			candidates.clear();
+			deletedInChunk.clear();
+			chunk++;
+			long millis = (System.nanoTime() - start) / 1000000;
+			log.debug("vacuum chunk {} deleted {} nodes in {} ms", new Object[] { chunk, nodesDeleted - before,
+					millis });
+			if (listener != null) {
+				listener.chunkCommitted(chunk, (int) (nodesDeleted - before), nodesDeleted, millis);
+			}
+			pause();
+		}
+
+		/**
+		 * Finds the unmarked nodes that can reach the given one, locking them
+		 * so nothing new can refer to them until we commit.
+		 *
+		 * @param node
+		 *            an unmarked node
+		 * @return the node and all that can reach it, if none of them is
+		 *         reachable, or else null
+		 */
+		private Map<Long, Node> unreachableFrom(Node node) {
+			Map<Long, Node> found = new LinkedHashMap<Long, Node>();
+			Deque<Node> pending = new ArrayDeque<Node>();
+			found.put(node.getId(), node);
+			pending.add(node);
+			while (!pending.isEmpty()) {
+				Node next = pending.poll();
+				next.removeProperty(LOCK);
+				if (isPrimaryKeyIndexed(next)) {
+					return null;
+				}
+				for (Relationship relationship : next.getRelationships(Direction.INCOMING)) {
+					Node startNode = relationship.getStartNode();
+					if (marked.get(startNode.getId())) {
+						return null;
+					}
+					if (!found.containsKey(startNode.getId())) {
+						if (found.size() >= batchSize) {
+							log.debug("too much refers to node {}, leaving it for later", node.getId());
+							deferred++;
+							return null;
+						}
+						found.put(startNode.getId(), startNode);
+						pending.add(startNode);
+					}
+				}
+			}
+			return found;
+		}
+
+		/**
+		 * @return true if the node is in the primary key index of its class
+		 *         under its primary key, so it is that of an entity with a
+		 *         primary key or an enum constant created since the nodes were
+		 *         marked, or if that cannot be told
+		 */
+		private boolean isPrimaryKeyIndexed(Node node) {
+			String typeName = (String) node.getProperty(EntityManager.TYPE_PROPERTY, null);
+			if (typeName == null) {
+				// only nodes in a primary key index have one
+				return false;
+			}
+			Class<?> type;
+			try {
+				type = Class.forName(typeName);
+			} catch (ClassNotFoundException e) {
+				log.warn("cannot tell whether node {} of missing class {} is keyed, keeping it", node.getId(),
+						typeName);
+				return true;
+			}
+			String key = primaryKeyProperty(type);
+			Object value = key == null ? null : node.getProperty(key, null);
+			if (value == null) {
+				return false;
+			}
+			IndexHits<Node> hits = entityManager.getNodeIndex(type).get(EntityManager.PRIMARY_KEY, value);
+			try {
+				for (Node hit : hits) {
+					if (hit.equals(node)) {
+						return true;
+					}
+				}
+			} finally {
+				hits.close();
+			}
+			return false;
+		}
+
+		/**
+		 * @return the name of the property holding the primary key of nodes of
+		 *         the type, or null if it has none
+		 */
+		private String primaryKeyProperty(Class<?> type) {
+			if (type.isEnum() || (type.getSuperclass() != null && type.getSuperclass().isEnum())) {
+				return "name";
+			}
+			FieldMetadata primaryKey = EntityMetadata.forClass(type).getPrimaryKey();
+			return primaryKey == null ? null : primaryKey.getName();
+		}
+
+		private void delete(Node node) {
+			Set<Long> seen = new HashSet<Long>();
+			for (Relationship relationship : node.getRelationships()) {
+				if (!seen.add(relationship.getId())) {
+					// a loop, listed as both outgoing and incoming
+					continue;
+				}
+				for (Index<Relationship> index : relationshipIndexes) {
+					index.remove(relationship);
+				}
+				relationship.delete();
+				relationshipsDeleted++;
+			}
+			for (Index<Node> index : nodeIndexes) {
+				index.remove(node);
+			}
+			node.delete();
+			deleted.set(node.getId());
+			deletedInChunk.add(node.getId());
+			nodesDeleted++;
+		}
+
+		private void pause() {
+			long pause = pauseMillis;
+			if (pause <= 0) {
+				return;
+			}
+			try {
+				Thread.sleep(pause);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+	/**
+	 * @return the report of the last run that finished, or null
+	 */
+	public VacuumReport getLastReport() {
+		return lastReport;
+	}
+
+	/**
+	 * @return the most unreachable nodes deleted in one transaction
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batch size must be at least 1, is " + batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return how long to wait after each transaction, 0 by default
+	 */
+	public long getPauseMillis() {
+		return pauseMillis;
+	}
+
+	public void setPauseMillis(long pauseMillis) {
+		this.pauseMillis = pauseMillis;
+	}
+
+}
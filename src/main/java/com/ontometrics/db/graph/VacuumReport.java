@@ -0,0 +1,75 @@
+package com.ontometrics.db.graph;
+
+/**
+ * What one run of a {@link Vacuum} found and reclaimed.
+ *
+ * @author Rob
+ *
+ */
+public class VacuumReport {
+
+	private final long nodesMarked;
+
+	private final long nodesScanned;
+
+	private final long nodesDeleted;
+
+	private final long relationshipsDeleted;
+
+	private final long nodesDeferred;
+
+	private final long millis;
+
+	public VacuumReport(long nodesMarked, long nodesScanned, long nodesDeleted, long relationshipsDeleted,
+			long nodesDeferred, long millis) {
+		this.nodesMarked = nodesMarked;
+		this.nodesScanned = nodesScanned;
+		this.nodesDeleted = nodesDeleted;
+		this.relationshipsDeleted = relationshipsDeleted;
+		this.nodesDeferred = nodesDeferred;
+		this.millis = millis;
+	}
+
+	/**
+	 * @return nodes found reachable from an entity or enum node
+	 */
+	public long getNodesMarked() {
+		return nodesMarked;
+	}
+
+	/**
+	 * @return nodes looked at in the sweep
+	 */
+	public long getNodesScanned() {
+		return nodesScanned;
+	}
+
+	public long getNodesDeleted() {
+		return nodesDeleted;
+	}
+
+	public long getRelationshipsDeleted() {
+		return relationshipsDeleted;
+	}
+
+	/**
+	 * @return unreachable nodes left for a later run, because they could not
+	 *         be deleted within one transaction or another write got in the
+	 *         way
+	 */
+	public long getNodesDeferred() {
+		return nodesDeferred;
+	}
+
+	public long getMillis() {
+		return millis;
+	}
+
+	@Override
+	public String toString() {
+		return "VacuumReport [nodesMarked=" + nodesMarked + ", nodesScanned=" + nodesScanned + ", nodesDeleted="
+				+ nodesDeleted + ", relationshipsDeleted=" + relationshipsDeleted + ", nodesDeferred="
+				+ nodesDeferred + ", millis=" + millis + "]";
+	}
+
+}
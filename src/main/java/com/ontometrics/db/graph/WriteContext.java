@@ -0,0 +1,130 @@
+package com.ontometrics.db.graph;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.graphdb.Node;
+
+import com.ontometrics.db.graph.metadata.FieldMetadata;
+
+/**
+ * What the {@link EntityManager} remembers while it carries out one write
+ * for one thread, so writes on different threads share nothing but the
+ * database and the caches.
+ * <p>
+ * A write may be made of several transactions; what is learned in one of
+ * them is only good until it has committed, and is started afresh for the
+ * next. Large collections left to be written once the entities owning them
+ * have been committed are kept for the whole write.
+ *
+ * @author Rob
+ *
+ */
+class WriteContext {
+
+	/**
+	 * The write that was going on when this one started, on the same thread,
+	 * if any.
+	 */
+	final WriteContext enclosing;
+
+	/**
+	 * The cascade of every relationship field in this write, null for the one
+	 * each is annotated with.
+	 */
+	final CascadeType cascade;
+
+	/**
+	 * Nodes written in the current transaction.
+	 */
+	Set<Long> updatedNodes;
+
+	/**
+	 * The entities created or updated in the current transaction.
+	 */
+	List<Object> writtenEntities;
+
+	/**
+	 * The node of every object created or updated in the current
+	 * transaction, by identity, so an object referred to more than once, or
+	 * through a cycle, is written once whether it has a primary key or not.
+	 */
+	Map<Object, Node> writtenNodes;
+
+	/**
+	 * Nodes looked up or created by primary key in the current transaction,
+	 * by {@link EntityManager#nodeIndexName(Class)}, so a chunk of writes
+	 * only asks the index once per key.
+	 */
+	Map<String, Map<Object, Node>> primaryKeyNodes;
+
+	/**
+	 * Enum nodes found or created in the current transaction.
+	 */
+	Map<Enum<?>, Node> enumNodes;
+
+	/**
+	 * Large collections met while writing, to be written once the entities
+	 * owning them have been committed.
+	 */
+	final List<PendingCollection> pendingCollections = new ArrayList<PendingCollection>();
+
+	WriteContext(WriteContext enclosing, CascadeType cascade) {
+		this.enclosing = enclosing;
+		this.cascade = cascade;
+		startTransaction();
+	}
+
+	/**
+	 * Forgets what was learned in the last transaction.
+	 */
+	void startTransaction() {
+		updatedNodes = new HashSet<Long>();
+		writtenEntities = new ArrayList<Object>();
+		writtenNodes = new IdentityHashMap<Object, Node>();
+		primaryKeyNodes = new HashMap<String, Map<Object, Node>>();
+		enumNodes = new HashMap<Enum<?>, Node>();
+	}
+
+	/**
+	 * @param keySpace
+	 * @return the nodes found by primary key for the key space so far
+	 */
+	Map<Object, Node> primaryKeyNodes(String keySpace) {
+		Map<Object, Node> nodes = primaryKeyNodes.get(keySpace);
+		if (nodes == null) {
+			nodes = new HashMap<Object, Node>();
+			primaryKeyNodes.put(keySpace, nodes);
+		}
+		return nodes;
+	}
+
+	/**
+	 * A large collection waiting to be written.
+	 */
+	static class PendingCollection {
+
+		final Node node;
+
+		final Object owner;
+
+		final FieldMetadata field;
+
+		final Collection<Object> collection;
+
+		PendingCollection(Node node, Object owner, FieldMetadata field, Collection<Object> collection) {
+			this.node = node;
+			this.owner = owner;
+			this.field = field;
+			this.collection = collection;
+		}
+
+	}
+
+}
@@ -0,0 +1,117 @@
+package com.ontometrics.db.graph.conversion;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The {@link TypeConverter}s to use for storing values as node properties.
+ * <p>
+ * A class is converted by the converter registered for it, or else by that
+ * of its nearest superclass, or else of the first of its interfaces, those
+ * of the class before those of its superclasses. What is found for a class,
+ * including that there is no converter, is remembered until a converter is
+ * registered or unregistered, so lookups take no locks and mostly no
+ * searching.
+ * <p>
+ * There is a {@link TypeRegistry#getDefault() default} registry used
+ * everywhere unless an entity manager is given its own.
+ *
+ * @author Rob
+ *
+ */
+public class ConverterRegistry {
+
+	private final ConcurrentMap<Class<?>, TypeConverter> converters = new ConcurrentHashMap<Class<?>, TypeConverter>();
+
+	/**
+	 * Bumped on every change, making what was found before stale.
+	 */
+	private final AtomicInteger version = new AtomicInteger();
+
+	private final ClassValue<AtomicReference<Resolution>> resolutions = new ClassValue<AtomicReference<Resolution>>() {
+		@Override
+		protected AtomicReference<Resolution> computeValue(Class<?> type) {
+			return new AtomicReference<Resolution>();
+		}
+	};
+
+	public void register(TypeConverter converter) {
+		converters.put(converter.getType(), converter);
+		version.incrementAndGet();
+	}
+
+	public void unRegister(TypeConverter converter) {
+		if (converters.remove(converter.getType(), converter)) {
+			version.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param objectClass
+	 * @return the converter for the class, or null if it has none
+	 */
+	public TypeConverter getConverter(Class<?> objectClass) {
+		AtomicReference<Resolution> holder = resolutions.get(objectClass);
+		Resolution resolution = holder.get();
+		int current = version.get();
+		if (resolution == null || resolution.version != current) {
+			// racing threads all find the same, so whichever write wins will do
+			resolution = new Resolution(current, resolve(objectClass));
+			holder.set(resolution);
+		}
+		return resolution.converter;
+	}
+
+	private TypeConverter resolve(Class<?> objectClass) {
+		for (Class<?> type = objectClass; type != null; type = type.getSuperclass()) {
+			TypeConverter converter = converters.get(type);
+			if (converter != null) {
+				return converter;
+			}
+		}
+		Deque<Class<?>> interfaces = new ArrayDeque<Class<?>>();
+		for (Class<?> type = objectClass; type != null; type = type.getSuperclass()) {
+			for (Class<?> anInterface : type.getInterfaces()) {
+				interfaces.add(anInterface);
+			}
+		}
+		Set<Class<?>> seen = new HashSet<Class<?>>();
+		while (!interfaces.isEmpty()) {
+			Class<?> anInterface = interfaces.poll();
+			if (!seen.add(anInterface)) {
+				continue;
+			}
+			TypeConverter converter = converters.get(anInterface);
+			if (converter != null) {
+				return converter;
+			}
+			for (Class<?> superInterface : anInterface.getInterfaces()) {
+				interfaces.add(superInterface);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * What was found for a class, as of a version of the registry.
+	 */
+	private static class Resolution {
+
+		final int version;
+
+		final TypeConverter converter;
+
+		Resolution(int version, TypeConverter converter) {
+			this.version = version;
+			this.converter = converter;
+		}
+
+	}
+
+}
@@ -2,20 +2,26 @@ package com.ontometrics.db.graph.conversion;
 
 import java.util.Date;
 
-public class DateConverter implements TypeConverter{
+public class DateConverter implements LongConverter {
 
 	public Class<?> getType() {
 		return Date.class;
 	}
 
 	public Object convertToPrimitive(Object value) {
-		Date date = (Date) value;
-		return date.getTime();
+		return toLong(value);
 	}
 
 	public Object convertFromPrimitive(Object value) {
-		Long time = (Long) value;
-		return new Date(time);
+		return fromLong((Long) value);
+	}
+
+	public long toLong(Object value) {
+		return ((Date) value).getTime();
+	}
+
+	public Object fromLong(long value) {
+		return new Date(value);
 	}
 
 }
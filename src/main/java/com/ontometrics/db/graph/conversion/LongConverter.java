@@ -0,0 +1,28 @@
+package com.ontometrics.db.graph.conversion;
+
+/**
+ * A {@link TypeConverter} for values stored as a <code>long</code> property.
+ * Besides the boxed conversions it converts to and from the <code>long</code>
+ * itself, which lets unchanged values be compared with what is stored, and
+ * remembered, without boxing.
+ * 
+ * @author Rob
+ * 
+ */
+public interface LongConverter extends TypeConverter {
+
+	/**
+	 * @param value
+	 *            a value of the converter's type, not null
+	 * @return the value to store
+	 */
+	public long toLong(Object value);
+
+	/**
+	 * @param value
+	 *            the stored value
+	 * @return the value of the converter's type
+	 */
+	public Object fromLong(long value);
+
+}
@@ -1,33 +1,29 @@
 package com.ontometrics.db.graph.conversion;
 
-import java.util.HashMap;
-import java.util.Map;
-
+/**
+ * The default {@link ConverterRegistry}, which knows how to convert dates.
+ */
 public class TypeRegistry {
 
-	private static Map<String, TypeConverter> converters = new HashMap<String, TypeConverter>();
-	
+	private static final ConverterRegistry defaultRegistry = new ConverterRegistry();
+	static {
+		defaultRegistry.register(new DateConverter());
+	}
+
+	public static ConverterRegistry getDefault() {
+		return defaultRegistry;
+	}
+
 	public static void register(TypeConverter converter){
-		converters.put(converter.getType().getName(), converter);
+		defaultRegistry.register(converter);
 	}
 	
 	public static void unRegister(TypeConverter converter){
-		converters.remove(converter.getType().getName());
+		defaultRegistry.unRegister(converter);
 	}
 	
 	public static TypeConverter getConverter(Class<?> objectClass){
-		if(converters.isEmpty()){
-			addMainConverters();
-		}
-
-		if(converters.containsKey(objectClass.getName())){
-			return converters.get(objectClass.getName());
-		}
-		return null;
-	}
-
-	private static void addMainConverters() {
-		TypeRegistry.register(new DateConverter());
+		return defaultRegistry.getConverter(objectClass);
 	}
 
 }
@@ -0,0 +1,17 @@
+package com.ontometrics.db.graph.lazy;
+
+/**
+ * Implemented by the collections and proxies that stand in for relationships
+ * which have not been read yet.
+ *
+ * @author Rob
+ *
+ */
+public interface Lazy {
+
+	/**
+	 * @return true once the relationship has been read from the graph
+	 */
+	boolean isLoaded();
+
+}
@@ -0,0 +1,116 @@
+package com.ontometrics.db.graph.lazy;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * A collection that reads its elements on first use, and from then on
+ * behaves like the collection it loaded.
+ * <p>
+ * Loading goes through the session that read the owning entity, so the
+ * database has to still be open by then.
+ *
+ * @author Rob
+ *
+ * @param <E>
+ *            element type
+ * @param <C>
+ *            the collection the elements are loaded into
+ */
+public abstract class LazyCollection<E, C extends Collection<E>> implements Collection<E>, Lazy {
+
+	private Loader<? extends Collection<? extends E>> loader;
+
+	private C delegate;
+
+	protected LazyCollection(Loader<? extends Collection<? extends E>> loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * @return an empty collection of the kind this one stands in for
+	 */
+	protected abstract C newDelegate();
+
+	protected synchronized C delegate() {
+		if (delegate == null) {
+			C loaded = newDelegate();
+			loaded.addAll(loader.load());
+			delegate = loaded;
+			loader = null;
+		}
+		return delegate;
+	}
+
+	public synchronized boolean isLoaded() {
+		return delegate != null;
+	}
+
+	public int size() {
+		return delegate().size();
+	}
+
+	public boolean isEmpty() {
+		return delegate().isEmpty();
+	}
+
+	public boolean contains(Object o) {
+		return delegate().contains(o);
+	}
+
+	public Iterator<E> iterator() {
+		return delegate().iterator();
+	}
+
+	public Object[] toArray() {
+		return delegate().toArray();
+	}
+
+	public <T> T[] toArray(T[] a) {
+		return delegate().toArray(a);
+	}
+
+	public boolean add(E e) {
+		return delegate().add(e);
+	}
+
+	public boolean remove(Object o) {
+		return delegate().remove(o);
+	}
+
+	public boolean containsAll(Collection<?> c) {
+		return delegate().containsAll(c);
+	}
+
+	public boolean addAll(Collection<? extends E> c) {
+		return delegate().addAll(c);
+	}
+
+	public boolean removeAll(Collection<?> c) {
+		return delegate().removeAll(c);
+	}
+
+	public boolean retainAll(Collection<?> c) {
+		return delegate().retainAll(c);
+	}
+
+	public void clear() {
+		delegate().clear();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o == this || delegate().equals(o);
+	}
+
+	@Override
+	public int hashCode() {
+		return delegate().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return isLoaded() ? delegate.toString() : "[not loaded]";
+	}
+
+}
@@ -0,0 +1,66 @@
+package com.ontometrics.db.graph.lazy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * A {@link List} that is read from the graph on first use.
+ *
+ * @author Rob
+ *
+ * @param <E>
+ */
+public class LazyList<E> extends LazyCollection<E, List<E>> implements List<E> {
+
+	public LazyList(Loader<? extends Collection<? extends E>> loader) {
+		super(loader);
+	}
+
+	@Override
+	protected List<E> newDelegate() {
+		return new ArrayList<E>();
+	}
+
+	public boolean addAll(int index, Collection<? extends E> c) {
+		return delegate().addAll(index, c);
+	}
+
+	public E get(int index) {
+		return delegate().get(index);
+	}
+
+	public E set(int index, E element) {
+		return delegate().set(index, element);
+	}
+
+	public void add(int index, E element) {
+		delegate().add(index, element);
+	}
+
+	public E remove(int index) {
+		return delegate().remove(index);
+	}
+
+	public int indexOf(Object o) {
+		return delegate().indexOf(o);
+	}
+
+	public int lastIndexOf(Object o) {
+		return delegate().lastIndexOf(o);
+	}
+
+	public ListIterator<E> listIterator() {
+		return delegate().listIterator();
+	}
+
+	public ListIterator<E> listIterator(int index) {
+		return delegate().listIterator(index);
+	}
+
+	public List<E> subList(int fromIndex, int toIndex) {
+		return delegate().subList(fromIndex, toIndex);
+	}
+
+}
@@ -0,0 +1,20 @@
+package com.ontometrics.db.graph.lazy;
+
+/**
+ * Implemented by the proxies that stand in for single references which have
+ * not been read yet, both those made for interfaces and those generated for
+ * entity classes.
+ *
+ * @author Rob
+ *
+ * @see LazyReferences
+ */
+public interface LazyReference extends Lazy {
+
+	/**
+	 * @return the entity the proxy stands in for, loading it if it has not
+	 *         been read yet
+	 */
+	Object getReferencedEntity();
+
+}
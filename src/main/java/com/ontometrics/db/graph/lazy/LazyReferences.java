@@ -0,0 +1,120 @@
+package com.ontometrics.db.graph.lazy;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.ontometrics.db.graph.metadata.EntityMapper;
+import com.ontometrics.db.graph.metadata.EntityMappers;
+
+/**
+ * Creates stand-ins for single references that are read from the graph on
+ * first use.
+ * <p>
+ * References declared as an interface get a plain JDK proxy. References to
+ * an entity class get the subclass proxy of its generated
+ * {@link EntityMapper}, when it has one: the class must not be final, must
+ * have a constructor without arguments, and every method it has must be one
+ * the proxy can override. Anything else is read right away by the builder.
+ * <p>
+ * A subclass proxy only delegates methods, its own fields stay as the
+ * constructor left them. Code that reads the fields of another instance
+ * directly, e.g. in <code>equals</code>, sees those and not the entity's, and
+ * an <code>equals</code> that compares classes does not find an entity equal
+ * to a proxy for it. This is why the builder only proxies entity classes for
+ * fields annotated <code>@Fetch(FetchType.LAZY)</code>, whose entities should
+ * use getters and <code>instanceof</code> there.
+ *
+ * @author Rob
+ *
+ */
+public final class LazyReferences {
+
+	private LazyReferences() {
+	}
+
+	/**
+	 * @param type
+	 * @return true if a reference of this declared type can be deferred
+	 */
+	public static boolean canDefer(Class<?> type) {
+		if (type.isInterface()) {
+			return true;
+		}
+		EntityMapper<?> mapper = EntityMappers.forClass(type);
+		return mapper != null && mapper.isProxiable();
+	}
+
+	/**
+	 * @param type
+	 *            the declared type of the reference if it is an interface, or
+	 *            else the class of the referenced entity
+	 * @param loader
+	 *            reads the referenced entity
+	 * @return a proxy that is an instance of the type and a
+	 *         {@link LazyReference}
+	 */
+	public static <T> T newProxy(Class<T> type, Loader<?> loader) {
+		if (!canDefer(type)) {
+			throw new IllegalArgumentException("cannot load lazily: " + type.getName());
+		}
+		if (!type.isInterface()) {
+			return EntityMappers.forClass(type).newLazyReference(loader);
+		}
+		ClassLoader classLoader = type.getClassLoader() != null ? type.getClassLoader() : LazyReferences.class
+				.getClassLoader();
+		return type.cast(Proxy.newProxyInstance(classLoader, new Class<?>[] { type, LazyReference.class },
+				new ReferenceHandler(loader)));
+	}
+
+	/**
+	 * @param reference
+	 * @return the referenced entity, loading it if it is a proxy
+	 */
+	public static Object unwrap(Object reference) {
+		if (reference instanceof LazyReference) {
+			return ((LazyReference) reference).getReferencedEntity();
+		}
+		return reference;
+	}
+
+	private static class ReferenceHandler implements InvocationHandler {
+
+		private static final Method IS_LOADED;
+		private static final Method GET_REFERENCED_ENTITY;
+		static {
+			try {
+				IS_LOADED = Lazy.class.getMethod("isLoaded");
+				GET_REFERENCED_ENTITY = LazyReference.class.getMethod("getReferencedEntity");
+			} catch (NoSuchMethodException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+
+		private final LazyTarget target;
+
+		ReferenceHandler(Loader<?> loader) {
+			this.target = new LazyTarget(loader);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.equals(IS_LOADED)) {
+				return target.isLoaded();
+			}
+			if (method.equals(GET_REFERENCED_ENTITY)) {
+				return target.get();
+			}
+			if (method.getName().equals("equals") && args != null && args.length == 1) {
+				return target.get().equals(unwrap(args[0]));
+			}
+			try {
+				return method.invoke(target.get(), args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+	}
+
+}
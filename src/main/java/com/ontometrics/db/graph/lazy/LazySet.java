@@ -0,0 +1,25 @@
+package com.ontometrics.db.graph.lazy;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A {@link Set} that is read from the graph on first use.
+ *
+ * @author Rob
+ *
+ * @param <E>
+ */
+public class LazySet<E> extends LazyCollection<E, Set<E>> implements Set<E> {
+
+	public LazySet(Loader<? extends Collection<? extends E>> loader) {
+		super(loader);
+	}
+
+	@Override
+	protected Set<E> newDelegate() {
+		return new LinkedHashSet<E>();
+	}
+
+}
@@ -0,0 +1,32 @@
+package com.ontometrics.db.graph.lazy;
+
+/**
+ * The entity a {@link LazyReference} stands in for, read the first time it is
+ * asked for. Generated proxies delegate to it, so it has to be public.
+ *
+ * @author Rob
+ *
+ */
+public final class LazyTarget {
+
+	private Loader<?> loader;
+
+	private Object target;
+
+	public LazyTarget(Loader<?> loader) {
+		this.loader = loader;
+	}
+
+	public synchronized Object get() {
+		if (loader != null) {
+			target = loader.load();
+			loader = null;
+		}
+		return target;
+	}
+
+	public synchronized boolean isLoaded() {
+		return loader == null;
+	}
+
+}
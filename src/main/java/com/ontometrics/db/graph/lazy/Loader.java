@@ -0,0 +1,15 @@
+package com.ontometrics.db.graph.lazy;
+
+/**
+ * Reads something from the graph when it is first needed.
+ *
+ * @author Rob
+ *
+ * @param <T>
+ *            what is loaded
+ */
+public interface Loader<T> {
+
+	T load();
+
+}
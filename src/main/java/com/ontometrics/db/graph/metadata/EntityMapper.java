@@ -0,0 +1,59 @@
+package com.ontometrics.db.graph.metadata;
+
+import com.ontometrics.db.graph.lazy.Loader;
+
+/**
+ * Mapping code generated at compile time for one entity class by
+ * {@link com.ontometrics.db.graph.processor.EntityMapperProcessor}. It covers
+ * the fields declared in that class, super classes have their own mapper.
+ * <p>
+ * Generated mappers are found by {@link EntityMappers}, anything a mapper
+ * does not provide is handled through reflection as before.
+ * 
+ * @author Rob
+ * 
+ * @param <T>
+ *            the entity class
+ */
+public interface EntityMapper<T> {
+
+	/**
+	 * Suffix added to the flattened class name to get the mapper's name, e.g.
+	 * <code>Person_EntityMapper</code> or
+	 * <code>Outer_Inner_EntityMapper</code>.
+	 */
+	public static final String SUFFIX = "_EntityMapper";
+
+	public Class<T> getEntityClass();
+
+	/**
+	 * @return a new instance made through the no argument constructor, or null
+	 *         if the class can not be instantiated by generated code
+	 */
+	public T newInstance();
+
+	/**
+	 * @param fieldName
+	 *            a field declared in the entity class
+	 * @return straight-line access to the field, or null if the field can only
+	 *         be reached through reflection, e.g. because it is private
+	 */
+	public FieldAccessor getAccessor(String fieldName);
+
+	/**
+	 * @return true if {@link #newLazyReference(Loader)} can make a proxy for
+	 *         the entity class
+	 */
+	public boolean isProxiable();
+
+	/**
+	 * @param loader
+	 *            reads the entity the proxy stands in for, of exactly the
+	 *            entity class
+	 * @return an instance of a generated subclass that is a
+	 *         {@link com.ontometrics.db.graph.lazy.LazyReference}, or null if
+	 *         the class is not proxiable
+	 */
+	public T newLazyReference(Loader<?> loader);
+
+}
@@ -0,0 +1,87 @@
+package com.ontometrics.db.graph.metadata;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ontometrics.db.graph.lazy.Loader;
+
+/**
+ * Finds the {@link EntityMapper} generated for a class, if there is one. The
+ * result of each lookup, including a miss, is remembered.
+ * 
+ * @author Rob
+ * 
+ */
+public class EntityMappers {
+
+	private static final Logger log = LoggerFactory.getLogger(EntityMappers.class);
+
+	private static final EntityMapper<?> NONE = new EntityMapper<Object>() {
+		public Class<Object> getEntityClass() {
+			return Object.class;
+		}
+
+		public Object newInstance() {
+			return null;
+		}
+
+		public FieldAccessor getAccessor(String fieldName) {
+			return null;
+		}
+
+		public boolean isProxiable() {
+			return false;
+		}
+
+		public Object newLazyReference(Loader<?> loader) {
+			return null;
+		}
+	};
+
+	private static final ConcurrentMap<Class<?>, EntityMapper<?>> mappers = new ConcurrentHashMap<Class<?>, EntityMapper<?>>();
+
+	/**
+	 * @param entityClass
+	 * @return the generated mapper or null if the class was not processed
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> EntityMapper<T> forClass(Class<T> entityClass) {
+		EntityMapper<?> mapper = mappers.get(entityClass);
+		if (mapper == null) {
+			mapper = loadMapper(entityClass);
+			mappers.putIfAbsent(entityClass, mapper);
+		}
+		return mapper == NONE ? null : (EntityMapper<T>) mapper;
+	}
+
+	/**
+	 * @param entityClass
+	 * @return the name of the class the processor generates for the given one
+	 */
+	public static String mapperName(Class<?> entityClass) {
+		String name = entityClass.getName();
+		int lastDot = name.lastIndexOf('.');
+		String packagePrefix = lastDot < 0 ? "" : name.substring(0, lastDot + 1);
+		return packagePrefix + name.substring(lastDot + 1).replace('$', '_') + EntityMapper.SUFFIX;
+	}
+
+	private static EntityMapper<?> loadMapper(Class<?> entityClass) {
+		if (entityClass.isPrimitive() || entityClass.isArray() || entityClass.getClassLoader() == null) {
+			return NONE;
+		}
+		try {
+			Class<?> mapperClass = Class.forName(mapperName(entityClass), true, entityClass.getClassLoader());
+			log.debug("using generated mapper {}", mapperClass.getName());
+			return (EntityMapper<?>) mapperClass.newInstance();
+		} catch (ClassNotFoundException e) {
+			return NONE;
+		} catch (Exception e) {
+			log.error("cannot use generated mapper for " + entityClass, e);
+			return NONE;
+		}
+	}
+
+}
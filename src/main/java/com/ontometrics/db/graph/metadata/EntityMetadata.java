@@ -0,0 +1,237 @@
+package com.ontometrics.db.graph.metadata;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The resolved mapping of an entity class: its persistent fields, primary key
+ * and indexes. Computed the first time a class is seen and shared by the read
+ * and the write path from then on, so we only walk the class hierarchy once
+ * per class.
+ * <p>
+ * Instances are immutable once built and the registry is safe for concurrent
+ * use.
+ *
+ * @author Rob
+ *
+ */
+public class EntityMetadata {
+
+	private static final Logger log = LoggerFactory.getLogger(EntityMetadata.class);
+
+	private static final ConcurrentMap<Class<?>, EntityMetadata> registry = new ConcurrentHashMap<Class<?>, EntityMetadata>();
+
+	private static final Set<String> coreTypes;
+	static {
+		Set<String> types = new HashSet<String>();
+		types.add(Object.class.getName());
+		types.add(Double.class.getName());
+		types.add(Long.class.getName());
+		types.add(Integer.class.getName());
+		coreTypes = Collections.unmodifiableSet(types);
+	}
+
+	private final Class<?> entityClass;
+
+	private final EntityMapper<?> mapper;
+
+	/**
+	 * Fields that are written to the graph, from the entity class up through
+	 * its super classes.
+	 */
+	private final List<FieldMetadata> persistentFields;
+
+	private final List<FieldMetadata> indexedFields;
+
+	private final FieldMetadata primaryKey;
+
+	/**
+	 * All non static fields by name, a shadowed field will be listed after the
+	 * one hiding it.
+	 */
+	private final Map<String, List<FieldMetadata>> fieldsByName;
+
+	/**
+	 * Provides the metadata for the given class, building it on first use.
+	 *
+	 * @param entityClass
+	 * @return the metadata, never null
+	 */
+	public static EntityMetadata forClass(Class<?> entityClass) {
+		EntityMetadata metadata = registry.get(entityClass);
+		if (metadata == null) {
+			metadata = new EntityMetadata(entityClass);
+			EntityMetadata existing = registry.putIfAbsent(entityClass, metadata);
+			if (existing != null) {
+				metadata = existing;
+			}
+		}
+		return metadata;
+	}
+
+	private EntityMetadata(Class<?> entityClass) {
+		log.debug("building metadata for {}", entityClass);
+		this.entityClass = entityClass;
+		this.mapper = EntityMappers.forClass(entityClass);
+		List<FieldMetadata> persistent = new ArrayList<FieldMetadata>();
+		List<FieldMetadata> indexed = new ArrayList<FieldMetadata>();
+		Map<String, List<FieldMetadata>> byName = new HashMap<String, List<FieldMetadata>>();
+		FieldMetadata key = null;
+		Class<?> clazz = entityClass;
+		while (clazz != null && !isCoreType(clazz)) {
+			for (Field field : clazz.getDeclaredFields()) {
+				if (field.isSynthetic() || Modifier.isStatic(field.getModifiers())) {
+					continue;
+				}
+				FieldMetadata fieldMetadata = new FieldMetadata(field);
+				fieldMetadata.resolveIndexValue(entityClass);
+				List<FieldMetadata> named = byName.get(fieldMetadata.getName());
+				if (named == null) {
+					named = new ArrayList<FieldMetadata>(1);
+					byName.put(fieldMetadata.getName(), named);
+				}
+				named.add(fieldMetadata);
+				if (fieldMetadata.isTransient() || fieldMetadata.isLogger()) {
+					continue;
+				}
+				fieldMetadata.position = persistent.size();
+				persistent.add(fieldMetadata);
+				if (fieldMetadata.isIndexed()) {
+					indexed.add(fieldMetadata);
+				}
+				if (key == null && fieldMetadata.isPrimaryKey()) {
+					key = fieldMetadata;
+				}
+			}
+			clazz = clazz.getSuperclass();
+		}
+		this.persistentFields = Collections.unmodifiableList(persistent);
+		this.indexedFields = Collections.unmodifiableList(indexed);
+		this.fieldsByName = byName;
+		this.primaryKey = key;
+	}
+
+	/**
+	 * Finds a declared field of any visibility with the given name in the
+	 * class or its super classes.
+	 *
+	 * @param clazz
+	 * @param name
+	 * @return the field or null if there is none
+	 */
+	static Field findField(Class<?> clazz, String name) {
+		while (clazz != null && !isCoreType(clazz)) {
+			try {
+				return clazz.getDeclaredField(name);
+			} catch (NoSuchFieldException e) {
+				clazz = clazz.getSuperclass();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param clazz
+	 * @return true if the class is one of the types where we stop walking up
+	 *         the hierarchy
+	 */
+	public static boolean isCoreType(Class<?> clazz) {
+		return coreTypes.contains(clazz.getName());
+	}
+
+	public Class<?> getEntityClass() {
+		return entityClass;
+	}
+
+	/**
+	 * Creates a new, empty instance of the entity, through the generated
+	 * mapper if there is one.
+	 * 
+	 * @return the new instance
+	 * @throws InstantiationException
+	 *             if the class is an interface, abstract or has no no argument
+	 *             constructor
+	 * @throws IllegalAccessException
+	 */
+	public Object newInstance() throws InstantiationException, IllegalAccessException {
+		if (mapper != null) {
+			Object instance = mapper.newInstance();
+			if (instance != null) {
+				return instance;
+			}
+		}
+		if (entityClass.isInterface()) {
+			throw new InstantiationException("Type " + entityClass + " is interface");
+		}
+		return entityClass.newInstance();
+	}
+
+	public List<FieldMetadata> getPersistentFields() {
+		return persistentFields;
+	}
+
+	public List<FieldMetadata> getIndexedFields() {
+		return indexedFields;
+	}
+
+	/**
+	 * @return the field annotated with {@link com.ontometrics.db.graph.Id}, or
+	 *         null if the entity has no primary key
+	 */
+	public FieldMetadata getPrimaryKey() {
+		return primaryKey;
+	}
+
+	public boolean hasPrimaryKey() {
+		return primaryKey != null;
+	}
+
+	/**
+	 * @param entity
+	 * @return the primary key value of the given entity, or null if it has none
+	 */
+	public Object getPrimaryKeyValue(Object entity) {
+		return primaryKey == null ? null : primaryKey.getValue(entity);
+	}
+
+	/**
+	 * @param name
+	 * @return the field that a property with the given name maps to, null if
+	 *         there is none
+	 */
+	public FieldMetadata getField(String name) {
+		List<FieldMetadata> named = fieldsByName.get(name);
+		return named == null ? null : named.get(0);
+	}
+
+	/**
+	 * @param name
+	 * @return every field in the hierarchy with the given name, including the
+	 *         ones that are shadowed
+	 */
+	public List<FieldMetadata> getFields(String name) {
+		List<FieldMetadata> named = fieldsByName.get(name);
+		if (named == null) {
+			return Collections.emptyList();
+		}
+		return named;
+	}
+
+	@Override
+	public String toString() {
+		return "EntityMetadata [" + entityClass.getName() + ", fields=" + persistentFields + "]";
+	}
+
+}
@@ -0,0 +1,30 @@
+package com.ontometrics.db.graph.metadata;
+
+/**
+ * Reads and writes one field of an entity. Implementations are created once
+ * per field by a {@link FieldAccessorFactory} and must be safe to share
+ * between threads.
+ * 
+ * @author Rob
+ * 
+ */
+public interface FieldAccessor {
+
+	/**
+	 * @param entity
+	 * @return the current value of the field, primitives boxed
+	 * @throws IllegalArgumentException
+	 *             if the value could not be read
+	 */
+	public Object get(Object entity);
+
+	/**
+	 * @param entity
+	 * @param value
+	 *            the new value, primitives boxed
+	 * @throws IllegalArgumentException
+	 *             if the value could not be written
+	 */
+	public void set(Object entity, Object value);
+
+}
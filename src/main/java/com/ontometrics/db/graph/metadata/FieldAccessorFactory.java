@@ -0,0 +1,21 @@
+package com.ontometrics.db.graph.metadata;
+
+import java.lang.reflect.Field;
+
+/**
+ * Creates the {@link FieldAccessor} used for a field. The factory in use is
+ * set through {@link FieldAccessors#setFactory(FieldAccessorFactory)}.
+ * 
+ * @author Rob
+ * 
+ */
+public interface FieldAccessorFactory {
+
+	/**
+	 * @param field
+	 *            an accessible field
+	 * @return the accessor, or null if this factory cannot handle the field
+	 */
+	public FieldAccessor createAccessor(Field field);
+
+}
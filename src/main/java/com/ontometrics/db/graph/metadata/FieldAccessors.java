@@ -0,0 +1,264 @@
+package com.ontometrics.db.graph.metadata;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides how {@link FieldMetadata} accesses its field. Accessors from a
+ * generated {@link EntityMapper} are used when there is one for the field.
+ * These reach fields the same way the runtime accessors do, never through the
+ * entity's getters and setters, and use the helpers here to convert values
+ * and report failures alike.
+ * Otherwise a {@link MethodHandleFieldAccessor} is used, falling back to a
+ * {@link ReflectiveFieldAccessor} for fields handles can not be made for.
+ * <p>
+ * Setting the system property <code>ogm.accessors=reflection</code> disables
+ * method handles. A different factory can be plugged in before the first
+ * entity is mapped.
+ * 
+ * @author Rob
+ * 
+ */
+public class FieldAccessors {
+
+	private static final Logger log = LoggerFactory.getLogger(FieldAccessors.class);
+
+	public static final String ACCESSORS_PROPERTY = "ogm.accessors";
+
+	public static final FieldAccessorFactory METHOD_HANDLES = new FieldAccessorFactory() {
+		public FieldAccessor createAccessor(Field field) {
+			if (Modifier.isStatic(field.getModifiers())) {
+				return null;
+			}
+			try {
+				return new MethodHandleFieldAccessor(field);
+			} catch (IllegalAccessException e) {
+				log.debug("no method handles for field {}: {}", field.getName(), e.getMessage());
+				return null;
+			}
+		}
+	};
+
+	public static final FieldAccessorFactory REFLECTION = new FieldAccessorFactory() {
+		public FieldAccessor createAccessor(Field field) {
+			return new ReflectiveFieldAccessor(field);
+		}
+	};
+
+	private static volatile FieldAccessorFactory factory = "reflection".equals(System.getProperty(ACCESSORS_PROPERTY)) ? REFLECTION
+			: METHOD_HANDLES;
+
+	/**
+	 * Provides the accessor for a field, using the generated mapper if there
+	 * is one, then the configured factory and the reflective accessor if the
+	 * factory declines.
+	 * 
+	 * @param field
+	 * @return an accessor, never null
+	 */
+	public static FieldAccessor forField(Field field) {
+		EntityMapper<?> mapper = EntityMappers.forClass(field.getDeclaringClass());
+		if (mapper != null && !Modifier.isStatic(field.getModifiers())) {
+			FieldAccessor accessor = mapper.getAccessor(field.getName());
+			if (accessor != null) {
+				return accessor;
+			}
+		}
+		field.setAccessible(true);
+		FieldAccessor accessor = factory.createAccessor(field);
+		if (accessor == null) {
+			accessor = REFLECTION.createAccessor(field);
+		}
+		return accessor;
+	}
+
+	/**
+	 * For generated mappers, which reach private fields through handles as
+	 * the runtime accessors do, not through the entity's own methods.
+	 * 
+	 * @param type
+	 * @param fieldName
+	 *            a field declared in the type
+	 * @return a getter handle of the field's exact type, or null if none can
+	 *         be made, in which case the runtime accessors are used
+	 */
+	public static MethodHandle getterHandle(Class<?> type, String fieldName) {
+		try {
+			Field field = type.getDeclaredField(fieldName);
+			field.setAccessible(true);
+			return MethodHandles.lookup().unreflectGetter(field);
+		} catch (Exception e) {
+			log.debug("no getter handle for field {}: {}", fieldName, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @param type
+	 * @param fieldName
+	 *            a field declared in the type
+	 * @return a setter handle of the field's exact type, or null if none can
+	 *         be made
+	 * @see #getterHandle(Class, String)
+	 */
+	public static MethodHandle setterHandle(Class<?> type, String fieldName) {
+		try {
+			Field field = type.getDeclaredField(fieldName);
+			field.setAccessible(true);
+			return MethodHandles.lookup().unreflectSetter(field);
+		} catch (Exception e) {
+			log.debug("no setter handle for field {}: {}", fieldName, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Converts a value to be written to a primitive field the way
+	 * {@link Field#set(Object, Object)} and the method handles of
+	 * {@link MethodHandleFieldAccessor} do: the field's own wrapper as it is,
+	 * a narrower primitive widened.
+	 * 
+	 * @param value
+	 * @param primitiveType
+	 *            the type of the field
+	 * @param fieldName
+	 * @return the value boxed in the wrapper of the primitive type
+	 * @throws IllegalArgumentException
+	 *             if the value is null or can not be widened to the type
+	 */
+	public static Object widen(Object value, Class<?> primitiveType, String fieldName) {
+		if (value == null) {
+			throw new IllegalArgumentException("cannot write null to field " + fieldName);
+		}
+		Class<?> from = value.getClass();
+		if (from == wrapperOf(primitiveType)) {
+			return value;
+		}
+		int fromRank = rank(from);
+		int toRank = primitiveType == char.class ? 0 : rank(primitiveType);
+		if (fromRank == 0 || toRank <= fromRank) {
+			throw new IllegalArgumentException("cannot write field " + fieldName + ": " + from.getName()
+					+ " is not " + primitiveType.getName());
+		}
+		if (toRank == rank(double.class) || toRank == rank(float.class)) {
+			double widened = value instanceof Character ? (Character) value : ((Number) value).doubleValue();
+			return primitiveType == double.class ? (Object) widened : (Object) (float) widened;
+		}
+		long widened = value instanceof Character ? (Character) value : ((Number) value).longValue();
+		if (primitiveType == long.class) {
+			return widened;
+		}
+		if (primitiveType == int.class) {
+			return (int) widened;
+		}
+		return (short) widened;
+	}
+
+	/**
+	 * @return the order of a numeric type, or its wrapper, in widening
+	 *         conversions, a type can be widened to any of a higher order; 0
+	 *         for other types
+	 */
+	private static int rank(Class<?> type) {
+		if (type == byte.class || type == Byte.class) {
+			return 1;
+		}
+		if (type == short.class || type == Short.class || type == Character.class) {
+			// char and short widen to the same types, but not to each other
+			return 2;
+		}
+		if (type == int.class || type == Integer.class) {
+			return 3;
+		}
+		if (type == long.class || type == Long.class) {
+			return 4;
+		}
+		if (type == float.class || type == Float.class) {
+			return 5;
+		}
+		if (type == double.class || type == Double.class) {
+			return 6;
+		}
+		return 0;
+	}
+
+	private static Class<?> wrapperOf(Class<?> primitiveType) {
+		if (primitiveType == long.class) {
+			return Long.class;
+		}
+		if (primitiveType == int.class) {
+			return Integer.class;
+		}
+		if (primitiveType == short.class) {
+			return Short.class;
+		}
+		if (primitiveType == byte.class) {
+			return Byte.class;
+		}
+		if (primitiveType == char.class) {
+			return Character.class;
+		}
+		if (primitiveType == double.class) {
+			return Double.class;
+		}
+		if (primitiveType == float.class) {
+			return Float.class;
+		}
+		return Boolean.class;
+	}
+
+	/**
+	 * For generated mappers, what to throw when a handle failed, the same as
+	 * {@link MethodHandleFieldAccessor} does.
+	 * 
+	 * @param fieldName
+	 * @param e
+	 * @return the exception to throw
+	 */
+	public static RuntimeException failure(String fieldName, Throwable e) {
+		if (e instanceof RuntimeException) {
+			return (RuntimeException) e;
+		}
+		if (e instanceof Error) {
+			throw (Error) e;
+		}
+		return new IllegalArgumentException("cannot access field " + fieldName + ": " + e.getMessage());
+	}
+
+	/**
+	 * Only affects classes whose metadata has not been built yet.
+	 * 
+	 * @param factory
+	 */
+	public static void setFactory(FieldAccessorFactory factory) {
+		FieldAccessors.factory = factory;
+	}
+
+	public static FieldAccessorFactory getFactory() {
+		return factory;
+	}
+
+	/**
+	 * @param type
+	 * @return true for the primitive types a {@link PrimitiveFieldAccessor}
+	 *         handles as a <code>long</code>
+	 */
+	static boolean isIntegral(Class<?> type) {
+		return type == long.class || type == int.class || type == short.class || type == byte.class;
+	}
+
+	/**
+	 * @param type
+	 * @return true for the primitive types a {@link PrimitiveFieldAccessor}
+	 *         handles as a <code>double</code>
+	 */
+	static boolean isFloatingPoint(Class<?> type) {
+		return type == double.class || type == float.class;
+	}
+
+}
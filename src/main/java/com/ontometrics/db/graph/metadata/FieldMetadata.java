@@ -0,0 +1,491 @@
+package com.ontometrics.db.graph.metadata;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Map;
+
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.RelationshipType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ontometrics.db.graph.Cascade;
+import com.ontometrics.db.graph.CascadeType;
+import com.ontometrics.db.graph.CompactMap;
+import com.ontometrics.db.graph.Embedded;
+import com.ontometrics.db.graph.Fetch;
+import com.ontometrics.db.graph.FetchType;
+import com.ontometrics.db.graph.GeneratedId;
+import com.ontometrics.db.graph.Id;
+import com.ontometrics.db.graph.Index;
+import com.ontometrics.db.graph.LargeCollection;
+import com.ontometrics.db.graph.Transient;
+
+/**
+ * Everything we need to know about a single field of an entity in order to map
+ * it to and from the graph. Built once by {@link EntityMetadata} so the mapping
+ * code does not have to re-read annotations or call setAccessible on every
+ * read and write.
+ *
+ * @author Rob
+ *
+ */
+public class FieldMetadata {
+
+	private static final Logger log = LoggerFactory.getLogger(FieldMetadata.class);
+
+	private static final String NOT_SET = "n/a";
+
+	/**
+	 * How the declared type of the field will be stored. Values of types that
+	 * have a converter are resolved at write time, since converters can be
+	 * registered at any point.
+	 */
+	public enum Kind {
+		PROPERTY, COLLECTION, MAP, ENUM, REFERENCE,
+
+		/**
+		 * A value flattened into the properties of the owner's node, see
+		 * {@link Embedded}.
+		 */
+		EMBEDDED
+	}
+
+	private final Field field;
+
+	private final FieldAccessor accessor;
+
+	/**
+	 * The accessor again if it can read and write the field without boxing,
+	 * otherwise null.
+	 */
+	private final PrimitiveFieldAccessor primitiveAccessor;
+
+	/**
+	 * True for <code>byte</code>, <code>short</code>, <code>int</code> and
+	 * <code>long</code> fields.
+	 */
+	private final boolean integral;
+
+	/**
+	 * True for <code>float</code> and <code>double</code> fields.
+	 */
+	private final boolean floatingPoint;
+
+	/**
+	 * The position of this field among the persistent fields of the entity,
+	 * -1 if it is not persistent.
+	 */
+	int position = -1;
+
+	private final String name;
+
+	private final Kind kind;
+
+	private final RelationshipType relationshipType;
+
+	private final boolean primaryKey;
+
+	private final boolean generatedId;
+
+	private final boolean logger;
+
+	private final boolean indexed;
+
+	private final FetchType fetchType;
+
+	/**
+	 * Whether the field has a {@link Fetch} annotation of its own.
+	 */
+	private final boolean fetchDeclared;
+
+	private final CascadeType cascadeType;
+
+	/**
+	 * The {@link LargeCollection} chunk size, -1 if not annotated.
+	 */
+	private final int largeCollectionChunkSize;
+
+	/**
+	 * Whether a map may, or must, be stored compact, see {@link CompactMap}.
+	 */
+	private final boolean compactMapAllowed, compactMapRequired;
+
+	private String indexKey;
+
+	private String indexValueName;
+
+	private FieldAccessor indexValueField;
+
+	private Method indexValueMethod;
+
+	private Type[] typeArguments;
+
+	FieldMetadata(Field field) {
+		this.field = field;
+		this.accessor = FieldAccessors.forField(field);
+		this.integral = FieldAccessors.isIntegral(field.getType());
+		this.floatingPoint = FieldAccessors.isFloatingPoint(field.getType());
+		this.primitiveAccessor = (integral || floatingPoint) && accessor instanceof PrimitiveFieldAccessor
+				? (PrimitiveFieldAccessor) accessor : null;
+		this.name = field.getName();
+		this.kind = field.isAnnotationPresent(Embedded.class) ? Kind.EMBEDDED : kindOf(field.getType());
+		this.relationshipType = DynamicRelationshipType.withName(name);
+		this.primaryKey = field.isAnnotationPresent(Id.class);
+		this.generatedId = field.isAnnotationPresent(GeneratedId.class);
+		this.logger = field.getType().getName().contains("Logger");
+		this.indexed = field.isAnnotationPresent(Index.class);
+		this.fetchDeclared = field.isAnnotationPresent(Fetch.class);
+		this.fetchType = fetchDeclared ? field.getAnnotation(Fetch.class).value() : FetchType.LAZY;
+		this.cascadeType = field.isAnnotationPresent(Cascade.class) ? field.getAnnotation(Cascade.class).value()
+				: CascadeType.ALL;
+		this.largeCollectionChunkSize = field.isAnnotationPresent(LargeCollection.class) ? field.getAnnotation(
+				LargeCollection.class).chunkSize() : -1;
+		boolean compactMap = !field.isAnnotationPresent(CompactMap.class)
+				|| field.getAnnotation(CompactMap.class).value();
+		this.compactMapAllowed = compactMap;
+		this.compactMapRequired = compactMap && field.isAnnotationPresent(CompactMap.class);
+		if (indexed) {
+			Index index = field.getAnnotation(Index.class);
+			indexKey = NOT_SET.equals(index.key()) ? name : index.key();
+			indexValueName = NOT_SET.equals(index.value()) ? null : index.value();
+		}
+		if (field.getGenericType() instanceof ParameterizedType) {
+			typeArguments = ((ParameterizedType) field.getGenericType()).getActualTypeArguments();
+		}
+	}
+
+	/**
+	 * Resolves the field or no argument method named in the {@link Index}
+	 * annotation against the concrete entity class.
+	 */
+	void resolveIndexValue(Class<?> entityClass) {
+		if (indexValueName == null) {
+			return;
+		}
+		Field valueField = EntityMetadata.findField(entityClass, indexValueName);
+		if (valueField != null) {
+			indexValueField = FieldAccessors.forField(valueField);
+			return;
+		}
+		try {
+			indexValueMethod = entityClass.getMethod(indexValueName);
+		} catch (NoSuchMethodException e) {
+			log.error("indexValueName not a field or method: {}", indexValueName);
+		}
+	}
+
+	private static Kind kindOf(Class<?> type) {
+		if (type.isPrimitive() || type.isArray() || type.equals(String.class) || Number.class.isAssignableFrom(type)
+				|| type.equals(Boolean.class) || type.equals(Character.class)) {
+			return Kind.PROPERTY;
+		}
+		if (Collection.class.isAssignableFrom(type)) {
+			return Kind.COLLECTION;
+		}
+		if (Map.class.isAssignableFrom(type)) {
+			return Kind.MAP;
+		}
+		if (type.isEnum()) {
+			return Kind.ENUM;
+		}
+		return Kind.REFERENCE;
+	}
+
+	/**
+	 * @param entity
+	 * @return the value of this field in the given entity, null if it could not
+	 *         be read
+	 */
+	public Object getValue(Object entity) {
+		try {
+			return accessor.get(entity);
+		} catch (IllegalArgumentException e) {
+			log.error("Error getting the field value from " + entity, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Sets this field in the given entity.
+	 *
+	 * @param entity
+	 * @param value
+	 * @throws IllegalArgumentException
+	 *             if the value can not be assigned to the field
+	 */
+	public void setValue(Object entity, Object value) {
+		accessor.set(entity, value);
+	}
+
+	/**
+	 * @param entity
+	 * @return the value of this field in the given entity, which must be
+	 *         {@link #isIntegral() integral}
+	 * @throws IllegalArgumentException
+	 *             if the value could not be read
+	 */
+	public long getLong(Object entity) {
+		if (primitiveAccessor != null) {
+			return primitiveAccessor.getLong(entity);
+		}
+		return ((Number) accessor.get(entity)).longValue();
+	}
+
+	/**
+	 * Sets this field, which must be {@link #isIntegral() integral}, in the
+	 * given entity.
+	 * 
+	 * @param entity
+	 * @param value
+	 *            narrowed to the type of the field
+	 * @throws IllegalArgumentException
+	 *             if the value could not be written
+	 */
+	public void setLong(Object entity, long value) {
+		if (primitiveAccessor != null) {
+			primitiveAccessor.setLong(entity, value);
+			return;
+		}
+		Class<?> type = field.getType();
+		accessor.set(entity, type == long.class ? Long.valueOf(value) : type == int.class ? Integer.valueOf((int) value)
+				: type == short.class ? Short.valueOf((short) value) : Byte.valueOf((byte) value));
+	}
+
+	/**
+	 * @param entity
+	 * @return the value of this field in the given entity, which must be
+	 *         {@link #isFloatingPoint() floating point}
+	 * @throws IllegalArgumentException
+	 *             if the value could not be read
+	 */
+	public double getDouble(Object entity) {
+		if (primitiveAccessor != null) {
+			return primitiveAccessor.getDouble(entity);
+		}
+		return ((Number) accessor.get(entity)).doubleValue();
+	}
+
+	/**
+	 * Sets this field, which must be {@link #isFloatingPoint() floating
+	 * point}, in the given entity.
+	 * 
+	 * @param entity
+	 * @param value
+	 *            narrowed to the type of the field
+	 * @throws IllegalArgumentException
+	 *             if the value could not be written
+	 */
+	public void setDouble(Object entity, double value) {
+		if (primitiveAccessor != null) {
+			primitiveAccessor.setDouble(entity, value);
+			return;
+		}
+		accessor.set(entity, field.getType() == double.class ? Double.valueOf(value) : Float.valueOf((float) value));
+	}
+
+	/**
+	 * Provides the value to associate with this field in the index, as named
+	 * in the {@link Index} annotation.
+	 *
+	 * @param entity
+	 * @return the value, or null for plain property indexes
+	 */
+	public Object getIndexValue(Object entity) {
+		try {
+			if (indexValueField != null) {
+				return indexValueField.get(entity);
+			}
+			if (indexValueMethod != null) {
+				return indexValueMethod.invoke(entity);
+			}
+		} catch (Exception e) {
+			log.error("indexValueName not a field or method", e);
+		}
+		return null;
+	}
+
+	/**
+	 * @param index
+	 *            position of the type argument, e.g. 0 for the key and 1 for
+	 *            the value of a map
+	 * @return the declared type argument, or null if the field is raw or the
+	 *         argument is not a class
+	 */
+	public Class<?> getTypeArgument(int index) {
+		if (typeArguments == null || typeArguments.length <= index || !(typeArguments[index] instanceof Class)) {
+			return null;
+		}
+		return (Class<?>) typeArguments[index];
+	}
+
+	public Field getField() {
+		return field;
+	}
+
+	public FieldAccessor getAccessor() {
+		return accessor;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Class<?> getType() {
+		return field.getType();
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return true if the field is a <code>byte</code>, <code>short</code>,
+	 *         <code>int</code> or <code>long</code>, which can be moved
+	 *         without boxing through {@link #getLong(Object)} and
+	 *         {@link #setLong(Object, long)}
+	 */
+	public boolean isIntegral() {
+		return integral;
+	}
+
+	/**
+	 * @return true if the field is a <code>float</code> or
+	 *         <code>double</code>, which can be moved without boxing through
+	 *         {@link #getDouble(Object)} and {@link #setDouble(Object, double)}
+	 */
+	public boolean isFloatingPoint() {
+		return floatingPoint;
+	}
+
+	public boolean isPrimitiveNumber() {
+		return integral || floatingPoint;
+	}
+
+	/**
+	 * @param property
+	 *            a node property
+	 * @return true if this is a primitive number field and the property is
+	 *         what it is stored as, e.g. an {@link Integer} for an
+	 *         <code>int</code>
+	 */
+	public boolean isStoredAs(Object property) {
+		if (property == null || !isPrimitiveNumber()) {
+			return false;
+		}
+		Class<?> type = field.getType();
+		Class<?> propertyType = property.getClass();
+		return type == long.class ? propertyType == Long.class : type == int.class ? propertyType == Integer.class
+				: type == double.class ? propertyType == Double.class : type == float.class ? propertyType == Float.class
+						: type == short.class ? propertyType == Short.class : propertyType == Byte.class;
+	}
+
+	/**
+	 * @return the position of this field in
+	 *         {@link EntityMetadata#getPersistentFields()}, or -1 if it is not
+	 *         persistent
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	public boolean isRelationship() {
+		return kind != Kind.PROPERTY && kind != Kind.EMBEDDED;
+	}
+
+	public boolean isEmbedded() {
+		return kind == Kind.EMBEDDED;
+	}
+
+	public RelationshipType getRelationshipType() {
+		return relationshipType;
+	}
+
+	public boolean isPrimaryKey() {
+		return primaryKey;
+	}
+
+	public boolean isGeneratedId() {
+		return generatedId;
+	}
+
+	public boolean isLogger() {
+		return logger;
+	}
+
+	public boolean isIndexed() {
+		return indexed;
+	}
+
+	/**
+	 * @return the {@link Fetch} behaviour, {@link FetchType#LAZY} when not
+	 *         annotated
+	 */
+	public FetchType getFetchType() {
+		return fetchType;
+	}
+
+	/**
+	 * @return true if the field is annotated with {@link Fetch}, false if its
+	 *         fetch type is the default
+	 */
+	public boolean isFetchDeclared() {
+		return fetchDeclared;
+	}
+
+	/**
+	 * @return the {@link Cascade} of the field, {@link CascadeType#ALL} when
+	 *         not annotated
+	 */
+	public CascadeType getCascadeType() {
+		return cascadeType;
+	}
+
+	public boolean isLargeCollection() {
+		return largeCollectionChunkSize >= 0;
+	}
+
+	/**
+	 * @return the chunk size given in the {@link LargeCollection} annotation,
+	 *         0 for the default, -1 if not annotated
+	 */
+	public int getLargeCollectionChunkSize() {
+		return largeCollectionChunkSize;
+	}
+
+	/**
+	 * @return false if annotated with {@link CompactMap} false
+	 */
+	public boolean isCompactMapAllowed() {
+		return compactMapAllowed;
+	}
+
+	/**
+	 * @return true if annotated with {@link CompactMap} true
+	 */
+	public boolean isCompactMapRequired() {
+		return compactMapRequired;
+	}
+
+	public String getIndexKey() {
+		return indexKey;
+	}
+
+	public boolean isStatic() {
+		return Modifier.isStatic(field.getModifiers());
+	}
+
+	public boolean isTransient() {
+		return Modifier.isTransient(field.getModifiers()) || field.isAnnotationPresent(Transient.class);
+	}
+
+	@Override
+	public String toString() {
+		return "FieldMetadata [" + field.getDeclaringClass().getName() + "." + name + ", kind=" + kind + "]";
+	}
+
+}
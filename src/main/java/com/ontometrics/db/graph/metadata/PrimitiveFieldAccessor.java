@@ -0,0 +1,49 @@
+package com.ontometrics.db.graph.metadata;
+
+/**
+ * A {@link FieldAccessor} that can also read and write numeric primitive
+ * fields without boxing: <code>byte</code>, <code>short</code>,
+ * <code>int</code> and <code>long</code> fields as a <code>long</code>,
+ * <code>float</code> and <code>double</code> fields as a <code>double</code>.
+ * 
+ * @author Rob
+ * 
+ * @see FieldMetadata#isPrimitiveNumber()
+ */
+public interface PrimitiveFieldAccessor extends FieldAccessor {
+
+	/**
+	 * @param entity
+	 * @return the value of an integral field
+	 * @throws IllegalArgumentException
+	 *             if the field is not integral
+	 */
+	public long getLong(Object entity);
+
+	/**
+	 * @param entity
+	 * @param value
+	 *            the new value, narrowed to the type of the field
+	 * @throws IllegalArgumentException
+	 *             if the field is not integral
+	 */
+	public void setLong(Object entity, long value);
+
+	/**
+	 * @param entity
+	 * @return the value of a floating point field
+	 * @throws IllegalArgumentException
+	 *             if the field is not floating point
+	 */
+	public double getDouble(Object entity);
+
+	/**
+	 * @param entity
+	 * @param value
+	 *            the new value, narrowed to the type of the field
+	 * @throws IllegalArgumentException
+	 *             if the field is not floating point
+	 */
+	public void setDouble(Object entity, double value);
+
+}
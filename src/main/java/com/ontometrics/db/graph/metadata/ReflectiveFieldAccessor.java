@@ -0,0 +1,96 @@
+package com.ontometrics.db.graph.metadata;
+
+import java.lang.reflect.Field;
+
+/**
+ * Accesses a field through {@link Field#get(Object)} and
+ * {@link Field#set(Object, Object)}. Works for every field, so it is the
+ * fallback when a faster accessor can not be built. Numeric primitive fields
+ * are read and written through the typed methods of {@link Field}, which do
+ * not box.
+ * 
+ * @author Rob
+ * 
+ */
+public class ReflectiveFieldAccessor implements PrimitiveFieldAccessor {
+
+	private final Field field;
+
+	public ReflectiveFieldAccessor(Field field) {
+		field.setAccessible(true);
+		this.field = field;
+	}
+
+	public Object get(Object entity) {
+		try {
+			return field.get(entity);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("cannot read field " + field.getName() + ": " + e.getMessage());
+		}
+	}
+
+	public void set(Object entity, Object value) {
+		try {
+			field.set(entity, value);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("cannot write field " + field.getName() + ": " + e.getMessage());
+		}
+	}
+
+	public long getLong(Object entity) {
+		if (!FieldAccessors.isIntegral(field.getType())) {
+			throw new IllegalArgumentException("field " + field.getName() + " is not integral");
+		}
+		try {
+			return field.getLong(entity);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("cannot read field " + field.getName() + ": " + e.getMessage());
+		}
+	}
+
+	public void setLong(Object entity, long value) {
+		Class<?> type = field.getType();
+		try {
+			if (type == long.class) {
+				field.setLong(entity, value);
+			} else if (type == int.class) {
+				field.setInt(entity, (int) value);
+			} else if (type == short.class) {
+				field.setShort(entity, (short) value);
+			} else if (type == byte.class) {
+				field.setByte(entity, (byte) value);
+			} else {
+				throw new IllegalArgumentException("field " + field.getName() + " is not integral");
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("cannot write field " + field.getName() + ": " + e.getMessage());
+		}
+	}
+
+	public double getDouble(Object entity) {
+		if (!FieldAccessors.isFloatingPoint(field.getType())) {
+			throw new IllegalArgumentException("field " + field.getName() + " is not floating point");
+		}
+		try {
+			return field.getDouble(entity);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("cannot read field " + field.getName() + ": " + e.getMessage());
+		}
+	}
+
+	public void setDouble(Object entity, double value) {
+		Class<?> type = field.getType();
+		try {
+			if (type == double.class) {
+				field.setDouble(entity, value);
+			} else if (type == float.class) {
+				field.setFloat(entity, (float) value);
+			} else {
+				throw new IllegalArgumentException("field " + field.getName() + " is not floating point");
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("cannot write field " + field.getName() + ": " + e.getMessage());
+		}
+	}
+
+}
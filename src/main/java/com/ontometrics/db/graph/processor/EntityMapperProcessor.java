@@ -0,0 +1,537 @@
+package com.ontometrics.db.graph.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+import com.ontometrics.db.graph.Transient;
+import com.ontometrics.db.graph.metadata.EntityMapper;
+import com.ontometrics.db.graph.metadata.PrimitiveFieldAccessor;
+
+/**
+ * Generates an {@link EntityMapper} for every class that declares a field
+ * annotated with one of our mapping annotations. The mapper gives
+ * straight-line access to the fields of that class and creates instances
+ * without reflection. Accessors of numeric primitive fields are
+ * {@link PrimitiveFieldAccessor}s.
+ * <p>
+ * Generated code lives in the package of the entity. Fields that are not
+ * private are read and written directly. Private fields are read and written
+ * through method handles the mapper unreflects once and keeps in constants,
+ * so the JIT can treat them as direct field access. Either way the entity's
+ * own getters and setters are never called, so an entity is mapped the same
+ * whether or not the processor ran, and values are converted, and failures
+ * reported, as the runtime accessors do. Final fields are left to the
+ * runtime accessors, as is anything declared in a super class (which gets its
+ * own mapper if it is annotated).
+ * <p>
+ * The processor only needs this jar on its path, nothing it depends on.
+ * <p>
+ * The mapper also has a subclass proxy for the entity, which
+ * {@link com.ontometrics.db.graph.lazy.LazyReferences} uses to read references
+ * to it lazily from fields annotated <code>@Fetch(FetchType.LAZY)</code>.
+ * The proxy overrides every method the entity has, and its
+ * <code>equals</code>, to call them on the entity once it has been read.
+ * There is no proxy for a class that is final, generic or not instantiable,
+ * or that has a final method, a generic method, or one that is neither public
+ * nor declared in its package.
+ * <p>
+ * The processor is not registered as a service, so it does not run on every
+ * compile that has this jar on its classpath. It has to be asked for, with
+ * <code>javac -processor
+ * com.ontometrics.db.graph.processor.EntityMapperProcessor</code> or the
+ * <code>annotationProcessors</code> of the maven compiler plugin, when
+ * compiling the entities.
+ *
+ * @author Rob
+ *
+ */
+@SupportedAnnotationTypes({ "com.ontometrics.db.graph.Id", "com.ontometrics.db.graph.Index",
+		"com.ontometrics.db.graph.GeneratedId", "com.ontometrics.db.graph.Transient",
+		"com.ontometrics.db.graph.Fetch", "com.ontometrics.db.graph.LargeCollection",
+		"com.ontometrics.db.graph.CompactMap", "com.ontometrics.db.graph.Embedded",
+		"com.ontometrics.db.graph.Cascade" })
+public class EntityMapperProcessor extends AbstractProcessor {
+
+	private final Set<String> generated = new HashSet<String>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		Set<TypeElement> entities = new LinkedHashSet<TypeElement>();
+		for (TypeElement annotation : annotations) {
+			for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+				if (element.getKind() == ElementKind.FIELD
+						&& element.getEnclosingElement().getKind() == ElementKind.CLASS) {
+					entities.add((TypeElement) element.getEnclosingElement());
+				}
+			}
+		}
+		for (TypeElement entity : entities) {
+			if (isReachable(entity) && generated.add(entity.getQualifiedName().toString())) {
+				try {
+					generate(entity);
+				} catch (IOException e) {
+					processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+							"cannot generate entity mapper: " + e.getMessage(), entity);
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param type
+	 * @return true if code in the same package can name the type
+	 */
+	private boolean isReachable(TypeElement type) {
+		Element element = type;
+		while (element.getKind() != ElementKind.PACKAGE) {
+			if (element.getModifiers().contains(Modifier.PRIVATE)) {
+				return false;
+			}
+			if (element instanceof TypeElement && ((TypeElement) element).getNestingKind() != NestingKind.TOP_LEVEL
+					&& ((TypeElement) element).getNestingKind() != NestingKind.MEMBER) {
+				return false;
+			}
+			element = element.getEnclosingElement();
+		}
+		return true;
+	}
+
+	private void generate(TypeElement entity) throws IOException {
+		String packageName = packageOf(entity).getQualifiedName().toString();
+		String entityName = processingEnv.getTypeUtils().erasure(entity.asType()).toString();
+		String mapperName = flatName(entity) + EntityMapper.SUFFIX;
+		String qualifiedMapperName = packageName.length() == 0 ? mapperName : packageName + "." + mapperName;
+
+		List<VariableElement> fields = new ArrayList<VariableElement>();
+		for (VariableElement field : ElementFilter.fieldsIn(entity.getEnclosedElements())) {
+			Set<Modifier> modifiers = field.getModifiers();
+			if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.FINAL)
+					|| modifiers.contains(Modifier.TRANSIENT) || field.getAnnotation(Transient.class) != null) {
+				continue;
+			}
+			fields.add(field);
+		}
+		List<ExecutableElement> delegated = delegatedMethods(entity);
+
+		PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(qualifiedMapperName, entity)
+				.openWriter());
+		try {
+			if (packageName.length() > 0) {
+				out.println("package " + packageName + ";");
+				out.println();
+			}
+			out.println("import java.lang.invoke.MethodHandle;");
+			out.println();
+			out.println("import com.ontometrics.db.graph.lazy.LazyReference;");
+			out.println("import com.ontometrics.db.graph.lazy.LazyReferences;");
+			out.println("import com.ontometrics.db.graph.lazy.LazyTarget;");
+			out.println("import com.ontometrics.db.graph.lazy.Loader;");
+			out.println("import com.ontometrics.db.graph.metadata.EntityMapper;");
+			out.println("import com.ontometrics.db.graph.metadata.FieldAccessor;");
+			out.println("import com.ontometrics.db.graph.metadata.FieldAccessors;");
+			out.println("import com.ontometrics.db.graph.metadata.PrimitiveFieldAccessor;");
+			out.println();
+			out.println("/**");
+			out.println(" * Generated by " + getClass().getName() + ", do not edit.");
+			out.println(" */");
+			out.println("@SuppressWarnings({ \"rawtypes\", \"unchecked\" })");
+			out.println("public final class " + mapperName + " implements EntityMapper<" + entityName + "> {");
+			out.println();
+			for (VariableElement field : fields) {
+				if (field.getModifiers().contains(Modifier.PRIVATE)) {
+					Access access = access(entityName, field);
+					String name = field.getSimpleName().toString();
+					out.println("\tprivate static final MethodHandle " + access.getter + " = FieldAccessors.getterHandle("
+							+ entityName + ".class, \"" + name + "\");");
+					out.println();
+					out.println("\tprivate static final MethodHandle " + access.setter + " = FieldAccessors.setterHandle("
+							+ entityName + ".class, \"" + name + "\");");
+					out.println();
+				}
+			}
+			out.println("\tpublic Class<" + entityName + "> getEntityClass() {");
+			out.println("\t\treturn " + entityName + ".class;");
+			out.println("\t}");
+			out.println();
+			out.println("\tpublic " + entityName + " newInstance() {");
+			out.println("\t\treturn " + (isInstantiable(entity) ? "new " + entityName + "()" : "null") + ";");
+			out.println("\t}");
+			out.println();
+			out.println("\tpublic FieldAccessor getAccessor(String fieldName) {");
+			for (VariableElement field : fields) {
+				writeAccessor(out, entityName, field);
+			}
+			out.println("\t\treturn null;");
+			out.println("\t}");
+			out.println();
+			out.println("\tpublic boolean isProxiable() {");
+			out.println("\t\treturn " + (delegated != null) + ";");
+			out.println("\t}");
+			out.println();
+			out.println("\tpublic " + entityName + " newLazyReference(Loader<?> loader) {");
+			out.println("\t\treturn " + (delegated != null ? "new LazyProxy(loader)" : "null") + ";");
+			out.println("\t}");
+			if (delegated != null) {
+				out.println();
+				writeProxy(out, entity, entityName, delegated);
+			}
+			out.println();
+			out.println("}");
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeAccessor(PrintWriter out, String entityName, VariableElement field) {
+		String name = field.getSimpleName().toString();
+		TypeMirror type = field.asType();
+		String valueType = type.getKind().isPrimitive() ? processingEnv.getTypeUtils()
+				.boxedClass(processingEnv.getTypeUtils().getPrimitiveType(type.getKind())).getQualifiedName()
+				.toString() : processingEnv.getTypeUtils().erasure(type).toString();
+		boolean integral = type.getKind() == TypeKind.LONG || type.getKind() == TypeKind.INT
+				|| type.getKind() == TypeKind.SHORT || type.getKind() == TypeKind.BYTE;
+		boolean floatingPoint = type.getKind() == TypeKind.DOUBLE || type.getKind() == TypeKind.FLOAT;
+		Access access = access(entityName, field);
+		// a value of the wrong type is an IllegalArgumentException, and a
+		// narrower number is widened, as with the runtime accessors
+		String value = type.getKind().isPrimitive() ? "(" + type + ") (" + valueType + ") FieldAccessors.widen(value, "
+				+ type + ".class, \"" + name + "\")" : "(" + valueType + ") value";
+		out.println("\t\tif (\"" + name + "\".equals(fieldName)"
+				+ (access.getter != null ? " && " + access.getter + " != null && " + access.setter + " != null" : "")
+				+ ") {");
+		out.println("\t\t\treturn new " + (integral || floatingPoint ? "PrimitiveFieldAccessor" : "FieldAccessor")
+				+ "() {");
+		out.println("\t\t\t\tpublic Object get(Object entity) {");
+		writeBody(out, access, name, "return " + access.read() + ";", false);
+		out.println("\t\t\t\t}");
+		out.println();
+		out.println("\t\t\t\tpublic void set(Object entity, Object value) {");
+		writeBody(out, access, name, access.write(value), true);
+		out.println("\t\t\t\t}");
+		if (integral || floatingPoint) {
+			writePrimitiveAccessor(out, access, name, type.toString(), "long", integral);
+			writePrimitiveAccessor(out, access, name, type.toString(), "double", floatingPoint);
+		}
+		out.println("\t\t\t};");
+		out.println("\t\t}");
+	}
+
+	/**
+	 * Writes the getter and setter of a {@link PrimitiveFieldAccessor} for one
+	 * of the two primitive types it handles, throwing if the field is not of
+	 * that kind.
+	 */
+	private void writePrimitiveAccessor(PrintWriter out, Access access, String name, String fieldType,
+			String primitiveType, boolean applies) {
+		String suffix = Character.toUpperCase(primitiveType.charAt(0)) + primitiveType.substring(1);
+		String wrongKind = "throw new IllegalArgumentException(\"field " + name + " is not "
+				+ ("long".equals(primitiveType) ? "integral" : "floating point") + "\");";
+		out.println();
+		out.println("\t\t\t\tpublic " + primitiveType + " get" + suffix + "(Object entity) {");
+		if (applies) {
+			writeBody(out, access, name, "return " + access.read() + ";", false);
+		} else {
+			out.println("\t\t\t\t\t" + wrongKind);
+		}
+		out.println("\t\t\t\t}");
+		out.println();
+		out.println("\t\t\t\tpublic void set" + suffix + "(Object entity, " + primitiveType + " value) {");
+		if (applies) {
+			writeBody(out, access, name, access.write("(" + fieldType + ") value"), false);
+		} else {
+			out.println("\t\t\t\t\t" + wrongKind);
+		}
+		out.println("\t\t\t\t}");
+	}
+
+	/**
+	 * Writes the statement, handling what it may throw the way
+	 * {@link com.ontometrics.db.graph.metadata.MethodHandleFieldAccessor}
+	 * does.
+	 * 
+	 * @param converts
+	 *            true if the statement casts a value of any type
+	 */
+	private void writeBody(PrintWriter out, Access access, String name, String statement, boolean converts) {
+		if (access.getter == null && !converts) {
+			out.println("\t\t\t\t\t" + statement);
+			return;
+		}
+		out.println("\t\t\t\t\ttry {");
+		out.println("\t\t\t\t\t\t" + statement);
+		if (converts) {
+			out.println("\t\t\t\t\t} catch (ClassCastException e) {");
+			out.println("\t\t\t\t\t\tthrow new IllegalArgumentException(\"cannot write field " + name
+					+ ": \" + e.getMessage());");
+		}
+		if (access.getter != null) {
+			out.println("\t\t\t\t\t} catch (Throwable e) {");
+			out.println("\t\t\t\t\t\tthrow FieldAccessors.failure(\"" + name + "\", e);");
+		}
+		out.println("\t\t\t\t\t}");
+	}
+
+	/**
+	 * @return how generated code reaches the field
+	 */
+	private Access access(String entityName, VariableElement field) {
+		String name = field.getSimpleName().toString();
+		TypeMirror type = field.asType();
+		String exactType = type.getKind().isPrimitive() ? type.toString() : processingEnv.getTypeUtils()
+				.erasure(type).toString();
+		return field.getModifiers().contains(Modifier.PRIVATE) ? new Access(entityName, name, exactType, "GETTER_"
+				+ name, "SETTER_" + name) : new Access(entityName, name, exactType, null, null);
+	}
+
+	/**
+	 * Writes the subclass that stands in for an entity which has not been read
+	 * yet, delegating every method to the entity once it has been.
+	 */
+	private void writeProxy(PrintWriter out, TypeElement entity, String entityName,
+			List<ExecutableElement> delegated) {
+		out.println("\tstatic final class LazyProxy extends " + entityName + " implements LazyReference {");
+		out.println();
+		out.println("\t\tprivate final LazyTarget target;");
+		out.println();
+		out.println("\t\tLazyProxy(Loader<?> loader) {");
+		out.println("\t\t\tthis.target = new LazyTarget(loader);");
+		out.println("\t\t}");
+		out.println();
+		out.println("\t\tpublic boolean isLoaded() {");
+		out.println("\t\t\treturn target.isLoaded();");
+		out.println("\t\t}");
+		out.println();
+		out.println("\t\tpublic Object getReferencedEntity() {");
+		out.println("\t\t\treturn target.get();");
+		out.println("\t\t}");
+		out.println();
+		out.println("\t\t@Override");
+		out.println("\t\tpublic boolean equals(Object other) {");
+		out.println("\t\t\treturn target.get().equals(LazyReferences.unwrap(other));");
+		out.println("\t\t}");
+		DeclaredType entityType = (DeclaredType) entity.asType();
+		for (ExecutableElement method : delegated) {
+			ExecutableType type = (ExecutableType) processingEnv.getTypeUtils().asMemberOf(entityType, method);
+			String name = method.getSimpleName().toString();
+			StringBuilder parameters = new StringBuilder();
+			StringBuilder arguments = new StringBuilder();
+			for (int i = 0; i < type.getParameterTypes().size(); i++) {
+				if (i > 0) {
+					parameters.append(", ");
+					arguments.append(", ");
+				}
+				parameters.append(type.getParameterTypes().get(i)).append(" arg").append(i);
+				arguments.append("arg").append(i);
+			}
+			StringBuilder thrown = new StringBuilder();
+			for (TypeMirror thrownType : type.getThrownTypes()) {
+				thrown.append(thrown.length() == 0 ? " throws " : ", ").append(thrownType);
+			}
+			Set<Modifier> modifiers = method.getModifiers();
+			String access = modifiers.contains(Modifier.PUBLIC) ? "public " : modifiers
+					.contains(Modifier.PROTECTED) ? "protected " : "";
+			boolean returns = type.getReturnType().getKind() != TypeKind.VOID;
+			out.println();
+			out.println("\t\t@Override");
+			out.println("\t\t" + access + type.getReturnType() + " " + name + "(" + parameters + ")" + thrown + " {");
+			out.println("\t\t\t" + (returns ? "return " : "") + "((" + entityName + ") target.get())." + name + "("
+					+ arguments + ");");
+			out.println("\t\t}");
+		}
+		out.println();
+		out.println("\t}");
+	}
+
+	/**
+	 * @return the methods a proxy for the entity overrides to delegate them,
+	 *         other than <code>equals</code>, or null if a subclass cannot
+	 *         stand in for the entity: it is final, generic, can not be
+	 *         instantiated, or has a method the subclass can not override or
+	 *         call on the entity
+	 */
+	private List<ExecutableElement> delegatedMethods(TypeElement entity) {
+		if (!isInstantiable(entity) || entity.getModifiers().contains(Modifier.FINAL)
+				|| !entity.getTypeParameters().isEmpty()) {
+			return null;
+		}
+		TypeElement object = processingEnv.getElementUtils().getTypeElement(Object.class.getName());
+		PackageElement entityPackage = packageOf(entity);
+		List<ExecutableElement> methods = ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(entity));
+		List<ExecutableElement> delegated = new ArrayList<ExecutableElement>();
+		for (ExecutableElement method : methods) {
+			Set<Modifier> modifiers = method.getModifiers();
+			String name = method.getSimpleName().toString();
+			if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.PRIVATE)
+					|| isOverridden(method, methods, entity)) {
+				continue;
+			}
+			if (name.equals("equals") && method.getParameters().size() == 1) {
+				continue;
+			}
+			if (method.getEnclosingElement().equals(object)) {
+				// the rest are final, or protected and only for the instance
+				// itself to call
+				if (name.equals("hashCode") || name.equals("toString")) {
+					delegated.add(method);
+				}
+				continue;
+			}
+			if ((name.equals("isLoaded") || name.equals("getReferencedEntity")) && method.getParameters().isEmpty()) {
+				return null;
+			}
+			if (modifiers.contains(Modifier.FINAL) || !method.getTypeParameters().isEmpty()
+					|| !modifiers.contains(Modifier.PUBLIC) && !packageOf(method).equals(entityPackage)) {
+				return null;
+			}
+			delegated.add(method);
+		}
+		return delegated;
+	}
+
+	private boolean isOverridden(ExecutableElement method, List<ExecutableElement> methods, TypeElement entity) {
+		for (ExecutableElement other : methods) {
+			if (other != method && processingEnv.getElementUtils().overrides(other, method, entity)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isInstantiable(TypeElement entity) {
+		if (entity.getModifiers().contains(Modifier.ABSTRACT)) {
+			return false;
+		}
+		if (entity.getNestingKind() == NestingKind.MEMBER && !entity.getModifiers().contains(Modifier.STATIC)) {
+			return false;
+		}
+		List<ExecutableElement> constructors = ElementFilter.constructorsIn(entity.getEnclosedElements());
+		for (ExecutableElement constructor : constructors) {
+			if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+				return constructor.getThrownTypes().isEmpty() || onlyUnchecked(constructor);
+			}
+		}
+		return false;
+	}
+
+	private boolean onlyUnchecked(ExecutableElement executable) {
+		TypeMirror runtimeException = processingEnv.getElementUtils().getTypeElement(RuntimeException.class.getName())
+				.asType();
+		TypeMirror error = processingEnv.getElementUtils().getTypeElement(Error.class.getName()).asType();
+		for (TypeMirror thrown : executable.getThrownTypes()) {
+			if (thrown.getKind() != TypeKind.DECLARED
+					|| !(processingEnv.getTypeUtils().isSubtype(thrown, runtimeException) || processingEnv
+							.getTypeUtils().isSubtype(thrown, error))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static PackageElement packageOf(Element element) {
+		while (element.getKind() != ElementKind.PACKAGE) {
+			element = element.getEnclosingElement();
+		}
+		return (PackageElement) element;
+	}
+
+	/**
+	 * @param type
+	 * @return the simple names from the top level class down, joined with
+	 *         underscores, the same as the binary name with '$' replaced
+	 */
+	private static String flatName(TypeElement type) {
+		String name = type.getSimpleName().toString();
+		Element enclosing = type.getEnclosingElement();
+		while (enclosing.getKind() != ElementKind.PACKAGE) {
+			name = enclosing.getSimpleName() + "_" + name;
+			enclosing = enclosing.getEnclosingElement();
+		}
+		return name;
+	}
+
+	/**
+	 * How generated code reads and writes a field: directly, or through the
+	 * handles the mapper keeps for it if it is private.
+	 */
+	private static class Access {
+
+		private final String target;
+
+		private final String entityName;
+
+		private final String field;
+
+		/**
+		 * The type of the field as handles of it are typed.
+		 */
+		private final String exactType;
+
+		/**
+		 * The names of the handles, null for direct access.
+		 */
+		final String getter, setter;
+
+		Access(String entityName, String field, String exactType, String getter, String setter) {
+			this.target = "((" + entityName + ") entity)";
+			this.entityName = entityName;
+			this.field = field;
+			this.exactType = exactType;
+			this.getter = getter;
+			this.setter = setter;
+		}
+
+		/**
+		 * @return an expression of the field's type
+		 */
+		String read() {
+			if (getter == null) {
+				return target + "." + field;
+			}
+			return "(" + exactType + ") " + getter + ".invokeExact((" + entityName + ") entity)";
+		}
+
+		/**
+		 * @param value
+		 *            an expression of the field's type
+		 * @return the statement writing the value
+		 */
+		String write(String value) {
+			if (setter == null) {
+				return target + "." + field + " = " + value + ";";
+			}
+			return setter + ".invokeExact((" + entityName + ") entity, " + value + ");";
+		}
+
+	}
+
+}
@@ -15,8 +15,10 @@ public class ArrayUtils {
 	 */
 	public static Object toPrimitives(Collection<Object> collection) {
 		if(collection == null || collection.isEmpty()) return null;
-		List<Object> value = new ArrayList<Object>(collection);
-		Object firstObject = value.get(0);
+		if(collection instanceof PrimitiveArrayList){
+			return ((PrimitiveArrayList<?>) collection).toPrimitiveArray();
+		}
+		Object firstObject = collection.iterator().next();
 		
 		if(firstObject instanceof String){
 			String[] array = new String[collection.size()];
@@ -112,10 +114,36 @@ public class ArrayUtils {
 	}
 
 	public static Collection<Object> toCollection(Object property) {
-		List<Object> objects = new ArrayList<Object>();
-		for(int i = 0; i < Array.getLength(property); i++){
+		int length = Array.getLength(property);
+		List<Object> objects = new ArrayList<Object>(length);
+		for(int i = 0; i < length; i++){
 			objects.add(Array.get(property, i));
 		}
 		return objects;
 	}
+
+	/**
+	 * @param array
+	 *            an array of primitives or strings, e.g. a node property
+	 * @return a copy of the array, made without boxing its elements
+	 */
+	public static Object copyOf(Object array) {
+		int length = Array.getLength(array);
+		Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+		System.arraycopy(array, 0, copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * @param value
+	 * @return true if the value is an array that can be stored as a node
+	 *         property as it is: of a primitive type or of strings
+	 */
+	public static boolean isPropertyArray(Object value) {
+		if (value == null || !value.getClass().isArray()) {
+			return false;
+		}
+		Class<?> componentType = value.getClass().getComponentType();
+		return componentType.isPrimitive() || componentType == String.class;
+	}
 }
@@ -0,0 +1,68 @@
+package com.ontometrics.utils;
+
+/**
+ * A list of <code>double</code>s, stored as a <code>double[]</code> property.
+ *
+ * @author Rob
+ *
+ */
+public class DoubleArrayList extends PrimitiveArrayList<Double> {
+
+	public DoubleArrayList() {
+		super(new double[0], 0, false);
+	}
+
+	private DoubleArrayList(double[] elements) {
+		super(elements, elements.length, true);
+	}
+
+	/**
+	 * @param array
+	 * @return a list over the array, which is copied on the first change
+	 */
+	public static DoubleArrayList wrap(double[] array) {
+		return new DoubleArrayList(array);
+	}
+
+	public double getDouble(int index) {
+		checkIndex(index);
+		return ((double[]) elements)[index];
+	}
+
+	public void setDouble(int index, double value) {
+		beforeSet(index);
+		((double[]) elements)[index] = value;
+	}
+
+	public void addDouble(double value) {
+		beforeInsert(size);
+		((double[]) elements)[size - 1] = value;
+	}
+
+	/**
+	 * @return the elements, see {@link #toPrimitiveArray()}
+	 */
+	public double[] toDoubleArray() {
+		return (double[]) toPrimitiveArray();
+	}
+
+	@Override
+	public Double get(int index) {
+		return getDouble(index);
+	}
+
+	@Override
+	public Double set(int index, Double value) {
+		double previous = getDouble(index);
+		setDouble(index, value);
+		return previous;
+	}
+
+	@Override
+	public void add(int index, Double value) {
+		double element = value;
+		beforeInsert(index);
+		((double[]) elements)[index] = element;
+	}
+
+}
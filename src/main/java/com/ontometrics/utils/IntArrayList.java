@@ -0,0 +1,68 @@
+package com.ontometrics.utils;
+
+/**
+ * A list of <code>int</code>s, stored as an <code>int[]</code> property.
+ *
+ * @author Rob
+ *
+ */
+public class IntArrayList extends PrimitiveArrayList<Integer> {
+
+	public IntArrayList() {
+		super(new int[0], 0, false);
+	}
+
+	private IntArrayList(int[] elements) {
+		super(elements, elements.length, true);
+	}
+
+	/**
+	 * @param array
+	 * @return a list over the array, which is copied on the first change
+	 */
+	public static IntArrayList wrap(int[] array) {
+		return new IntArrayList(array);
+	}
+
+	public int getInt(int index) {
+		checkIndex(index);
+		return ((int[]) elements)[index];
+	}
+
+	public void setInt(int index, int value) {
+		beforeSet(index);
+		((int[]) elements)[index] = value;
+	}
+
+	public void addInt(int value) {
+		beforeInsert(size);
+		((int[]) elements)[size - 1] = value;
+	}
+
+	/**
+	 * @return the elements, see {@link #toPrimitiveArray()}
+	 */
+	public int[] toIntArray() {
+		return (int[]) toPrimitiveArray();
+	}
+
+	@Override
+	public Integer get(int index) {
+		return getInt(index);
+	}
+
+	@Override
+	public Integer set(int index, Integer value) {
+		int previous = getInt(index);
+		setInt(index, value);
+		return previous;
+	}
+
+	@Override
+	public void add(int index, Integer value) {
+		int element = value;
+		beforeInsert(index);
+		((int[]) elements)[index] = element;
+	}
+
+}
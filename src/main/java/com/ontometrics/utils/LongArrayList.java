@@ -0,0 +1,68 @@
+package com.ontometrics.utils;
+
+/**
+ * A list of <code>long</code>s, stored as a <code>long[]</code> property.
+ *
+ * @author Rob
+ *
+ */
+public class LongArrayList extends PrimitiveArrayList<Long> {
+
+	public LongArrayList() {
+		super(new long[0], 0, false);
+	}
+
+	private LongArrayList(long[] elements) {
+		super(elements, elements.length, true);
+	}
+
+	/**
+	 * @param array
+	 * @return a list over the array, which is copied on the first change
+	 */
+	public static LongArrayList wrap(long[] array) {
+		return new LongArrayList(array);
+	}
+
+	public long getLong(int index) {
+		checkIndex(index);
+		return ((long[]) elements)[index];
+	}
+
+	public void setLong(int index, long value) {
+		beforeSet(index);
+		((long[]) elements)[index] = value;
+	}
+
+	public void addLong(long value) {
+		beforeInsert(size);
+		((long[]) elements)[size - 1] = value;
+	}
+
+	/**
+	 * @return the elements, see {@link #toPrimitiveArray()}
+	 */
+	public long[] toLongArray() {
+		return (long[]) toPrimitiveArray();
+	}
+
+	@Override
+	public Long get(int index) {
+		return getLong(index);
+	}
+
+	@Override
+	public Long set(int index, Long value) {
+		long previous = getLong(index);
+		setLong(index, value);
+		return previous;
+	}
+
+	@Override
+	public void add(int index, Long value) {
+		long element = value;
+		beforeInsert(index);
+		((long[]) elements)[index] = element;
+	}
+
+}
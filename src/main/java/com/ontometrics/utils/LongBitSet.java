@@ -0,0 +1,63 @@
+package com.ontometrics.utils;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A set of non-negative <code>long</code>s, such as node ids, kept as a
+ * {@link BitSet} for every 2<sup>31</sup> of them that has a member, so ids
+ * past the range of an <code>int</code> do not share bits.
+ *
+ * @author Rob
+ *
+ */
+public class LongBitSet {
+
+	private static final int PAGE_BITS = 31;
+
+	private static final long PAGE_MASK = (1L << PAGE_BITS) - 1;
+
+	private final Map<Long, BitSet> pages = new HashMap<Long, BitSet>();
+
+	public boolean get(long index) {
+		BitSet page = pages.get(checkIndex(index) >>> PAGE_BITS);
+		return page != null && page.get((int) (index & PAGE_MASK));
+	}
+
+	public void set(long index) {
+		Long pageIndex = checkIndex(index) >>> PAGE_BITS;
+		BitSet page = pages.get(pageIndex);
+		if (page == null) {
+			page = new BitSet();
+			pages.put(pageIndex, page);
+		}
+		page.set((int) (index & PAGE_MASK));
+	}
+
+	public void clear(long index) {
+		BitSet page = pages.get(checkIndex(index) >>> PAGE_BITS);
+		if (page != null) {
+			page.clear((int) (index & PAGE_MASK));
+		}
+	}
+
+	/**
+	 * @return the number of members
+	 */
+	public long cardinality() {
+		long cardinality = 0;
+		for (BitSet page : pages.values()) {
+			cardinality += page.cardinality();
+		}
+		return cardinality;
+	}
+
+	private static long checkIndex(long index) {
+		if (index < 0) {
+			throw new IllegalArgumentException("index cannot be negative: " + index);
+		}
+		return index;
+	}
+
+}
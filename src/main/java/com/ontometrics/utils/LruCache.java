@@ -0,0 +1,112 @@
+package com.ontometrics.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map that holds at most a given number of entries, or a given total
+ * weight, dropping the least recently used entries to make room. All methods
+ * are synchronized on the cache, so holding its lock makes several calls one.
+ *
+ * @author Rob
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class LruCache<K, V> {
+
+	/**
+	 * Estimates what an entry costs to keep, in whatever unit the cache is
+	 * bounded by.
+	 */
+	public interface Weigher<V> {
+
+		long weigh(V value);
+
+	}
+
+	private final LinkedHashMap<K, V> entries = new LinkedHashMap<K, V>(16, 0.75f, true);
+
+	private final int maxEntries;
+
+	private final long maxWeight;
+
+	private final Weigher<? super V> weigher;
+
+	private long weight;
+
+	private long evictions;
+
+	public LruCache(int maxEntries) {
+		this(maxEntries, Long.MAX_VALUE, null);
+	}
+
+	/**
+	 * @param maxEntries
+	 * @param maxWeight
+	 *            the most the weights of all entries may add up to
+	 * @param weigher
+	 *            null to bound by count only
+	 */
+	public LruCache(int maxEntries, long maxWeight, Weigher<? super V> weigher) {
+		if (maxEntries < 1 || maxWeight < 1) {
+			throw new IllegalArgumentException("cache bounds must be positive: " + maxEntries + ", " + maxWeight);
+		}
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * @param key
+	 * @return the value, which becomes the most recently used, or null
+	 */
+	public synchronized V get(K key) {
+		return entries.get(key);
+	}
+
+	public synchronized V put(K key, V value) {
+		V previous = entries.put(key, value);
+		weight += weigh(value) - weigh(previous);
+		Iterator<Map.Entry<K, V>> eldest = entries.entrySet().iterator();
+		while (entries.size() > maxEntries || (weight > maxWeight && entries.size() > 1)) {
+			V evicted = eldest.next().getValue();
+			eldest.remove();
+			weight -= weigh(evicted);
+			evictions++;
+		}
+		return previous;
+	}
+
+	public synchronized V remove(K key) {
+		V removed = entries.remove(key);
+		weight -= weigh(removed);
+		return removed;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	/**
+	 * @return how many entries have been dropped to make room
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	private long weigh(V value) {
+		return value == null || weigher == null ? 0 : weigher.weigh(value);
+	}
+
+}
@@ -0,0 +1,150 @@
+package com.ontometrics.utils;
+
+import java.lang.reflect.Array;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A list kept in an array of primitives, so it can be stored as a node
+ * property and read back without boxing every element into a new list.
+ * <p>
+ * The array can be shared: a list made by wrapping an array, or whose array
+ * has been handed out by {@link #toPrimitiveArray()}, leaves it as it is and
+ * copies it on the first change. Wrapping is what the read path does with a
+ * stored array, so reading a series of numbers costs the same whatever its
+ * length, and the array, which the database keeps cached, is never written
+ * to. Nulls can not be added.
+ *
+ * @author Rob
+ *
+ * @param <E>
+ *            the boxed type of the elements
+ */
+public abstract class PrimitiveArrayList<E> extends AbstractList<E> implements RandomAccess {
+
+	private static final int DEFAULT_CAPACITY = 10;
+
+	/**
+	 * An array of primitives, of which the first {@link #size} are elements.
+	 */
+	protected Object elements;
+
+	protected int size;
+
+	/**
+	 * True while the array may be referred to from elsewhere.
+	 */
+	private boolean shared;
+
+	protected PrimitiveArrayList(Object elements, int size, boolean shared) {
+		this.elements = elements;
+		this.size = size;
+		this.shared = shared;
+	}
+
+	/**
+	 * @param array
+	 *            an array of <code>long</code>, <code>int</code> or
+	 *            <code>double</code>
+	 * @return a list over the array, which is copied on the first change, or
+	 *         null if there is no list for arrays of that type
+	 */
+	public static PrimitiveArrayList<?> wrap(Object array) {
+		if (array instanceof long[]) {
+			return LongArrayList.wrap((long[]) array);
+		}
+		if (array instanceof int[]) {
+			return IntArrayList.wrap((int[]) array);
+		}
+		if (array instanceof double[]) {
+			return DoubleArrayList.wrap((double[]) array);
+		}
+		return null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the elements in an array of their primitive type, which is the
+	 *         list's own array if it is full. The list then copies it before
+	 *         the next change, so the array will not change.
+	 */
+	public Object toPrimitiveArray() {
+		if (Array.getLength(elements) == size) {
+			shared = true;
+			return elements;
+		}
+		Object array = Array.newInstance(elements.getClass().getComponentType(), size);
+		System.arraycopy(elements, 0, array, 0, size);
+		return array;
+	}
+
+	@Override
+	public E remove(int index) {
+		E removed = get(index);
+		beforeSet(index);
+		System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+		size--;
+		modCount++;
+		return removed;
+	}
+
+	@Override
+	public void clear() {
+		if (shared) {
+			elements = Array.newInstance(elements.getClass().getComponentType(), DEFAULT_CAPACITY);
+			shared = false;
+		}
+		size = 0;
+		modCount++;
+	}
+
+	/**
+	 * Makes room for an element at the index, moving those after it up.
+	 *
+	 * @param index
+	 */
+	protected void beforeInsert(int index) {
+		if (index < 0 || index > size) {
+			throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+		}
+		int length = Array.getLength(elements);
+		if (shared || size == length) {
+			Object copy = Array.newInstance(elements.getClass().getComponentType(),
+					Math.max(DEFAULT_CAPACITY, size + 1 + (size >> 1)));
+			System.arraycopy(elements, 0, copy, 0, index);
+			System.arraycopy(elements, index, copy, index + 1, size - index);
+			elements = copy;
+			shared = false;
+		} else {
+			System.arraycopy(elements, index, elements, index + 1, size - index);
+		}
+		size++;
+		modCount++;
+	}
+
+	/**
+	 * Makes sure the element at the index can be written.
+	 *
+	 * @param index
+	 */
+	protected void beforeSet(int index) {
+		checkIndex(index);
+		if (shared) {
+			Object copy = Array.newInstance(elements.getClass().getComponentType(), Array.getLength(elements));
+			System.arraycopy(elements, 0, copy, 0, size);
+			elements = copy;
+			shared = false;
+		}
+	}
+
+	protected void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+		}
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.ontometrics.db.graph;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+import com.ontometrics.db.graph.model.Address;
+import com.ontometrics.db.graph.model.Person;
+import com.ontometrics.db.graph.model.Person.Color;
+
+public class EntityIngesterTest {
+
+	@Rule
+	public TemporaryFolder dbFolder = new TemporaryFolder();
+
+	@Test
+	public void ingestedEntitiesCanBeReadBack() throws Exception {
+		Date birthDate = new Date();
+		Person parent = new Person("parent", birthDate);
+		parent.setFavoriteColor(Color.Blue);
+		Person child = new Person("child", birthDate);
+		child.setParent(parent);
+		child.setAddress(new Address("home", "LA", "US"));
+		child.getFriends().add(parent);
+
+		EntityIngester ingester = new EntityIngester(dbFolder.getRoot().getAbsolutePath());
+		ingester.ingest(child);
+		ingester.shutdown();
+
+		GraphDatabaseService database = new EmbeddedGraphDatabase(dbFolder.getRoot().getAbsolutePath());
+		try {
+			EntityRepository<Person> repository = new EntityRepository<Person>();
+			repository.setEntityManager(new EntityManager(database));
+			Person readChild = repository.read(Person.class, "child");
+			assertThat(readChild.getBirthDate(), is(birthDate));
+			assertThat(readChild.getParent().getName(), is("parent"));
+			assertThat(readChild.getParent().getFavoriteColor(), is(Color.Blue));
+			assertThat(readChild.getAddress().getCity(), is("LA"));
+			assertThat(readChild.getFriends(), hasItem(parent));
+			assertThat(repository.read(Person.class, "parent"), notNullValue());
+		} finally {
+			database.shutdown();
+		}
+	}
+
+	@Test
+	public void ingestReportsProgressPerChunk() {
+		List<Person> persons = new ArrayList<Person>();
+		for (int i = 0; i < 25; i++) {
+			persons.add(new Person("person" + i));
+		}
+		final List<Integer> chunks = new ArrayList<Integer>();
+		EntityIngester ingester = new EntityIngester(dbFolder.getRoot().getAbsolutePath());
+		ingester.setBatchSize(10);
+		long total = ingester.ingestAll(persons, new BatchListener() {
+			public void chunkCommitted(int chunk, int chunkSize, long total, long millis) {
+				chunks.add(chunkSize);
+			}
+		});
+		ingester.shutdown();
+		assertThat(total, is(25L));
+		assertThat(chunks.size(), is(3));
+		assertThat(chunks.get(2), is(5));
+	}
+
+}
@@ -0,0 +1,139 @@
+package com.ontometrics.db.graph;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+
+import com.ontometrics.db.graph.model.Person;
+import com.ontometrics.db.graph.model.Person.Color;
+import com.ontometrics.testing.TestGraphDatabase;
+
+/**
+ * Writes through one entity manager from many threads. The test database
+ * holds a transaction open on the test's own thread, so all writing is left
+ * to the other threads.
+ * <p>
+ * How much faster more threads write depends on the disk and the machine, so
+ * that is measured by
+ * {@link com.ontometrics.db.graph.benchmarks.WriteThroughputBenchmark}, not
+ * here.
+ */
+public class EntityManagerConcurrencyTest {
+
+	private static final int ENTITIES_PER_THREAD = 50;
+
+	@Rule
+	public TemporaryFolder dbFolder = new TemporaryFolder();
+
+	@Rule
+	public TestGraphDatabase database = new TestGraphDatabase(dbFolder);
+
+	private EntityManager entityManager;
+
+	private Date birthdate = new Date();
+
+	@Before
+	public void setup() {
+		entityManager = new EntityManager(database.getDatabase());
+	}
+
+	@Test
+	public void threadsWriteIndependentEntities() throws Exception {
+		int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		assertThat(write("many", threads, false), is(threads * ENTITIES_PER_THREAD));
+
+		Index<Node> index = entityManager.getNodeIndex(Person.class);
+		for (int thread = 0; thread < threads; thread++) {
+			for (int i = 0; i < ENTITIES_PER_THREAD; i++) {
+				// neither lost nor written twice
+				assertThat(index.get(EntityManager.PRIMARY_KEY, name("many", thread, i)).size(), is(1));
+			}
+		}
+		int nodes = 0;
+		for (Node node : database.getDatabase().getAllNodes()) {
+			if (node.hasProperty("name") && ((String) node.getProperty("name")).startsWith("many-")) {
+				nodes++;
+			}
+		}
+		assertThat(nodes, is(threads * ENTITIES_PER_THREAD));
+	}
+
+	@Test
+	public void threadsShareEnumNodes() throws Exception {
+		int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		write("colored", threads, true);
+
+		Index<Node> index = entityManager.getNodeIndex(Person.class);
+		for (int thread = 0; thread < threads; thread++) {
+			for (int i = 0; i < ENTITIES_PER_THREAD; i++) {
+				Node node = index.get(EntityManager.PRIMARY_KEY, name("colored", thread, i)).getSingle();
+				Node colorNode = node.getSingleRelationship(DynamicRelationshipType.withName("favoriteColor"),
+						Direction.OUTGOING).getEndNode();
+				assertThat((String) colorNode.getProperty("name"), is(color(i).name()));
+			}
+		}
+		for (Color color : Color.values()) {
+			// created once, however many threads needed it first
+			assertThat(entityManager.getNodeIndex(Color.class).get(EntityManager.PRIMARY_KEY, color.name()).size(),
+					is(1));
+		}
+	}
+
+	/**
+	 * @return the number of entities written
+	 */
+	private int write(final String prefix, int threads, final boolean colored) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int thread = 0; thread < threads; thread++) {
+			final int number = thread;
+			results.add(executor.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					start.await();
+					for (int i = 0; i < ENTITIES_PER_THREAD; i++) {
+						Person person = new Person(name(prefix, number, i), birthdate);
+						if (colored) {
+							person.setFavoriteColor(color(i));
+						}
+						entityManager.create(person);
+					}
+					return ENTITIES_PER_THREAD;
+				}
+			}));
+		}
+		start.countDown();
+		int written = 0;
+		for (Future<Integer> result : results) {
+			written += result.get();
+		}
+		executor.shutdown();
+		return written;
+	}
+
+	private static String name(String prefix, int thread, int i) {
+		return prefix + "-" + thread + "-" + i;
+	}
+
+	private static Color color(int i) {
+		return Color.values()[i % Color.values().length];
+	}
+
+}
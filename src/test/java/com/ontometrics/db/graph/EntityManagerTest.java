@@ -9,6 +9,7 @@ import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.Matchers.greaterThan;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -26,6 +27,8 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.graphdb.index.ReadableRelationshipIndex;
 
@@ -33,7 +36,9 @@ import com.ontometrics.db.graph.model.Address;
 import com.ontometrics.db.graph.model.Person.Color;
 import com.ontometrics.db.graph.model.AddressBook;
 import com.ontometrics.db.graph.model.Employee;
+import com.ontometrics.db.graph.model.Part;
 import com.ontometrics.db.graph.model.Person;
+import com.ontometrics.db.graph.model.Sensor;
 import com.ontometrics.testing.TestGraphDatabase;
 
 public class EntityManagerTest {
@@ -96,6 +101,27 @@ public class EntityManagerTest {
 
 	}
 
+	@Test
+	public void migrateIndexesFromSharedIndex(){
+		EntityManager sharedIndexManager = new EntityManager(database.getDatabase());
+		sharedIndexManager.setIndexPartitioning(IndexPartitioning.SHARED);
+		Node personNode = sharedIndexManager.create(person);
+		Index<Node> sharedIndex = sharedIndexManager.getNodeIndex(Person.class);
+		assertThat(sharedIndex.getName(), is(Object.class.getName()));
+
+		Index<Node> index = entityManager.getNodeIndex(Employee.class);
+		assertThat(index.getName(), is(Person.class.getName()));
+		assertThat(index.get(EntityManager.PRIMARY_KEY, username).getSingle(), nullValue());
+
+		long migrated = entityManager.migrateIndexes(IndexPartitioning.SHARED, Collections.singleton(person).iterator(), null);
+
+		assertThat(migrated, is(1L));
+		assertThat(index.get(EntityManager.PRIMARY_KEY, username).getSingle(), is(personNode));
+		assertThat(index.get("birthDate", birthdate).getSingle(), is(personNode));
+		assertThat(sharedIndex.get(EntityManager.PRIMARY_KEY, username).getSingle(), nullValue());
+		assertThat(sharedIndex.get("birthDate", birthdate).getSingle(), nullValue());
+	}
+
 	@Test
 	public void indexingProperties(){
 		Node personNode = entityManager.create(person);
@@ -111,6 +137,20 @@ public class EntityManagerTest {
 
 	}
 
+	@Test
+	public void indexEntriesUnderTheirOwnKeyAreReplaced() {
+		Sensor sensor = new Sensor("kiln");
+		sensor.setSite("north");
+		Node sensorNode = entityManager.create(sensor);
+		Index<Node> index = entityManager.getNodeIndex(Sensor.class);
+		assertThat(index.get("installedAt", "north").getSingle(), is(sensorNode));
+
+		sensor.setSite("south");
+		entityManager.update(sensor, sensorNode);
+		assertThat(index.get("installedAt", "north").getSingle(), nullValue());
+		assertThat(index.get("installedAt", "south").getSingle(), is(sensorNode));
+	}
+
 	@Test
 	public void indexingRelationshipsWithProperties(){
 		Person parent = new Person("williams", new DateTime().minusYears(50).toDate());
@@ -284,6 +324,33 @@ public class EntityManagerTest {
 		assertThat((String)relationShip2.getEndNode().getProperty("name"), is("Blue"));
 	}
 	
+	@Test
+	public void deletedEnumNodesAreCreatedAgain(){
+		RelationshipType favoriteColorType = DynamicRelationshipType.withName("favoriteColor");
+		person.setFavoriteColor(Color.Green);
+		Node personNode = entityManager.create(person);
+		Relationship relationship = personNode.getSingleRelationship(favoriteColorType, Direction.OUTGOING);
+		Node greenNode = relationship.getEndNode();
+
+		Transaction transaction = database.getDatabase().beginTx();
+		try {
+			relationship.delete();
+			database.getDatabase().index().forNodes(EntityManager.nodeIndexName(Color.class)).remove(greenNode);
+			greenNode.delete();
+			transaction.success();
+		} finally {
+			transaction.finish();
+		}
+
+		Person anotherPerson = new Person("Ann");
+		anotherPerson.setFavoriteColor(Color.Green);
+		Node anotherPersonNode = entityManager.create(anotherPerson);
+
+		Node newGreenNode = anotherPersonNode.getSingleRelationship(favoriteColorType, Direction.OUTGOING).getEndNode();
+		assertThat(newGreenNode.getId(), not(greenNode.getId()));
+		assertThat((String) newGreenNode.getProperty("name"), is("Green"));
+	}
+	
 	@Test
 	public void updateNullValueWilRemoveIt(){
 		person.setAddress(new Address(addressName, city, country));
@@ -314,11 +381,12 @@ public class EntityManagerTest {
 		
 		Node personNode = entityManager.create(person);
 		
-		entityManager.createRelationship(EntityManager.getReferenceNode(), personNode, RelTypes.PERSON);
+		entityManager.createRelationship(entityManager.getReferenceNodeOfType(), personNode, RelTypes.PERSON);
 		
 		Relationship relationship = personNode.getSingleRelationship(RelTypes.PERSON, Direction.INCOMING);
 		assertThat(relationship, notNullValue());
-		assertThat(relationship.getOtherNode(personNode), is(EntityManager.getReferenceNode()));
+		assertThat(relationship.getOtherNode(personNode), is(entityManager.getReferenceNodeOfType()));
+		assertThat(EntityManager.getReferenceNode(), is(entityManager.getReferenceNodeOfType()));
 	}
 	
 	
@@ -383,4 +451,69 @@ public class EntityManagerTest {
 	}
 	
 
+	@Test
+	public void updatingCollectionsKeepsUnchangedRelationships() {
+		Person dru = new Person("Dru", birthdate);
+		Person jan = new Person("Jan", birthdate);
+		person.getFriends().add(dru);
+		person.getFriends().add(jan);
+		Node personNode = entityManager.create(person);
+		Map<String, Long> relationships = new HashMap<String, Long>();
+		for (Relationship relationship : personNode.getRelationships(friendsType, Direction.OUTGOING)) {
+			relationships.put((String) relationship.getEndNode().getProperty("name"), relationship.getId());
+		}
+
+		person.getFriends().remove(jan);
+		person.getFriends().add(new Person("Ann", birthdate));
+		entityManager.update(person, personNode);
+
+		Map<String, Long> updatedRelationships = new HashMap<String, Long>();
+		for (Relationship relationship : personNode.getRelationships(friendsType, Direction.OUTGOING)) {
+			updatedRelationships.put((String) relationship.getEndNode().getProperty("name"), relationship.getId());
+		}
+		assertThat(updatedRelationships.size(), is(2));
+		assertThat(updatedRelationships.get("Dru"), is(relationships.get("Dru")));
+		assertThat(updatedRelationships.containsKey("Ann"), is(true));
+		assertThat(updatedRelationships.containsKey("Jan"), is(false));
+	}
+
+	@Test
+	public void sharedReferencesAndCyclesAreWrittenOnce() {
+		RelationshipType connectedTo = DynamicRelationshipType.withName("connectedTo");
+		RelationshipType parts = DynamicRelationshipType.withName("parts");
+		Part engine = new Part("engine");
+		Part pump = new Part("pump");
+		Part hose = new Part("hose");
+		engine.setConnectedTo(pump);
+		pump.setConnectedTo(engine);
+		engine.getParts().add(hose);
+		engine.getParts().add(pump);
+		hose.setConnectedTo(pump);
+
+		Node engineNode = entityManager.create(engine);
+		Node pumpNode = engineNode.getSingleRelationship(connectedTo, Direction.OUTGOING).getEndNode();
+		assertThat(pumpNode.getSingleRelationship(connectedTo, Direction.OUTGOING).getEndNode(), is(engineNode));
+		Map<String, Node> partNodes = new HashMap<String, Node>();
+		for (Relationship relationship : engineNode.getRelationships(parts, Direction.OUTGOING)) {
+			partNodes.put((String) relationship.getEndNode().getProperty("name"), relationship.getEndNode());
+		}
+		assertThat(partNodes.size(), is(2));
+		assertThat(partNodes.get("pump"), is(pumpNode));
+		assertThat(partNodes.get("hose").getSingleRelationship(connectedTo, Direction.OUTGOING).getEndNode(),
+				is(pumpNode));
+
+		pump.setConnectedTo(hose);
+		entityManager.update(engine, engineNode);
+		pumpNode = engineNode.getSingleRelationship(connectedTo, Direction.OUTGOING).getEndNode();
+		partNodes.clear();
+		for (Relationship relationship : engineNode.getRelationships(parts, Direction.OUTGOING)) {
+			partNodes.put((String) relationship.getEndNode().getProperty("name"), relationship.getEndNode());
+		}
+		assertThat(partNodes.get("pump"), is(pumpNode));
+		assertThat(pumpNode.getSingleRelationship(connectedTo, Direction.OUTGOING).getEndNode(),
+				is(partNodes.get("hose")));
+		assertThat(partNodes.get("hose").getSingleRelationship(connectedTo, Direction.OUTGOING).getEndNode(),
+				is(pumpNode));
+	}
+
 }
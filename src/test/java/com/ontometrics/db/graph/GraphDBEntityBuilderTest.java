@@ -2,6 +2,7 @@ package com.ontometrics.db.graph;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
@@ -21,9 +22,14 @@ import org.neo4j.graphdb.DynamicRelationshipType;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 
+import com.ontometrics.db.graph.lazy.Lazy;
+import com.ontometrics.db.graph.lazy.LazyReference;
+import com.ontometrics.db.graph.lazy.LazyReferences;
+import com.ontometrics.db.graph.lazy.LazySet;
 import com.ontometrics.db.graph.model.Address;
 import com.ontometrics.db.graph.model.Person.Color;
 import com.ontometrics.db.graph.model.Person;
+import com.ontometrics.db.graph.model.Pet;
 import com.ontometrics.db.graph.model.AddressBook;
 import com.ontometrics.db.graph.model.Employee;
 import com.ontometrics.testing.TestGraphDatabase;
@@ -132,6 +138,64 @@ public class GraphDBEntityBuilderTest {
 		assertThat(friend1.getFriends().iterator().next().getName(), is("Jan"));
 	}
 
+	@Test
+	public void collectionsAreLoadedOnFirstAccess() {
+		personNode.createRelationshipTo(friend1Node, DynamicRelationshipType.withName("friends"));
+		friend1Node.createRelationshipTo(friend2Node, DynamicRelationshipType.withName("friends"));
+
+		Person person = new Person();
+		GraphDBEntityBuilder.buildEntity(personNode, person);
+		assertThat(person.getFriends(), instanceOf(LazySet.class));
+		assertThat(((Lazy) person.getFriends()).isLoaded(), is(false));
+
+		Person friend = person.getFriends().iterator().next();
+		assertThat(((Lazy) person.getFriends()).isLoaded(), is(true));
+		assertThat(friend.getName(), is("Dru"));
+		assertThat(((Lazy) friend.getFriends()).isLoaded(), is(false));
+		assertThat(friend.getFriends().iterator().next().getName(), is("Jan"));
+	}
+
+	@Test
+	public void referencesToEntityClassesAreReadRightAwayByDefault() {
+		personNode.createRelationshipTo(friend1Node, DynamicRelationshipType.withName("parent"));
+
+		Person person = new Person();
+		GraphDBEntityBuilder.buildEntity(personNode, person);
+		assertThat(person.getParent(), not(instanceOf(LazyReference.class)));
+		assertThat(person.getParent().getClass().equals(Person.class), is(true));
+		assertThat(person.getParent().getName(), is("Dru"));
+	}
+
+	@Test
+	public void referencesToEntityClassesAreLoadedOnFirstAccessWhenAnnotated() {
+		Node petNode = database.getDatabase().createNode();
+		petNode.setProperty("name", "Rex");
+		petNode.createRelationshipTo(personNode, DynamicRelationshipType.withName("owner"));
+		personNode.createRelationshipTo(friend1Node, DynamicRelationshipType.withName("parent"));
+
+		Pet pet = new Pet();
+		GraphDBEntityBuilder.buildEntity(petNode, pet);
+		Person owner = pet.getOwner();
+		assertThat(owner, instanceOf(LazyReference.class));
+		assertThat(((Lazy) owner).isLoaded(), is(false));
+
+		assertThat(owner.getName(), is(username));
+		assertThat(((Lazy) owner).isLoaded(), is(true));
+		assertThat(owner.getParent(), not(instanceOf(LazyReference.class)));
+		assertThat(owner.getParent().getName(), is("Dru"));
+		assertThat(owner.equals(LazyReferences.unwrap(owner)), is(true));
+	}
+
+	@Test
+	public void eagerBuildReadsEverything() {
+		personNode.createRelationshipTo(friend1Node, DynamicRelationshipType.withName("friends"));
+
+		Person person = new Person();
+		GraphDBEntityBuilder.buildEntity(personNode, person, false);
+		assertThat(person.getFriends(), not(instanceOf(Lazy.class)));
+		assertThat(person.getFriends().iterator().next().getName(), is("Dru"));
+	}
+
 	@Test
 	public void buildEntityWithMap() {
 
@@ -1,25 +1,56 @@
 package com.ontometrics.db.graph;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.fail;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ontometrics.db.graph.conversion.ConverterRegistry;
+import com.ontometrics.db.graph.conversion.DateConverter;
+import com.ontometrics.db.graph.conversion.TypeConverter;
+import com.ontometrics.db.graph.lazy.LazyReference;
 import com.ontometrics.db.graph.model.Car;
 import com.ontometrics.db.graph.model.Employee;
+import com.ontometrics.db.graph.model.Location;
 import com.ontometrics.db.graph.model.Manager;
 import com.ontometrics.db.graph.model.Person;
+import com.ontometrics.db.graph.model.Pet;
+import com.ontometrics.db.graph.model.Person.Color;
 import com.ontometrics.db.graph.model.RepositoryTestCase;
 import com.ontometrics.db.graph.model.SeniorManager;
+import com.ontometrics.db.graph.model.Sensor;
+import com.ontometrics.db.graph.model.Team;
+import com.ontometrics.utils.DoubleArrayList;
 
 public class RepositoryTest extends RepositoryTestCase {
 
@@ -93,6 +124,362 @@ public class RepositoryTest extends RepositoryTestCase {
 		assertThat(isDeleted, is(true));
 	}
 	
+	@Test
+	public void repositoryCanCreateEntitiesInChunks() {
+		List<Person> people = new ArrayList<Person>();
+		for (int i = 0; i < 25; i++) {
+			people.add(new Person("person" + i, new Date()));
+		}
+		final List<Long> totals = new ArrayList<Long>();
+		entityManager.setBatchSize(10);
+		long created = repository.createAll(people, new BatchListener() {
+			public void chunkCommitted(int chunk, int chunkSize, long total, long millis) {
+				totals.add(total);
+			}
+		});
+
+		assertThat(created, is(25L));
+		assertThat(totals.size(), is(3));
+		assertThat(totals.get(2), is(25L));
+		assertThat(repository.read(Person.class, "person0").getName(), is("person0"));
+		assertThat(repository.read(Person.class, "person24").getName(), is("person24"));
+	}
+
+	@Test
+	public void readStopsAtFetchPlanDepth() {
+		Person grandParent = new Person("grandParent", new Date());
+		Person parent = new Person("parent", new Date());
+		parent.setParent(grandParent);
+		Person person = new Person("child", new Date());
+		person.setParent(parent);
+		person.getFriends().add(new Person("friend", new Date()));
+		repository.create(person);
+
+		Person readPerson = repository.read(Person.class, "child", FetchPlan.depth(1));
+		assertThat(readPerson.getBirthDate(), notNullValue());
+		assertThat(readPerson.getParent().getBirthDate(), notNullValue());
+		assertThat(readPerson.getParent().getParent().getName(), is("grandParent"));
+		assertThat(readPerson.getParent().getParent().getBirthDate(), nullValue());
+
+		readPerson = repository.read(Person.class, "child", FetchPlan.depth(0));
+		assertThat(readPerson.getParent().getName(), is("parent"));
+		assertThat(readPerson.getParent().getBirthDate(), nullValue());
+		assertThat(readPerson.getFriends().iterator().next().getName(), is("friend"));
+		assertThat(readPerson.getFriends().iterator().next().getBirthDate(), nullValue());
+	}
+
+	@Test
+	public void readFollowsOnlyFieldsInNamedPlan() {
+		Person parent = new Person("parent", new Date());
+		Person person = new Person("child", new Date());
+		person.setParent(parent);
+		person.getFriends().add(new Person("friend", new Date()));
+		repository.create(person);
+		FetchPlan.register(FetchPlan.fields("parentOnly", "parent"));
+
+		Person readPerson = repository.read(Person.class, "child", "parentOnly");
+		assertThat(readPerson.getParent().getBirthDate(), notNullValue());
+		assertThat(readPerson.getFriends().iterator().next().getBirthDate(), nullValue());
+	}
+
+	@Test
+	public void readsInSessionShareInstances() {
+		Person parent = new Person("parent", new Date());
+		Person first = new Person("first", new Date());
+		first.setParent(parent);
+		Person second = new Person("second", new Date());
+		second.setParent(parent);
+		repository.create(first);
+		repository.create(second);
+
+		assertThat(repository.read(Person.class, "first").getParent(),
+				not(sameInstance(repository.read(Person.class, "second").getParent())));
+
+		entityManager.beginSession();
+		try {
+			Person readFirst = repository.read(Person.class, "first");
+			Person readSecond = repository.read(Person.class, "second");
+			assertThat(readFirst.getParent(), sameInstance(readSecond.getParent()));
+			assertThat(repository.read(Person.class, "first"), sameInstance(readFirst));
+			assertThat(repository.read(Person.class, "parent"), sameInstance(readFirst.getParent()));
+		} finally {
+			entityManager.endSession();
+		}
+	}
+
+	@Test
+	public void cachedReadsAreInvalidatedByWrites() throws Exception {
+		EntityCache cache = new EntityCache();
+		entityManager.setCache(cache);
+		repository.create(new Person("neo4j", new Date()));
+
+		repository.read(Person.class, "neo4j");
+		repository.read(Person.class, "neo4j");
+		assertThat(cache.getStatistics().getMisses(), is(1L));
+		assertThat(cache.getStatistics().getHits(), is(1L));
+
+		Date newBirthDate = new SimpleDateFormat("MM/dd/yyyy").parse("1/1/2000");
+		repository.update(new Person("neo4j", newBirthDate));
+		assertThat(repository.read(Person.class, "neo4j").getBirthDate(), is(newBirthDate));
+		assertThat(cache.getStatistics().getMisses(), is(2L));
+
+		// a snapshot read before a write committed is not put after it
+		long stamp = cache.getStamp(Person.class, "neo4j");
+		EntitySnapshot staleSnapshot = cache.get(Person.class, "neo4j");
+		repository.update(new Person("neo4j", new Date()));
+		assertThat(cache.put(Person.class, "neo4j", staleSnapshot, stamp), is(false));
+		assertThat(cache.get(Person.class, "neo4j"), is(nullValue()));
+
+		repository.destroy(new Person("neo4j"), "neo4j");
+		assertThat(cache.getStatistics().getSize(), is(0L));
+	}
+
+	@Test
+	public void nodeIdsAreCachedForCommittedNodes() throws Exception {
+		NodeIdCache nodeIdCache = new NodeIdCache();
+		entityManager.setNodeIdCache(nodeIdCache);
+		Node node = repository.create(new Person("neo4j", new Date()));
+
+		repository.read(Person.class, "neo4j");
+		repository.read(Person.class, "neo4j");
+		assertThat(nodeIdCache.getStatistics().getHits(), is(2L));
+		assertThat(nodeIdCache.getStatistics().getHitRatio(), is(1.0));
+		assertThat(nodeIdCache.get(Person.class, "neo4j"), is(node.getId()));
+
+		Transaction transaction = entityManager.getDatabase().beginTx();
+		try {
+			repository.create(new Person("ghost", new Date()));
+			transaction.failure();
+		} finally {
+			transaction.finish();
+		}
+		try {
+			repository.read(Person.class, "ghost");
+			fail("read a person that was rolled back");
+		} catch (IllegalArgumentException e) {
+			assertThat(nodeIdCache.get(Person.class, "ghost"), is(-1L));
+		}
+
+		repository.destroy(new Person("neo4j"), "neo4j");
+		assertThat(nodeIdCache.get(Person.class, "neo4j"), is(-1L));
+	}
+
+	@Test
+	public void updateInSessionWritesOnlyChangedFields() throws Exception {
+		Person person = new Person("child", new Date());
+		person.setParent(new Person("parent", new Date()));
+		Node node = repository.create(person);
+		long parentRelationship = node.getSingleRelationship(DynamicRelationshipType.withName("parent"),
+				Direction.OUTGOING).getId();
+
+		entityManager.beginSession();
+		try {
+			Person readPerson = repository.read(Person.class, "child");
+			Date newBirthDate = new SimpleDateFormat("MM/dd/yyyy").parse("1/1/2000");
+			readPerson.setBirthDate(newBirthDate);
+			readPerson.getParent().setBirthDate(newBirthDate);
+			repository.update(readPerson);
+		} finally {
+			entityManager.endSession();
+		}
+
+		Person readPerson = repository.read(Person.class, "child");
+		assertThat(readPerson.getBirthDate(), is(new SimpleDateFormat("MM/dd/yyyy").parse("1/1/2000")));
+		assertThat(readPerson.getParent().getBirthDate(), is(new SimpleDateFormat("MM/dd/yyyy").parse("1/1/2000")));
+		assertThat(node.getSingleRelationship(DynamicRelationshipType.withName("parent"), Direction.OUTGOING).getId(),
+				is(parentRelationship));
+	}
+
+	@Test
+	public void updateInSessionComparesWithTheManagersConverters() throws Exception {
+		ConverterRegistry converters = new ConverterRegistry();
+		converters.register(new DateConverter());
+		converters.register(new TypeConverter() {
+			public Class<?> getType() {
+				return Person.class;
+			}
+
+			public Object convertToPrimitive(Object value) {
+				Person person = (Person) value;
+				return person.getName() + "@" + person.getBirthDate().getTime();
+			}
+
+			public Object convertFromPrimitive(Object value) {
+				String[] parts = ((String) value).split("@");
+				return new Person(parts[0], new Date(Long.parseLong(parts[1])));
+			}
+		});
+		entityManager.setConverterRegistry(converters);
+		Person person = new Person("child", new Date());
+		person.setParent(new Person("parent", new SimpleDateFormat("MM/dd/yyyy").parse("1/1/1970")));
+		repository.create(person);
+
+		Date newBirthDate = new SimpleDateFormat("MM/dd/yyyy").parse("1/1/2000");
+		entityManager.beginSession();
+		try {
+			Person readPerson = repository.read(Person.class, "child");
+			// stored as a property, so a change to it is a change to the field
+			readPerson.getParent().setBirthDate(newBirthDate);
+			repository.update(readPerson);
+		} finally {
+			entityManager.endSession();
+		}
+
+		assertThat(repository.read(Person.class, "child").getParent().getBirthDate(), is(newBirthDate));
+	}
+
+	@Test
+	public void unchangedPrimitiveFieldsAreNotRewritten() {
+		Date lastReading = new Date();
+		Sensor sensor = new Sensor("boiler");
+		sensor.setReadings(5000000000L);
+		sensor.setLevel(1000);
+		sensor.setTemperature(21.5);
+		sensor.setActive(true);
+		sensor.setLastReading(lastReading);
+		Node node = entityManager.create(sensor);
+
+		final List<String> assigned = new ArrayList<String>();
+		TransactionEventHandler<Object> handler = new TransactionEventHandler<Object>() {
+			public Object beforeCommit(TransactionData data) throws Exception {
+				for (PropertyEntry<Node> property : data.assignedNodeProperties()) {
+					assigned.add(property.key());
+				}
+				return null;
+			}
+
+			public void afterCommit(TransactionData data, Object state) {
+			}
+
+			public void afterRollback(TransactionData data, Object state) {
+			}
+		};
+		entityManager.getDatabase().registerTransactionEventHandler(handler);
+		try {
+			entityManager.update(sensor, node);
+			entityManager.beginSession();
+			try {
+				entityManager.update(sensor, node);
+			} finally {
+				entityManager.endSession();
+			}
+			assertThat(assigned.isEmpty(), is(true));
+
+			sensor.setLevel(1001);
+			sensor.setTemperature(22.0);
+			entityManager.update(sensor, node);
+			Collections.sort(assigned);
+			assertThat(assigned, is(Arrays.asList("level", "temperature")));
+		} finally {
+			entityManager.getDatabase().unregisterTransactionEventHandler(handler);
+		}
+		assertThat((Long) node.getProperty("readings"), is(5000000000L));
+		assertThat((Integer) node.getProperty("level"), is(1001));
+		assertThat((Double) node.getProperty("temperature"), is(22.0));
+		assertThat((Boolean) node.getProperty("active"), is(true));
+		assertThat((Long) node.getProperty("lastReading"), is(lastReading.getTime()));
+	}
+
+	@Test
+	public void lazyListsChangedInSessionAreUpdated() {
+		EntityRepository<Manager> managers = new EntityRepository<Manager>();
+		managers.setEntityManager(entityManager);
+		Manager manager = new Manager("Bob");
+		manager.addSubordinate(new Employee("Ann"));
+		managers.create(manager);
+
+		entityManager.beginSession();
+		try {
+			Manager readManager = managers.read(Manager.class, "Bob");
+			readManager.getSubordinates().add(new Employee("Kim"));
+			managers.update(readManager);
+		} finally {
+			entityManager.endSession();
+		}
+
+		assertThat(managers.read(Manager.class, "Bob").getSubordinates().size(), is(2));
+	}
+
+	@Test
+	public void lazyReferencesCanBeUpdated() {
+		EntityRepository<Pet> pets = new EntityRepository<Pet>();
+		pets.setEntityManager(entityManager);
+		pets.create(new Pet("Rex", new Person("owner", new Date())));
+
+		entityManager.beginSession();
+		try {
+			Person owner = pets.read(Pet.class, "Rex").getOwner();
+			assertThat(owner, instanceOf(LazyReference.class));
+			owner.setFavoriteColor(Color.Green);
+			repository.update(owner);
+		} finally {
+			entityManager.endSession();
+		}
+
+		assertThat(repository.read(Person.class, "owner").getFavoriteColor(), is(Color.Green));
+	}
+
+	@Test
+	public void largeCollectionsAreWrittenInChunks() {
+		entityManager.setLargeCollectionThreshold(10);
+		entityManager.setBatchSize(4);
+		Person person = new Person("popular", new Date());
+		for (int i = 0; i < 25; i++) {
+			person.getFriends().add(new Person("friend" + i, new Date()));
+		}
+		Node node = repository.create(person);
+		assertThat(countFriends(node), is(25));
+
+		final List<Person> newFriends = new ArrayList<Person>();
+		for (int i = 0; i < 10; i++) {
+			newFriends.add(new Person("newFriend" + i, new Date()));
+		}
+		final List<Long> positions = new ArrayList<Long>();
+		BatchListener listener = new BatchListener() {
+			public void chunkCommitted(int chunk, int chunkSize, long total, long millis) {
+				positions.add(total);
+			}
+		};
+		Iterator<Person> failing = new Iterator<Person>() {
+			private int next = 0;
+
+			public boolean hasNext() {
+				return next < newFriends.size();
+			}
+
+			public Person next() {
+				if (next == 6) {
+					throw new IllegalStateException("source went away");
+				}
+				return newFriends.get(next++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		try {
+			entityManager.writeCollection(person, "friends", failing, 0, listener);
+		} catch (IllegalStateException e) {
+			// interrupted in the second chunk
+		}
+		assertThat(positions.get(positions.size() - 1), is(4L));
+		assertThat(countFriends(node), is(29));
+
+		long position = entityManager.writeCollection(person, "friends", newFriends.iterator(), 4, listener);
+		assertThat(position, is(10L));
+		assertThat(countFriends(node), is(35));
+	}
+
+	private int countFriends(Node node) {
+		int count = 0;
+		for (@SuppressWarnings("unused") Relationship relationship : node.getRelationships(
+				DynamicRelationshipType.withName("friends"), Direction.OUTGOING)) {
+			count++;
+		}
+		return count;
+	}
+
 	@Test 
 	public void superClassCollectionsAreRetrieved() {
 		EntityRepository<SeniorManager> repo = new EntityRepository<SeniorManager>();
@@ -129,4 +516,207 @@ public class RepositoryTest extends RepositoryTestCase {
 		
 	}
 
+	@Test
+	public void primitiveArraysAreReadWithoutSharingTheStoredArray() throws Exception {
+		EntityRepository<Sensor> sensors = new EntityRepository<Sensor>();
+		sensors.setEntityManager(entityManager);
+		Sensor sensor = new Sensor("boiler");
+		sensor.setLevels(new int[] { 1, 2, 3 });
+		DoubleArrayList temperatures = new DoubleArrayList();
+		temperatures.addDouble(20.5);
+		temperatures.addDouble(21.0);
+		sensor.setTemperatures(temperatures);
+		Node node = sensors.create(sensor);
+		assertThat(Arrays.equals((int[]) node.getProperty("levels"), new int[] { 1, 2, 3 }), is(true));
+		assertThat(Arrays.equals((double[]) node.getProperty("temperatures"), new double[] { 20.5, 21.0 }), is(true));
+
+		Sensor read = sensors.read(Sensor.class, "boiler");
+		assertThat(read.getTemperatures(), instanceOf(DoubleArrayList.class));
+		assertThat(read.getTemperatures(), is(Arrays.asList(20.5, 21.0)));
+		read.getLevels()[0] = 10;
+		read.getTemperatures().set(0, 30.0);
+		read.getTemperatures().add(31.0);
+		assertThat(((int[]) node.getProperty("levels"))[0], is(1));
+		assertThat(((double[]) node.getProperty("temperatures"))[0], is(20.5));
+
+		sensors.update(read);
+		assertThat(((int[]) node.getProperty("levels"))[0], is(10));
+		assertThat(Arrays.equals((double[]) node.getProperty("temperatures"), new double[] { 30.0, 21.0, 31.0 }),
+				is(true));
+	}
+
+	@Test
+	public void mapsOfPropertiesAreStoredCompact() throws Exception {
+		EntityRepository<Sensor> sensors = new EntityRepository<Sensor>();
+		sensors.setEntityManager(entityManager);
+		Sensor sensor = new Sensor("boiler");
+		Map<Date, Long> readingsByDay = new HashMap<Date, Long>();
+		readingsByDay.put(new Date(0), 10L);
+		readingsByDay.put(new Date(86400000), 12L);
+		sensor.setReadingsByDay(readingsByDay);
+		Map<String, Integer> thresholds = new HashMap<String, Integer>();
+		thresholds.put("high", 90);
+		sensor.setThresholds(thresholds);
+		Node node = sensors.create(sensor);
+
+		assertThat(node.hasRelationship(DynamicRelationshipType.withName("readingsByDay")), is(false));
+		assertThat(((long[]) node.getProperty("readingsByDay" + EntityManager.MAP_KEYS)).length, is(2));
+		assertThat(((long[]) node.getProperty("readingsByDay" + EntityManager.MAP_VALUES)).length, is(2));
+		// annotated to keep a node per entry
+		assertThat(node.hasProperty("thresholds" + EntityManager.MAP_KEYS), is(false));
+		assertThat(node.hasRelationship(DynamicRelationshipType.withName("thresholds")), is(true));
+
+		Sensor read = sensors.read(Sensor.class, "boiler");
+		assertThat(read.getReadingsByDay(), is(readingsByDay));
+		assertThat(read.getThresholds(), is(thresholds));
+
+		read.getReadingsByDay().put(new Date(2 * 86400000), 15L);
+		sensors.update(read);
+		assertThat(((long[]) node.getProperty("readingsByDay" + EntityManager.MAP_KEYS)).length, is(3));
+		assertThat(sensors.read(Sensor.class, "boiler").getReadingsByDay().get(new Date(2 * 86400000)), is(15L));
+
+		read.setReadingsByDay(null);
+		sensors.update(read);
+		assertThat(node.hasProperty("readingsByDay" + EntityManager.MAP_KEYS), is(false));
+		assertThat(node.hasProperty("readingsByDay" + EntityManager.MAP_VALUES), is(false));
+	}
+
+	@Test
+	public void embeddedValuesAreStoredInTheOwnerNode() throws Exception {
+		EntityRepository<Sensor> sensors = new EntityRepository<Sensor>();
+		sensors.setEntityManager(entityManager);
+		Sensor sensor = new Sensor("furnace");
+		sensor.setLocation(new Location("Denver", "US", 1609.3));
+		Node node = sensors.create(sensor);
+
+		assertThat(node.hasRelationship(DynamicRelationshipType.withName("location")), is(false));
+		assertThat((String) node.getProperty("location.city"), is("Denver"));
+		assertThat((Double) node.getProperty("location.altitude"), is(1609.3));
+
+		Sensor read = sensors.read(Sensor.class, "furnace");
+		assertThat(read.getLocation().getCity(), is("Denver"));
+		assertThat(read.getLocation().getCountry(), is("US"));
+		assertThat(read.getLocation().getAltitude(), is(1609.3));
+
+		read.getLocation().setCountry(null);
+		read.getLocation().setCity("Boulder");
+		sensors.update(read);
+		assertThat((String) node.getProperty("location.city"), is("Boulder"));
+		assertThat(node.hasProperty("location.country"), is(false));
+
+		read.setLocation(null);
+		sensors.update(read);
+		assertThat(node.hasProperty("location.city"), is(false));
+		assertThat(node.hasProperty("location.altitude"), is(false));
+		assertThat(sensors.read(Sensor.class, "furnace").getLocation(), is(nullValue()));
+	}
+
+	@Test
+	public void referencesWithoutPrimaryKeyAreUpdatedInPlace() throws Exception {
+		EntityRepository<SeniorManager> repo = new EntityRepository<SeniorManager>();
+		repo.setEntityManager(entityManager);
+		Node node = repo.create(new SeniorManager("Bob", new Car("Cadillac")));
+		RelationshipType car = DynamicRelationshipType.withName("car");
+		Node carNode = node.getSingleRelationship(car, Direction.OUTGOING).getEndNode();
+
+		SeniorManager read = repo.read(SeniorManager.class, "Bob");
+		read.getCar().setType("Lincoln");
+		repo.update(read);
+		assertThat(node.getSingleRelationship(car, Direction.OUTGOING).getEndNode(), is(carNode));
+		assertThat((String) carNode.getProperty("type"), is("Lincoln"));
+
+		read.setCar(new Car("Tesla"));
+		repo.update(read);
+		assertThat(node.getSingleRelationship(car, Direction.OUTGOING).getEndNode(), is(carNode));
+		assertThat(repo.read(SeniorManager.class, "Bob").getCar().getType(), is("Tesla"));
+
+		read.setCar(null);
+		repo.update(read);
+		assertThat(node.hasRelationship(car, Direction.OUTGOING), is(false));
+		try {
+			entityManager.getDatabase().getNodeById(carNode.getId());
+			fail("the car node is still there");
+		} catch (NotFoundException e) {
+			// deleted with the reference
+		}
+	}
+
+	@Test
+	public void mapEntryNodesAreDeletedWhenTheMapIsRewritten() throws Exception {
+		EntityRepository<Sensor> sensors = new EntityRepository<Sensor>();
+		sensors.setEntityManager(entityManager);
+		Sensor sensor = new Sensor("kiln");
+		Map<String, Integer> thresholds = new HashMap<String, Integer>();
+		thresholds.put("high", 900);
+		sensor.setThresholds(thresholds);
+		Node node = sensors.create(sensor);
+		RelationshipType type = DynamicRelationshipType.withName("thresholds");
+		Node entryNode = node.getSingleRelationship(type, Direction.OUTGOING).getEndNode();
+
+		thresholds.put("high", 950);
+		sensors.update(sensor);
+		assertThat(node.getSingleRelationship(type, Direction.OUTGOING).getEndNode().getId(),
+				is(not(entryNode.getId())));
+		try {
+			entityManager.getDatabase().getNodeById(entryNode.getId());
+			fail("the old entry node is still there");
+		} catch (NotFoundException e) {
+			// deleted with the old entry
+		}
+	}
+
+	@Test
+	public void referencedEntitiesAreWrittenAsFarAsTheCascadeGoes() throws Exception {
+		EntityRepository<Team> teams = new EntityRepository<Team>();
+		teams.setEntityManager(entityManager);
+		Date birthDate = new SimpleDateFormat("MM/dd/yyyy").parse("1/1/1970");
+		Person lead = new Person("Pat");
+		Team team = new Team("graph");
+		team.setLead(lead);
+		Person member = new Person("Lee");
+		team.getMembers().add(member);
+		// annotated to create the lead, but not to update it
+		teams.create(team);
+		assertThat(repository.read(Person.class, "Pat").getName(), is("Pat"));
+
+		lead.setBirthDate(birthDate);
+		member.setBirthDate(birthDate);
+		teams.update(team);
+		assertThat(repository.read(Person.class, "Pat").getBirthDate(), is(nullValue()));
+		assertThat(repository.read(Person.class, "Lee").getBirthDate(), is(birthDate));
+
+		// only linking, for this call, to someone who has not been created
+		Date laterBirthDate = new SimpleDateFormat("MM/dd/yyyy").parse("1/1/1980");
+		member.setBirthDate(laterBirthDate);
+		team.getMembers().add(new Person("Kim"));
+		try {
+			teams.update(team, CascadeType.LINK);
+			fail("Kim has been linked to without being created");
+		} catch (CascadeException e) {
+			// Kim has to be created first
+		}
+		assertThat(repository.read(Person.class, "Lee").getBirthDate(), is(birthDate));
+		assertThat(teams.read(Team.class, "graph").getMembers().size(), is(1));
+		try {
+			repository.read(Person.class, "Kim");
+			fail("Kim has been created");
+		} catch (IllegalArgumentException e) {
+			// not found
+		}
+
+		teams.update(team, CascadeType.ALL);
+		assertThat(repository.read(Person.class, "Pat").getBirthDate(), is(birthDate));
+		assertThat(repository.read(Person.class, "Kim").getName(), is("Kim"));
+
+		teams.create(new Team("empty"), CascadeType.LINK);
+		Team withNewLead = new Team("new");
+		withNewLead.setLead(new Person("Jo"));
+		try {
+			teams.create(withNewLead, CascadeType.LINK);
+			fail("the lead has been created");
+		} catch (CascadeException e) {
+			// the lead has to be created first
+		}
+	}
+
 }
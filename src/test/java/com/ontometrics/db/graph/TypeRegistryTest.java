@@ -6,8 +6,10 @@ import static org.hamcrest.Matchers.nullValue;
 
 import org.junit.Test;
 
+import com.ontometrics.db.graph.conversion.ConverterRegistry;
 import com.ontometrics.db.graph.conversion.TypeConverter;
 import com.ontometrics.db.graph.conversion.TypeRegistry;
+import com.ontometrics.db.graph.model.Employee;
 import com.ontometrics.db.graph.model.Person;
 
 public class TypeRegistryTest {
@@ -38,4 +40,45 @@ public class TypeRegistryTest {
 		assertThat(TypeRegistry.getConverter(Person.class), nullValue());
 		
 	}
+
+	@Test
+	public void convertersApplyToSubclassesAndImplementations() {
+		ConverterRegistry registry = new ConverterRegistry();
+		assertThat(registry.getConverter(Employee.class), nullValue());
+
+		TypeConverter personConverter = new StringConverter(Person.class);
+		TypeConverter comparableConverter = new StringConverter(Comparable.class);
+		registry.register(personConverter);
+		registry.register(comparableConverter);
+
+		assertThat(registry.getConverter(Employee.class), is(personConverter));
+		assertThat(registry.getConverter(Integer.class), is(comparableConverter));
+		assertThat(registry.getConverter(Object.class), nullValue());
+
+		registry.unRegister(personConverter);
+		assertThat(registry.getConverter(Employee.class), nullValue());
+		assertThat(TypeRegistry.getConverter(Employee.class), nullValue());
+	}
+
+	private static class StringConverter implements TypeConverter {
+
+		private final Class<?> type;
+
+		StringConverter(Class<?> type) {
+			this.type = type;
+		}
+
+		public Class<?> getType() {
+			return type;
+		}
+
+		public Object convertToPrimitive(Object value) {
+			return value.toString();
+		}
+
+		public Object convertFromPrimitive(Object value) {
+			return value;
+		}
+
+	}
 }
@@ -0,0 +1,177 @@
+package com.ontometrics.db.graph;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+import com.ontometrics.db.graph.model.Car;
+import com.ontometrics.db.graph.model.Person;
+import com.ontometrics.db.graph.model.Person.Color;
+import com.ontometrics.db.graph.model.RepositoryTestCase;
+import com.ontometrics.db.graph.model.SeniorManager;
+import com.ontometrics.db.graph.model.Sensor;
+
+public class VacuumTest extends RepositoryTestCase {
+
+	private GraphDatabaseService database;
+
+	private Vacuum vacuum;
+
+	@Before
+	public void setUp() {
+		super.setUp();
+		database = entityManager.getDatabase();
+		vacuum = new Vacuum(entityManager);
+	}
+
+	@Test
+	public void unreachableNodesAreDeletedWithTheirIndexEntries() {
+		SeniorManager bob = new SeniorManager("Bob", new Car("Cadillac"));
+		Node bobNode = entityManager.create(bob);
+		Node carNode = bobNode.getSingleRelationship(DynamicRelationshipType.withName("car"), Direction.OUTGOING)
+				.getEndNode();
+		Sensor sensor = new Sensor("kiln");
+		Map<String, Integer> thresholds = new HashMap<String, Integer>();
+		thresholds.put("high", 900);
+		sensor.setThresholds(thresholds);
+		Node sensorNode = entityManager.create(sensor);
+		Node entryNode = sensorNode.getSingleRelationship(DynamicRelationshipType.withName("thresholds"),
+				Direction.OUTGOING).getEndNode();
+		Person person = new Person("Ann");
+		person.setFavoriteColor(Color.Blue);
+		entityManager.create(person);
+
+		// cut off the way older versions did, leaving the nodes behind
+		Transaction transaction = database.beginTx();
+		try {
+			carNode.getSingleRelationship(DynamicRelationshipType.withName("car"), Direction.INCOMING).delete();
+			entityManager.getNodeIndex(Car.class).add(carNode, "type", "Cadillac");
+			sensorNode.getSingleRelationship(DynamicRelationshipType.withName("thresholds"), Direction.OUTGOING)
+					.delete();
+			transaction.success();
+		} finally {
+			transaction.finish();
+		}
+
+		VacuumReport report = vacuum.run(null);
+		assertThat(report.getNodesDeleted(), is(2L));
+		assertThat(vacuum.getLastReport(), is(report));
+		assertDeleted(carNode);
+		assertDeleted(entryNode);
+		assertThat(entityManager.getNodeIndex(Car.class).get("type", "Cadillac").getSingle(), nullValue());
+
+		EntityRepository<Person> people = new EntityRepository<Person>();
+		people.setEntityManager(entityManager);
+		assertThat(people.read(Person.class, "Ann").getFavoriteColor(), is(Color.Blue));
+		assertThat(database.getNodeById(bobNode.getId()), notNullValue());
+		assertThat(vacuum.run(null).getNodesDeleted(), is(0L));
+	}
+
+	@Test
+	public void nodesStillReferredToAreKept() {
+		Node carNode = entityManager.create(new SeniorManager("Bob", new Car("Cadillac")))
+				.getSingleRelationship(DynamicRelationshipType.withName("car"), Direction.OUTGOING).getEndNode();
+		Node orphan;
+		Transaction transaction = database.beginTx();
+		try {
+			// an orphan that refers to a live node, and one that refers to it
+			orphan = database.createNode();
+			Node orphanOwner = database.createNode();
+			orphanOwner.createRelationshipTo(orphan, DynamicRelationshipType.withName("part"));
+			Relationship relationship = orphan.createRelationshipTo(carNode, DynamicRelationshipType.withName("car"));
+			relationship.setProperty(EntityManager.TYPE_PROPERTY, Car.class.getName());
+			transaction.success();
+		} finally {
+			transaction.finish();
+		}
+		// one node a transaction, so the orphan that is referred to has to
+		// wait for the next run
+		vacuum.setBatchSize(1);
+		VacuumReport report = vacuum.run(null);
+		assertThat(report.getNodesDeleted(), is(1L));
+		assertThat(report.getNodesDeferred(), is(1L));
+		report = vacuum.run(null);
+		assertThat(report.getNodesDeleted(), is(1L));
+		assertThat(report.getRelationshipsDeleted(), is(1L));
+		assertDeleted(orphan);
+		assertThat(database.getNodeById(carNode.getId()).getProperty("type"), is((Object) "Cadillac"));
+		assertThat(carNode.hasRelationship(Direction.INCOMING), is(true));
+	}
+
+	@Test
+	public void keyedNodesCreatedDuringARunAreKept() {
+		final Node[] orphans = new Node[4];
+		Transaction transaction = database.beginTx();
+		try {
+			for (int i = 0; i < orphans.length; i++) {
+				orphans[i] = database.createNode();
+			}
+			transaction.success();
+		} finally {
+			transaction.finish();
+		}
+		// after the first two orphans, an entity and an enum constant are
+		// created that refer to the other two, but are not marked
+		final Node[] created = new Node[2];
+		vacuum.setBatchSize(2);
+		VacuumReport report = vacuum.run(new BatchListener() {
+			public void chunkCommitted(int chunk, int chunkSize, long total, long millis) {
+				if (created[0] != null) {
+					return;
+				}
+				Person person = new Person("Ann");
+				person.setFavoriteColor(Color.Green);
+				created[0] = entityManager.create(person);
+				Relationship color = created[0].getSingleRelationship(
+						DynamicRelationshipType.withName("favoriteColor"), Direction.OUTGOING);
+				created[1] = color.getEndNode();
+				Transaction transaction = database.beginTx();
+				try {
+					// so the enum constant is kept for its own sake
+					color.delete();
+					created[0].createRelationshipTo(orphans[2], DynamicRelationshipType.withName("other"));
+					created[1].createRelationshipTo(orphans[3], DynamicRelationshipType.withName("other"));
+					transaction.success();
+				} finally {
+					transaction.finish();
+				}
+			}
+		});
+		assertThat(report.getNodesDeleted(), is(2L));
+		assertDeleted(orphans[0]);
+		assertDeleted(orphans[1]);
+		assertThat(database.getNodeById(orphans[2].getId()), notNullValue());
+		assertThat(database.getNodeById(orphans[3].getId()), notNullValue());
+		assertThat(created[0].getProperty(EntityManager.TYPE_PROPERTY), is((Object) Person.class.getName()));
+		assertThat(created[1].getProperty(EntityManager.TYPE_PROPERTY), is((Object) Color.class.getName()));
+
+		EntityRepository<Person> people = new EntityRepository<Person>();
+		people.setEntityManager(entityManager);
+		assertThat(people.read(Person.class, "Ann").getName(), is("Ann"));
+	}
+
+	private void assertDeleted(Node node) {
+		try {
+			database.getNodeById(node.getId());
+			fail("node " + node.getId() + " is still there");
+		} catch (NotFoundException e) {
+			// deleted
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+package com.ontometrics.db.graph.benchmarks;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Date;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ontometrics.db.graph.EntityManager;
+import com.ontometrics.db.graph.GraphDBEntityBuilder;
+import com.ontometrics.db.graph.Id;
+
+/**
+ * Measures how many bytes the current thread allocates to update an entity
+ * made of primitive fields that has not changed, and to read it. The count
+ * comes from <code>com.sun.management.ThreadMXBean</code>, which not every
+ * JVM has, so it is looked up reflectively and the benchmark says so and
+ * stops when it is missing. It is not a test, surefire leaves it alone; run
+ * it with the test classpath:
+ *
+ * <pre>
+ * java -cp target/test-classes:target/classes:... com.ontometrics.db.graph.benchmarks.AllocationBenchmark [operations]
+ * </pre>
+ *
+ * Everything runs in one transaction that is rolled back, so what is
+ * measured is the mapping and not the commits.
+ *
+ * @author Rob
+ *
+ */
+public class AllocationBenchmark {
+
+	private static final Logger log = LoggerFactory.getLogger(AllocationBenchmark.class);
+
+	private static final int OPERATIONS = 20000;
+
+	/**
+	 * Declared here rather than in the test model, so that the numbers stay
+	 * comparable as the model grows.
+	 */
+	public static class Gauge {
+
+		@Id
+		String name;
+
+		long readings;
+
+		int level;
+
+		double temperature;
+
+		boolean active;
+
+		Date lastReading;
+
+	}
+
+	public static void main(String[] args) throws Exception {
+		int operations = args.length > 0 ? Integer.parseInt(args[0]) : OPERATIONS;
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Method allocatedBytes = allocatedBytesMethod(threads);
+		if (allocatedBytes == null) {
+			log.warn("this JVM does not count allocated bytes per thread, nothing to measure");
+			return;
+		}
+		File directory = Benchmarks.newDirectory("allocation");
+		EmbeddedGraphDatabase database = new EmbeddedGraphDatabase(directory.getAbsolutePath());
+		try {
+			EntityManager entityManager = new EntityManager(database);
+			Transaction transaction = database.beginTx();
+			try {
+				Gauge gauge = new Gauge();
+				gauge.name = "boiler";
+				gauge.readings = 5000000000L;
+				gauge.level = 1000;
+				gauge.temperature = 21.5;
+				gauge.active = true;
+				gauge.lastReading = new Date();
+				Node node = entityManager.create(gauge);
+
+				long update = bytesPerUpdate(threads, allocatedBytes, entityManager, gauge, node, operations);
+				entityManager.beginSession();
+				long updateInSession;
+				try {
+					entityManager.update(gauge, node);
+					updateInSession = bytesPerUpdate(threads, allocatedBytes, entityManager, gauge, node, operations);
+				} finally {
+					entityManager.endSession();
+				}
+				long read = bytesPerRead(threads, allocatedBytes, node, operations);
+				log.info("bytes allocated per unchanged update: {} without a session, {} in one; per read: {}",
+						new Object[] { update, updateInSession, read });
+			} finally {
+				transaction.failure();
+				transaction.finish();
+			}
+		} finally {
+			database.shutdown();
+			Benchmarks.delete(directory);
+		}
+	}
+
+	private static long bytesPerUpdate(ThreadMXBean threads, Method allocatedBytes, EntityManager entityManager,
+			Gauge gauge, Node node, int operations) throws Exception {
+		// the first round warms up, the second is measured
+		long bytes = 0;
+		for (int round = 0; round < 2; round++) {
+			long before = allocatedBytes(threads, allocatedBytes);
+			for (int i = 0; i < operations; i++) {
+				entityManager.update(gauge, node);
+			}
+			bytes = allocatedBytes(threads, allocatedBytes) - before;
+		}
+		return bytes / operations;
+	}
+
+	private static long bytesPerRead(ThreadMXBean threads, Method allocatedBytes, Node node, int operations)
+			throws Exception {
+		long bytes = 0;
+		for (int round = 0; round < 2; round++) {
+			long before = allocatedBytes(threads, allocatedBytes);
+			for (int i = 0; i < operations; i++) {
+				GraphDBEntityBuilder.buildEntity(node, new Gauge());
+			}
+			bytes = allocatedBytes(threads, allocatedBytes) - before;
+		}
+		return bytes / operations;
+	}
+
+	/**
+	 * @return <code>getThreadAllocatedBytes(long)</code> of the bean, enabled,
+	 *         or null if the bean has none or cannot count
+	 */
+	private static Method allocatedBytesMethod(ThreadMXBean threads) {
+		try {
+			Class<?> extended = Class.forName("com.sun.management.ThreadMXBean");
+			if (!extended.isInstance(threads)) {
+				return null;
+			}
+			if (!(Boolean) extended.getMethod("isThreadAllocatedMemorySupported").invoke(threads)) {
+				return null;
+			}
+			extended.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(threads, true);
+			return extended.getMethod("getThreadAllocatedBytes", long.class);
+		} catch (Exception e) {
+			log.debug("cannot count allocated bytes", e);
+			return null;
+		}
+	}
+
+	private static long allocatedBytes(ThreadMXBean threads, Method allocatedBytes) throws Exception {
+		return (Long) allocatedBytes.invoke(threads, Thread.currentThread().getId());
+	}
+
+}
@@ -0,0 +1,40 @@
+package com.ontometrics.db.graph.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * What the benchmarks share: somewhere to put their databases.
+ *
+ * @author Rob
+ *
+ */
+final class Benchmarks {
+
+	private Benchmarks() {
+	}
+
+	/**
+	 * @param name
+	 * @return a new empty directory under the temporary directory
+	 * @throws IOException
+	 */
+	static File newDirectory(String name) throws IOException {
+		File directory = File.createTempFile(name, "db");
+		if (!directory.delete() || !directory.mkdirs()) {
+			throw new IOException("cannot create " + directory);
+		}
+		return directory;
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
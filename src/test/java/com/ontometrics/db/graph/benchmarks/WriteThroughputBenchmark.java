@@ -0,0 +1,97 @@
+package com.ontometrics.db.graph.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ontometrics.db.graph.EntityManager;
+import com.ontometrics.db.graph.model.Person;
+
+/**
+ * Measures how many entities a second one entity manager writes from one
+ * thread and from many. Commits wait on the disk, so the numbers say as much
+ * about the machine as about us, which is why they are logged and not
+ * asserted. It is not a test, surefire leaves it alone; run it with the test
+ * classpath:
+ *
+ * <pre>
+ * java -cp target/test-classes:target/classes:... com.ontometrics.db.graph.benchmarks.WriteThroughputBenchmark [threads]
+ * </pre>
+ *
+ * @author Rob
+ *
+ */
+public class WriteThroughputBenchmark {
+
+	private static final Logger log = LoggerFactory.getLogger(WriteThroughputBenchmark.class);
+
+	private static final int ENTITIES_PER_THREAD = 200;
+
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(4, Runtime.getRuntime()
+				.availableProcessors());
+		File directory = Benchmarks.newDirectory("throughput");
+		EmbeddedGraphDatabase database = new EmbeddedGraphDatabase(directory.getAbsolutePath());
+		try {
+			EntityManager entityManager = new EntityManager(database);
+			// so neither run pays for the first writes
+			write(entityManager, "warmup", threads);
+			double oneThread = 0;
+			double manyThreads = 0;
+			for (int round = 0; round < ROUNDS; round++) {
+				oneThread = Math.max(oneThread, write(entityManager, "single" + round, 1));
+				manyThreads = Math.max(manyThreads, write(entityManager, "many" + round, threads));
+			}
+			log.info("best of {} rounds: {} entities/s on 1 thread, {} entities/s on {} threads, speedup {}",
+					new Object[] { ROUNDS, (long) oneThread, (long) manyThreads, threads, manyThreads / oneThread });
+		} finally {
+			database.shutdown();
+			Benchmarks.delete(directory);
+		}
+	}
+
+	/**
+	 * @return entities written per second
+	 */
+	private static double write(final EntityManager entityManager, final String prefix, int threads)
+			throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		final Date birthdate = new Date();
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int thread = 0; thread < threads; thread++) {
+			final int number = thread;
+			results.add(executor.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					start.await();
+					for (int i = 0; i < ENTITIES_PER_THREAD; i++) {
+						entityManager.create(new Person(prefix + "-" + number + "-" + i, birthdate));
+					}
+					return ENTITIES_PER_THREAD;
+				}
+			}));
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		int written = 0;
+		for (Future<Integer> result : results) {
+			written += result.get();
+		}
+		long nanos = System.nanoTime() - begin;
+		executor.shutdown();
+		return written * 1e9 / nanos;
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.ontometrics.db.graph.lazy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+import org.junit.Test;
+
+import com.ontometrics.db.graph.model.Car;
+import com.ontometrics.db.graph.model.Person;
+import com.ontometrics.db.graph.model.Person.Color;
+
+public class LazyReferencesTest {
+
+	public interface Named {
+		String getName();
+	}
+
+	private int loads = 0;
+
+	private final Named target = new Named() {
+		public String getName() {
+			return "loaded";
+		}
+	};
+
+	private final Loader<Named> loader = new Loader<Named>() {
+		public Named load() {
+			loads++;
+			return target;
+		}
+	};
+
+	@Test
+	public void proxyLoadsTargetOnce() {
+		Named proxy = LazyReferences.newProxy(Named.class, loader);
+		assertThat(((Lazy) proxy).isLoaded(), is(false));
+		assertThat(loads, is(0));
+
+		assertThat(proxy.getName(), is("loaded"));
+		assertThat(proxy.getName(), is("loaded"));
+		assertThat(((Lazy) proxy).isLoaded(), is(true));
+		assertThat(loads, is(1));
+	}
+
+	@Test
+	public void unwrapReturnsTarget() {
+		Named proxy = LazyReferences.newProxy(Named.class, loader);
+		assertThat(LazyReferences.unwrap(proxy), is(sameInstance((Object) target)));
+		assertThat(LazyReferences.unwrap(target), is(sameInstance((Object) target)));
+	}
+
+	@Test
+	public void entityClassesGetSubclassProxies() {
+		final Person person = new Person("Rob");
+		Person proxy = LazyReferences.newProxy(Person.class, new Loader<Person>() {
+			public Person load() {
+				loads++;
+				return person;
+			}
+		});
+		assertThat(proxy, instanceOf(LazyReference.class));
+		assertThat(((Lazy) proxy).isLoaded(), is(false));
+		assertThat(loads, is(0));
+
+		assertThat(proxy.getName(), is("Rob"));
+		proxy.setFavoriteColor(Color.Blue);
+		assertThat(person.getFavoriteColor(), is(Color.Blue));
+		assertThat(proxy.hashCode(), is(person.hashCode()));
+		assertThat(loads, is(1));
+		assertThat(LazyReferences.unwrap(proxy), is(sameInstance((Object) person)));
+	}
+
+	@Test
+	public void classesWithoutGeneratedProxiesCannotBeDeferred() {
+		assertThat(LazyReferences.canDefer(Person.class), is(true));
+		assertThat(LazyReferences.canDefer(Car.class), is(false));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void concreteTypesCannotBeDeferred() {
+		LazyReferences.newProxy(String.class, loader);
+	}
+
+}
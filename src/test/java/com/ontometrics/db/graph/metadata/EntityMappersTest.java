@@ -0,0 +1,131 @@
+package com.ontometrics.db.graph.metadata;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.ontometrics.db.graph.Id;
+import com.ontometrics.db.graph.model.Car;
+
+public class EntityMappersTest {
+
+	static class Gadget {
+		@Id
+		String serial;
+		int weight;
+		long grams;
+		private String label;
+		private double price;
+		private List<String> tags = new ArrayList<String>();
+
+		public double getPrice() {
+			// rounded for display, not what is stored
+			return Math.round(price);
+		}
+
+		public void setPrice(double price) {
+			if (price < 0) {
+				throw new IllegalStateException("no negative prices");
+			}
+			this.price = price;
+		}
+
+		public List<String> getTags() {
+			return Collections.unmodifiableList(tags);
+		}
+
+		public void setTags(List<String> tags) {
+			this.tags = new ArrayList<String>(tags);
+		}
+	}
+
+	@Test
+	public void generatedMapperIsFound() throws Exception {
+		EntityMapper<Gadget> mapper = EntityMappers.forClass(Gadget.class);
+		assertThat(mapper, notNullValue());
+		assertThat(EntityMapper.class.isAssignableFrom(Class.forName(EntityMappers.mapperName(Gadget.class))), is(true));
+		assertThat(EntityMetadata.forClass(Gadget.class).newInstance(), instanceOf(Gadget.class));
+	}
+
+	@Test
+	public void nonPrivateFieldsUseGeneratedAccessors() throws Exception {
+		FieldMetadata weight = EntityMetadata.forClass(Gadget.class).getField("weight");
+		assertThat(weight.getAccessor(), not(instanceOf(MethodHandleFieldAccessor.class)));
+		assertThat(weight.getAccessor(), not(instanceOf(ReflectiveFieldAccessor.class)));
+
+		Gadget gadget = new Gadget();
+		weight.setValue(gadget, 12);
+		assertThat(gadget.weight, is(12));
+		assertThat((Integer) weight.getValue(gadget), is(12));
+
+		assertThat(weight.getAccessor(), instanceOf(PrimitiveFieldAccessor.class));
+		weight.setLong(gadget, 13L);
+		assertThat(weight.getLong(gadget), is(13L));
+	}
+
+	@Test
+	public void privateFieldsUseGeneratedAccessorsWithoutCallingGettersOrSetters() throws Exception {
+		FieldMetadata price = EntityMetadata.forClass(Gadget.class).getField("price");
+		assertThat(price.getAccessor(), instanceOf(PrimitiveFieldAccessor.class));
+		assertThat(price.getAccessor(), not(instanceOf(MethodHandleFieldAccessor.class)));
+
+		Gadget gadget = new Gadget();
+		price.setDouble(gadget, 9.4);
+		assertThat(price.getDouble(gadget), is(9.4));
+		assertThat((Double) price.getValue(gadget), is(9.4));
+		price.setValue(gadget, -1.0);
+		assertThat((Double) price.getValue(gadget), is(-1.0));
+
+		FieldMetadata tags = EntityMetadata.forClass(Gadget.class).getField("tags");
+		assertThat(tags.getAccessor(), not(instanceOf(MethodHandleFieldAccessor.class)));
+		List<String> stored = new ArrayList<String>();
+		tags.setValue(gadget, stored);
+		assertThat(tags.getValue(gadget) == stored, is(true));
+
+		FieldMetadata label = EntityMetadata.forClass(Gadget.class).getField("label");
+		assertThat(label.getAccessor(), not(instanceOf(MethodHandleFieldAccessor.class)));
+		label.setValue(gadget, "new");
+		assertThat((String) label.getValue(gadget), is("new"));
+	}
+
+	@Test
+	public void generatedAccessorsWidenNumbersLikeRuntimeAccessors() throws Exception {
+		Gadget gadget = new Gadget();
+		FieldMetadata grams = EntityMetadata.forClass(Gadget.class).getField("grams");
+		grams.setValue(gadget, 5);
+		assertThat(gadget.grams, is(5L));
+		FieldMetadata price = EntityMetadata.forClass(Gadget.class).getField("price");
+		price.setValue(gadget, 3);
+		assertThat((Double) price.getValue(gadget), is(3.0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void generatedAccessorsRejectNarrowingLikeRuntimeAccessors() throws Exception {
+		EntityMetadata.forClass(Gadget.class).getField("weight").setValue(new Gadget(), 5L);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void generatedAccessorsRejectValuesOfTheWrongType() throws Exception {
+		EntityMetadata.forClass(Gadget.class).getField("label").setValue(new Gadget(), 5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void generatedAccessorsRejectNullForPrimitives() throws Exception {
+		EntityMetadata.forClass(Gadget.class).getField("price").setValue(new Gadget(), null);
+	}
+
+	@Test
+	public void classesWithoutAnnotationsHaveNoMapper() {
+		assertThat(EntityMappers.forClass(Car.class), nullValue());
+	}
+
+}
@@ -0,0 +1,69 @@
+package com.ontometrics.db.graph.metadata;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.ontometrics.db.graph.model.Car;
+import com.ontometrics.db.graph.model.Employee;
+import com.ontometrics.db.graph.model.Manager;
+import com.ontometrics.db.graph.model.Person;
+import com.ontometrics.db.graph.model.SeniorManager;
+
+public class EntityMetadataTest {
+
+	@Test
+	public void metadataIsBuiltOncePerClass() {
+		assertThat(EntityMetadata.forClass(Person.class), is(sameInstance(EntityMetadata.forClass(Person.class))));
+	}
+
+	@Test
+	public void transientAndLoggerFieldsAreNotPersistent() {
+		Set<String> names = new HashSet<String>();
+		for (FieldMetadata field : EntityMetadata.forClass(SeniorManager.class).getPersistentFields()) {
+			names.add(field.getName());
+		}
+		assertThat(names.contains("visitDuration"), is(false));
+		assertThat(names.contains("log"), is(false));
+		assertThat(names.contains("car"), is(true));
+		assertThat(names.contains("name"), is(true));
+	}
+
+	@Test
+	public void primaryKeyIsFoundInSuperClass() {
+		EntityMetadata metadata = EntityMetadata.forClass(Employee.class);
+		assertThat(metadata.getPrimaryKey(), notNullValue());
+		assertThat(metadata.getPrimaryKeyValue(new Employee("Joe")), is((Object) "Joe"));
+
+		assertThat(EntityMetadata.forClass(Car.class).getPrimaryKey(), nullValue());
+	}
+
+	@Test
+	public void shadowedFieldsAreAllListed() {
+		EntityMetadata metadata = EntityMetadata.forClass(Manager.class);
+		assertThat(metadata.getFields("boss").size(), is(2));
+		assertThat(metadata.getField("boss").getField().getDeclaringClass().equals(Manager.class), is(true));
+		assertThat(metadata.getField("boss").getKind(), is(FieldMetadata.Kind.REFERENCE));
+		assertThat(metadata.getField("subordinates").getKind(), is(FieldMetadata.Kind.COLLECTION));
+	}
+
+	@Test
+	public void indexDefinitionsAreResolved() {
+		FieldMetadata address = EntityMetadata.forClass(Person.class).getField("address");
+		assertThat(address.isIndexed(), is(true));
+		assertThat(address.getIndexKey(), is("for"));
+		assertThat(address.getIndexValue(new Person("Ann")), is((Object) "Ann"));
+
+		FieldMetadata birthDate = EntityMetadata.forClass(Person.class).getField("birthDate");
+		assertThat(birthDate.getIndexKey(), is("birthDate"));
+		assertThat(birthDate.getIndexValue(new Person("Ann")), nullValue());
+	}
+
+}
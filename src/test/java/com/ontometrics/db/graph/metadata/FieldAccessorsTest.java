@@ -0,0 +1,87 @@
+package com.ontometrics.db.graph.metadata;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.Test;
+
+public class FieldAccessorsTest {
+
+	@SuppressWarnings("unused")
+	private static class Sample {
+		private String name;
+		private long count;
+		private int level;
+		private float ratio;
+		private final int fixed = 1;
+	}
+
+	@Test
+	public void methodHandlesAreUsedForPlainFields() throws Exception {
+		FieldAccessor accessor = FieldAccessors.forField(Sample.class.getDeclaredField("name"));
+		assertThat(accessor, instanceOf(MethodHandleFieldAccessor.class));
+
+		Sample sample = new Sample();
+		accessor.set(sample, "Ann");
+		assertThat((String) accessor.get(sample), is("Ann"));
+	}
+
+	@Test
+	public void primitivesAreBoxedAndUnboxed() throws Exception {
+		FieldAccessor accessor = FieldAccessors.forField(Sample.class.getDeclaredField("count"));
+		Sample sample = new Sample();
+		accessor.set(sample, 42L);
+		assertThat(sample.count, is(42L));
+		assertThat((Long) accessor.get(sample), is(42L));
+	}
+
+	@Test
+	public void primitivesCanBeMovedWithoutBoxing() throws Exception {
+		FieldAccessorFactory previous = FieldAccessors.getFactory();
+		try {
+			for (FieldAccessorFactory factory : new FieldAccessorFactory[] { FieldAccessors.METHOD_HANDLES,
+					FieldAccessors.REFLECTION }) {
+				FieldAccessors.setFactory(factory);
+				PrimitiveFieldAccessor level = (PrimitiveFieldAccessor) FieldAccessors.forField(Sample.class
+						.getDeclaredField("level"));
+				PrimitiveFieldAccessor ratio = (PrimitiveFieldAccessor) FieldAccessors.forField(Sample.class
+						.getDeclaredField("ratio"));
+				Sample sample = new Sample();
+				level.setLong(sample, 7L);
+				ratio.setDouble(sample, 0.5);
+				assertThat(sample.level, is(7));
+				assertThat(sample.ratio, is(0.5f));
+				assertThat(level.getLong(sample), is(7L));
+				assertThat(ratio.getDouble(sample), is(0.5));
+			}
+		} finally {
+			FieldAccessors.setFactory(previous);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void integralFieldsAreNotReadAsDouble() throws Exception {
+		((PrimitiveFieldAccessor) FieldAccessors.forField(Sample.class.getDeclaredField("level")))
+				.getDouble(new Sample());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nullForPrimitiveIsRejected() throws Exception {
+		FieldAccessors.forField(Sample.class.getDeclaredField("count")).set(new Sample(), null);
+	}
+
+	@Test
+	public void reflectionCanBePluggedIn() throws Exception {
+		FieldAccessorFactory previous = FieldAccessors.getFactory();
+		try {
+			FieldAccessors.setFactory(FieldAccessors.REFLECTION);
+			FieldAccessor accessor = FieldAccessors.forField(Sample.class.getDeclaredField("fixed"));
+			assertThat(accessor, instanceOf(ReflectiveFieldAccessor.class));
+			assertThat((Integer) accessor.get(new Sample()), is(1));
+		} finally {
+			FieldAccessors.setFactory(previous);
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+package com.ontometrics.db.graph.model;
+
+/**
+ * A value without an identity of its own, for testing that it is stored in
+ * the node of whatever it is embedded in.
+ *
+ * @author Rob
+ *
+ */
+public class Location {
+
+	private String city;
+
+	private String country;
+
+	private double altitude;
+
+	public Location() {
+
+	}
+
+	public Location(String city, String country, double altitude) {
+		this.city = city;
+		this.country = country;
+		this.altitude = altitude;
+	}
+
+	public String getCity() {
+		return city;
+	}
+
+	public void setCity(String city) {
+		this.city = city;
+	}
+
+	public String getCountry() {
+		return country;
+	}
+
+	public void setCountry(String country) {
+		this.country = country;
+	}
+
+	public double getAltitude() {
+		return altitude;
+	}
+
+	public void setAltitude(double altitude) {
+		this.altitude = altitude;
+	}
+
+}
@@ -0,0 +1,49 @@
+package com.ontometrics.db.graph.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A part of something, without a primary key, which can be connected to
+ * other parts in cycles.
+ *
+ * @author Rob
+ *
+ */
+public class Part {
+
+	private String name;
+
+	private Part connectedTo;
+
+	private List<Part> parts = new ArrayList<Part>();
+
+	public Part() {
+
+	}
+
+	public Part(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Part getConnectedTo() {
+		return connectedTo;
+	}
+
+	public void setConnectedTo(Part connectedTo) {
+		this.connectedTo = connectedTo;
+	}
+
+	public List<Part> getParts() {
+		return parts;
+	}
+
+	public void setParts(List<Part> parts) {
+		this.parts = parts;
+	}
+
+}
@@ -0,0 +1,42 @@
+package com.ontometrics.db.graph.model;
+
+import com.ontometrics.db.graph.Fetch;
+import com.ontometrics.db.graph.FetchType;
+import com.ontometrics.db.graph.Id;
+
+/**
+ * A pet whose owner is read when first used, as the field asks for it.
+ *
+ * @author Rob
+ *
+ */
+public class Pet {
+
+	@Id
+	private String name;
+
+	@Fetch(FetchType.LAZY)
+	private Person owner;
+
+	public Pet() {
+
+	}
+
+	public Pet(String name, Person owner) {
+		this.name = name;
+		this.owner = owner;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Person getOwner() {
+		return owner;
+	}
+
+	public void setOwner(Person owner) {
+		this.owner = owner;
+	}
+
+}
@@ -20,6 +20,9 @@ public class SeniorManager extends Manager {
 	public String toString() {
 		return "SeniorManager [car=" + car + ", " + super.toString() + "]";
 	}
+	public Car getCar() {
+		return car;
+	}
 	public void setCar(Car car) {
 		this.car = car;
 	}
@@ -0,0 +1,149 @@
+package com.ontometrics.db.graph.model;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import com.ontometrics.db.graph.CompactMap;
+import com.ontometrics.db.graph.Embedded;
+import com.ontometrics.db.graph.Id;
+import com.ontometrics.db.graph.Index;
+
+/**
+ * An entity made mostly of primitive fields, for testing that they are
+ * mapped without boxing.
+ *
+ * @author Rob
+ *
+ */
+public class Sensor {
+
+	@Id
+	private String name;
+
+	private long readings;
+
+	private int level;
+
+	private double temperature;
+
+	private boolean active;
+
+	private Date lastReading;
+
+	private int[] levels;
+
+	private List<Double> temperatures;
+
+	private Map<Date, Long> readingsByDay;
+
+	@CompactMap(false)
+	private Map<String, Integer> thresholds;
+
+	@Embedded
+	private Location location;
+
+	@Index(key = "installedAt")
+	private String site;
+
+	public Sensor() {
+
+	}
+
+	public Sensor(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getReadings() {
+		return readings;
+	}
+
+	public void setReadings(long readings) {
+		this.readings = readings;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	public double getTemperature() {
+		return temperature;
+	}
+
+	public void setTemperature(double temperature) {
+		this.temperature = temperature;
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	public void setActive(boolean active) {
+		this.active = active;
+	}
+
+	public Date getLastReading() {
+		return lastReading;
+	}
+
+	public void setLastReading(Date lastReading) {
+		this.lastReading = lastReading;
+	}
+
+	public int[] getLevels() {
+		return levels;
+	}
+
+	public void setLevels(int[] levels) {
+		this.levels = levels;
+	}
+
+	public List<Double> getTemperatures() {
+		return temperatures;
+	}
+
+	public void setTemperatures(List<Double> temperatures) {
+		this.temperatures = temperatures;
+	}
+
+	public Map<Date, Long> getReadingsByDay() {
+		return readingsByDay;
+	}
+
+	public void setReadingsByDay(Map<Date, Long> readingsByDay) {
+		this.readingsByDay = readingsByDay;
+	}
+
+	public Map<String, Integer> getThresholds() {
+		return thresholds;
+	}
+
+	public void setThresholds(Map<String, Integer> thresholds) {
+		this.thresholds = thresholds;
+	}
+
+	public Location getLocation() {
+		return location;
+	}
+
+	public void setLocation(Location location) {
+		this.location = location;
+	}
+
+	public String getSite() {
+		return site;
+	}
+
+	public void setSite(String site) {
+		this.site = site;
+	}
+
+}
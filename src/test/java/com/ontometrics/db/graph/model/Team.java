@@ -0,0 +1,55 @@
+package com.ontometrics.db.graph.model;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.ontometrics.db.graph.Cascade;
+import com.ontometrics.db.graph.CascadeType;
+import com.ontometrics.db.graph.Id;
+
+/**
+ * A team whose lead is created along with it, but not updated, and whose
+ * members are written as far as writes go by default.
+ *
+ * @author Rob
+ *
+ */
+public class Team {
+
+	@Id
+	private String name;
+
+	@Cascade(CascadeType.CREATE)
+	private Person lead;
+
+	private Set<Person> members = new HashSet<Person>();
+
+	public Team() {
+
+	}
+
+	public Team(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Person getLead() {
+		return lead;
+	}
+
+	public void setLead(Person lead) {
+		this.lead = lead;
+	}
+
+	public Set<Person> getMembers() {
+		return members;
+	}
+
+	public void setMembers(Set<Person> members) {
+		this.members = members;
+	}
+
+}
@@ -0,0 +1,29 @@
+package com.ontometrics.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.Test;
+
+public class LongBitSetTest {
+
+	@Test
+	public void indexesPastIntRangeHaveBitsOfTheirOwn() {
+		LongBitSet set = new LongBitSet();
+		long high = (1L << 32) + 5;
+		set.set(5);
+		assertThat(set.get(high), is(false));
+		assertThat(set.get(Integer.MAX_VALUE + 1L), is(false));
+
+		set.set(high);
+		assertThat(set.get(high), is(true));
+		assertThat(set.get(5), is(true));
+		assertThat(set.cardinality(), is(2L));
+
+		set.clear(5);
+		assertThat(set.get(5), is(false));
+		assertThat(set.get(high), is(true));
+		assertThat(set.cardinality(), is(1L));
+	}
+
+}
@@ -0,0 +1,41 @@
+package com.ontometrics.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import org.junit.Test;
+
+public class LruCacheTest {
+
+	@Test
+	public void leastRecentlyUsedEntryIsEvicted() {
+		LruCache<String, String> cache = new LruCache<String, String>(2);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.get("a");
+		cache.put("c", "3");
+
+		assertThat(cache.get("b"), nullValue());
+		assertThat(cache.get("a"), is("1"));
+		assertThat(cache.get("c"), is("3"));
+		assertThat(cache.getEvictions(), is(1L));
+	}
+
+	@Test
+	public void cacheStaysWithinWeight() {
+		LruCache<String, String> cache = new LruCache<String, String>(100, 10, new LruCache.Weigher<String>() {
+			public long weigh(String value) {
+				return value.length();
+			}
+		});
+		cache.put("a", "12345");
+		cache.put("b", "12345");
+		cache.put("c", "123");
+
+		assertThat(cache.size(), is(2));
+		assertThat(cache.getWeight(), is(8L));
+		assertThat(cache.get("a"), nullValue());
+	}
+
+}
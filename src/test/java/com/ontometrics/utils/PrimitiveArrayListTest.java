@@ -0,0 +1,52 @@
+package com.ontometrics.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class PrimitiveArrayListTest {
+
+	@Test
+	public void wrappedArrayIsCopiedOnFirstChange() {
+		long[] stored = { 1, 2, 3 };
+		LongArrayList list = LongArrayList.wrap(stored);
+		assertThat(list, is(Arrays.asList(1L, 2L, 3L)));
+
+		list.setLong(0, 10);
+		list.remove(1);
+		list.addLong(4);
+		assertThat(list, is(Arrays.asList(10L, 3L, 4L)));
+		assertThat(Arrays.equals(stored, new long[] { 1, 2, 3 }), is(true));
+	}
+
+	@Test
+	public void fullArrayIsHandedOutAndThenLeftAlone() {
+		IntArrayList list = IntArrayList.wrap(new int[] { 1, 2 });
+		int[] array = list.toIntArray();
+		assertThat(list.toIntArray(), sameInstance(array));
+
+		list.addInt(3);
+		list.setInt(0, 5);
+		assertThat(Arrays.equals(array, new int[] { 1, 2 }), is(true));
+		// no longer full, so a trimmed copy
+		assertThat(list.toIntArray(), not(sameInstance(array)));
+		assertThat(Arrays.equals(list.toIntArray(), new int[] { 5, 2, 3 }), is(true));
+	}
+
+	@Test
+	public void wrapPicksTheListForTheArrayType() {
+		assertThat(PrimitiveArrayList.wrap(new double[] { 0.5 }).get(0), is((Object) 0.5));
+		assertThat(PrimitiveArrayList.wrap(new byte[] { 1 }) == null, is(true));
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void nullsAreRejected() {
+		new DoubleArrayList().add(null);
+	}
+
+}